@@ -17,17 +17,25 @@ package com.example.androidthings.robocar;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.example.androidthings.robocar.TricolorLed.Tricolor;
 import com.example.androidthings.robocar.shared.CarCommands;
+import com.example.androidthings.robocar.shared.messaging.HandlerExecutor;
+import com.example.androidthings.robocar.shared.metrics.Counter;
+import com.example.androidthings.robocar.shared.metrics.Histogram;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
 import com.example.androidthings.robocar.shared.model.AdvertisingInfo.LedColor;
 import com.google.android.things.contrib.driver.motorhat.MotorHat;
 import com.google.android.things.contrib.driver.ht16k33.AlphanumericDisplay;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 
 public class CarController {
@@ -42,7 +50,32 @@ public class CarController {
     private static final int SPEED_TURNING_INSIDE = 70;
     private static final int SPEED_TURNING_OUTSIDE = 250;
 
-    private MotorHat mMotorHat;
+    private static final long SHUTDOWN_TIMEOUT_MS = 500L;
+
+    /** Scheduled work that may be waiting on the motor thread at any time. */
+    public static final int MAX_SCHEDULED = 32;
+    // Handler delays have millisecond resolution and may run a little late, so scheduled work is
+    // posted this much early and the motor thread spins for the rest.
+    private static final long SCHEDULE_SPIN_NANOS = 2000000L;
+
+    private static final Counter MOTOR_COMMANDS = MetricsRegistry.getDefault().counter(
+            "robocar_motor_commands_total", "Commands handled by CarController");
+    private static final Histogram MOTOR_COMMAND_LATENCY = MetricsRegistry.getDefault().histogram(
+            "robocar_motor_command_us", "Time to apply a motor command", "us",
+            Histogram.LATENCY_MICROS_BOUNDS);
+    private static final Counter I2C_WRITES = MetricsRegistry.getDefault().counter(
+            "robocar_i2c_writes_total", "Writes to the motor HAT and display");
+    private static final Counter I2C_ERRORS = MetricsRegistry.getDefault().counter(
+            "robocar_i2c_errors_total", "Failed writes to the motor HAT and display");
+    private static final Histogram SCHEDULE_LATENESS = MetricsRegistry.getDefault().histogram(
+            "robocar_scheduled_lateness_us", "How late scheduled work ran", "us",
+            Histogram.LATENCY_MICROS_BOUNDS);
+
+    private MotorDriver mMotorDriver;
+    // What we last wrote to each motor, only touched on the motor thread.
+    private final int[] mMotorStates = {MotorHat.MOTOR_STATE_RELEASE, MotorHat.MOTOR_STATE_RELEASE,
+            MotorHat.MOTOR_STATE_RELEASE, MotorHat.MOTOR_STATE_RELEASE};
+    private final int[] mMotorSpeeds = new int[ALL_MOTORS.length];
 
     private TricolorLed mLed;
     private LedPatternBlinker mBlinker;
@@ -53,25 +86,142 @@ public class CarController {
     private HandlerThread mHandlerThread;
     private Handler mHandler;
 
-    public CarController(MotorHat motorHat, TricolorLed led, AlphanumericDisplay display) {
-        mMotorHat = motorHat;
+    // Motor commands get their own high priority thread so they never queue up behind LED and
+    // display updates (or anything else on the main thread).
+    private HandlerThread mMotorThread;
+    private Handler mMotorHandler;
+    private HandlerExecutor mMotorExecutor;
+    // Identifies scheduled work in the motor handler's queue; the count is motor thread only.
+    private final Object mScheduledToken = new Object();
+    private int mScheduledCount;
+
+    public CarController(MotorDriver motorDriver, TricolorLed led, AlphanumericDisplay display) {
+        mMotorDriver = motorDriver;
         mLed = led;
         mDisplay = display;
 
         mHandlerThread = new HandlerThread("CarController-worker");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
+
+        mMotorThread = new HandlerThread("CarController-motor",
+                Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mMotorThread.start();
+        mMotorHandler = new Handler(mMotorThread.getLooper());
+        mMotorExecutor = new HandlerExecutor(mMotorHandler);
     }
 
     public void shutDown() {
-        stop();
+        // Stop after any commands that are already queued, then wait so the motors are released
+        // before the caller closes the motor driver.
+        mMotorExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        });
+        mMotorThread.quitSafely();
+        try {
+            mMotorThread.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         clearBlinker();
         mHandlerThread.quit();
     }
 
+    /**
+     * Returns the executor that motor commands should run on. {@link #onCarCommand(int)} is not
+     * thread safe and should only be called from this executor.
+     */
+    public Executor getMotorExecutor() {
+        return mMotorExecutor;
+    }
+
+    /**
+     * Returns a handler for the motor thread, for work that needs to be delayed or cancelled.
+     */
+    public Handler getMotorHandler() {
+        return mMotorHandler;
+    }
+
+    /**
+     * Runs a task on the motor thread at the given {@link SystemClock#elapsedRealtimeNanos()}
+     * time, to well under a millisecond when the thread isn't busy. A time in the past runs the
+     * task right away. Only call on the motor thread.
+     *
+     * @return false if {@link #MAX_SCHEDULED} tasks are already waiting
+     */
+    public boolean runAt(long atNanos, Runnable task) {
+        if (mScheduledCount >= MAX_SCHEDULED) {
+            return false;
+        }
+        mScheduledCount++;
+        long delayMs = (atNanos - SystemClock.elapsedRealtimeNanos() - SCHEDULE_SPIN_NANOS)
+                / 1000000L;
+        mMotorHandler.postAtTime(new ScheduledTask(atNanos, task), mScheduledToken,
+                SystemClock.uptimeMillis() + Math.max(0L, delayMs));
+        return true;
+    }
+
+    /**
+     * Drops all work scheduled with {@link #runAt(long, Runnable)} that hasn't run yet. Takes
+     * effect immediately on the motor thread, otherwise as soon as the motor thread gets to it.
+     */
+    public void cancelScheduled() {
+        if (Looper.myLooper() == mMotorThread.getLooper()) {
+            removeScheduled();
+        } else {
+            mMotorExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    removeScheduled();
+                }
+            });
+        }
+    }
+
+    private void removeScheduled() {
+        if (mScheduledCount > 0) {
+            mMotorHandler.removeCallbacksAndMessages(mScheduledToken);
+            mScheduledCount = 0;
+        }
+    }
+
+    private class ScheduledTask implements Runnable {
+
+        private final long mAtNanos;
+        private final Runnable mTask;
+
+        ScheduledTask(long atNanos, Runnable task) {
+            mAtNanos = atNanos;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            mScheduledCount--;
+            long now = SystemClock.elapsedRealtimeNanos();
+            while (now < mAtNanos) {
+                // At most SCHEDULE_SPIN_NANOS, on a thread that only drives the motors anyway.
+                now = SystemClock.elapsedRealtimeNanos();
+            }
+            SCHEDULE_LATENESS.record((now - mAtNanos) / 1000L);
+            mTask.run();
+        }
+    }
+
     // Motor controls
 
     public boolean onCarCommand(int command) {
+        MOTOR_COMMANDS.increment();
+        long start = SystemClock.elapsedRealtimeNanos();
+        boolean result = applyCarCommand(command);
+        MOTOR_COMMAND_LATENCY.record((SystemClock.elapsedRealtimeNanos() - start) / 1000L);
+        return result;
+    }
+
+    private boolean applyCarCommand(int command) {
         switch (command) {
             case CarCommands.GO_FORWARD:
                 return goForward();
@@ -87,6 +237,20 @@ public class CarController {
         return false;
     }
 
+    /**
+     * Returns the state and speed last written to every motor, packed as 16 bits per motor
+     * (state in the high byte, speed in the low byte) with motor 0 in the lowest bits. Only call
+     * from the motor thread.
+     */
+    public long getMotorFrame() {
+        long frame = 0;
+        for (int motor : ALL_MOTORS) {
+            frame |= (long) ((mMotorStates[motor] & 0xFF) << 8 | (mMotorSpeeds[motor] & 0xFF))
+                    << (16 * motor);
+        }
+        return frame;
+    }
+
     private boolean goForward() {
         return setSpeed(SPEED_NORMAL) && setMotorState(MotorHat.MOTOR_STATE_CW, ALL_MOTORS);
     }
@@ -111,11 +275,14 @@ public class CarController {
         try {
             if (motors != null && motors.length > 0) {
                 for (int motor : motors) {
-                    mMotorHat.setMotorState(motor, state);
+                    I2C_WRITES.increment();
+                    mMotorDriver.setMotorState(motor, state);
+                    mMotorStates[motor] = state;
                 }
             }
             return true;
         } catch (IOException e) {
+            I2C_ERRORS.increment();
             Log.e(TAG, "Error setting motor state", e);
             return false;
         }
@@ -126,13 +293,14 @@ public class CarController {
             setMotorState(MotorHat.MOTOR_STATE_CW, ALL_MOTORS);
 
             for (int motor : insideMotors) {
-                mMotorHat.setMotorSpeed(motor, SPEED_TURNING_INSIDE);
+                writeMotorSpeed(motor, SPEED_TURNING_INSIDE);
             }
             for (int motor : outsideMotors) {
-                mMotorHat.setMotorSpeed(motor, SPEED_TURNING_OUTSIDE);
+                writeMotorSpeed(motor, SPEED_TURNING_OUTSIDE);
             }
             return true;
         } catch (IOException e) {
+            I2C_ERRORS.increment();
             Log.e(TAG, "Error setting motor state", e);
             return false;
         }
@@ -141,15 +309,22 @@ public class CarController {
     private boolean setSpeed(int speed) {
         try {
             for (int motor : ALL_MOTORS) {
-                mMotorHat.setMotorSpeed(motor, speed);
+                writeMotorSpeed(motor, speed);
             }
             return true;
         } catch (IOException e) {
+            I2C_ERRORS.increment();
             Log.e(TAG, "Error setting speed", e);
             return false;
         }
     }
 
+    private void writeMotorSpeed(int motor, int speed) throws IOException {
+        I2C_WRITES.increment();
+        mMotorDriver.setMotorSpeed(motor, speed);
+        mMotorSpeeds[motor] = speed;
+    }
+
     // LED controls
 
     public void setLedColor(final @Tricolor int color) {
@@ -208,8 +383,10 @@ public class CarController {
             mHandler.removeCallbacks(mDisplayRunnable);
             mDisplayRunnable = null;
             try {
+                I2C_WRITES.increment();
                 mDisplay.clear();
             } catch (IOException e) {
+                I2C_ERRORS.increment();
                 Log.d(TAG, "Error clearing display");
             }
         }
@@ -274,8 +451,10 @@ public class CarController {
                 int p = mIndex - i;
                 char c = (p < 0 || p >= mTextSize) ? ' ' : mText.charAt(p);
                 try {
+                    I2C_WRITES.increment();
                     mDisplay.display(c, 3 - i, false);
                 } catch (IOException e) {
+                    I2C_ERRORS.increment();
                     Log.d(TAG, "Error writing to display");
                 }
             }
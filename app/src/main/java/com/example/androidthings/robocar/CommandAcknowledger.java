@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+import com.example.androidthings.robocar.shared.NearbyConnection;
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+import com.example.androidthings.robocar.shared.messaging.Ack;
+import com.example.androidthings.robocar.shared.messaging.Message;
+
+import java.io.PrintWriter;
+
+/**
+ * Tells the companion what happened to its numbered commands with cumulative {@link Ack}s rather
+ * than an echo per command. Everything that happens between two acks (commands received, failed
+ * or applied, by whichever source) is folded into the next one, and acks go out at most once per
+ * interval, so a burst of commands costs a single reply. After a quiet period, the ack for a
+ * command goes out as soon as the motors have been set for it (or it has failed), so it carries
+ * what the car is actually doing. Commands that never reach the motors, e.g. because another
+ * source is driving, are still acknowledged within an interval.
+ * <p>
+ * Not thread safe; all calls must be made on the handler's thread.
+ */
+class CommandAcknowledger {
+
+    private final Handler mHandler;
+    private final long mIntervalMs;
+
+    private NearbyConnection mConnection;
+    private int mSequence;
+    private int mErrors;
+    private byte mCommand;
+    private long mTraceId;
+
+    private boolean mDirty;
+    private boolean mFlushPosted;
+    private long mFlushUptime;
+    private long mLastAckUptime;
+
+    private long mAcksSent;
+    private long mCommandsAcked;
+    private int mSequenceAtLastAck;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFlushPosted = false;
+            flush();
+        }
+    };
+
+    CommandAcknowledger(Handler handler, long intervalMs) {
+        if (handler == null) {
+            throw new IllegalArgumentException("Handler cannot be null");
+        }
+        mHandler = handler;
+        mIntervalMs = intervalMs;
+        setConnection(null);
+    }
+
+    /** Starts acknowledging to the given companion, or to no one, forgetting the previous one. */
+    void setConnection(NearbyConnection connection) {
+        mConnection = connection;
+        mSequence = mSequenceAtLastAck = Message.NO_SEQUENCE;
+        mErrors = 0;
+        mCommand = CarCommands.STOP;
+        mTraceId = Tracer.NO_TRACE_ID;
+        mDirty = false;
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushPosted = false;
+    }
+
+    /** Records that a command from the companion has been processed. */
+    void onCommandReceived(int sequence, long traceId) {
+        if (sequence == Message.NO_SEQUENCE) {
+            return;
+        }
+        int advance = sequence - mSequence;
+        if (advance > 0 || mSequence == Message.NO_SEQUENCE) {
+            mErrors = advance > 0 && advance < Ack.WINDOW ? mErrors << advance : 0;
+            mSequence = sequence;
+        }
+        mTraceId = traceId;
+        // Wait for the command to be applied, so the ack doesn't carry what the car did before.
+        mDirty = true;
+        scheduleFlush(SystemClock.uptimeMillis() + mIntervalMs);
+    }
+
+    /** Records that the command with the given sequence number was dropped or failed. */
+    void onCommandFailed(int sequence) {
+        int distance = mSequence - sequence;
+        if (sequence != Message.NO_SEQUENCE && distance >= 0 && distance < Ack.WINDOW) {
+            mErrors |= 1 << distance;
+            mDirty = true;
+            flushSoon();
+        }
+    }
+
+    /**
+     * Records what the motors are now doing, whichever source asked for it. A failure to apply a
+     * companion command counts against the latest one received, which is the one that was
+     * applied: the rate limiter only ever passes on the newest command.
+     */
+    void onCommandApplied(byte command, boolean success, boolean fromCompanion) {
+        byte current = success ? command : CarCommands.ERROR;
+        if (!success && fromCompanion) {
+            onCommandFailed(mSequence);
+        }
+        if (current != mCommand) {
+            mCommand = current;
+            mDirty = true;
+        }
+        if (mDirty) {
+            flushSoon();
+        }
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "Acks: " + mAcksSent + " sent for " + mCommandsAcked
+                + " commands, last " + new Ack(mSequence, mErrors, mCommand, mTraceId));
+    }
+
+    /** Flushes as soon as the interval since the last ack allows. */
+    private void flushSoon() {
+        scheduleFlush(Math.max(SystemClock.uptimeMillis(), mLastAckUptime + mIntervalMs));
+    }
+
+    /** Makes sure a flush runs no later than the given uptime. */
+    private void scheduleFlush(long uptimeMillis) {
+        if (mFlushPosted) {
+            if (mFlushUptime <= uptimeMillis) {
+                return;
+            }
+            mHandler.removeCallbacks(mFlushRunnable);
+        }
+        mFlushPosted = true;
+        mFlushUptime = uptimeMillis;
+        mHandler.postAtTime(mFlushRunnable, uptimeMillis);
+    }
+
+    private void flush() {
+        if (!mDirty || mConnection == null || !mConnection.isConnected()) {
+            return;
+        }
+        mDirty = false;
+        mLastAckUptime = SystemClock.uptimeMillis();
+        mConnection.sendFrame(new Ack(mSequence, mErrors, mCommand, mTraceId).toFrame());
+        mAcksSent++;
+        mCommandsAcked += mSequence - mSequenceAtLastAck;
+        mSequenceAtLastAck = mSequence;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which command source drives the motors. Every source has a slot holding its latest
+ * command and when it was sent; sources can publish from any thread without locking. Once per
+ * motor frame (and right after any new command) the motor thread picks the highest priority
+ * source whose command hasn't timed out and applies it if it differs from what the motors are
+ * already doing. When no source has a live command, the car stops.
+ */
+class CommandMultiplexer {
+
+    /** Command sources, in priority order. */
+    @IntDef({CommandSource.NONE, CommandSource.ADB, CommandSource.NEARBY,
+            CommandSource.AUTONOMOUS})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface CommandSource {
+        int NONE = -1;
+        int ADB = 0;
+        int NEARBY = 1;
+        int AUTONOMOUS = 2;
+    }
+
+    private static final int SOURCE_COUNT = 3;
+    private static final String[] SOURCE_NAMES = {"adb", "nearby", "autonomous"};
+
+    /** Interval between arbitration passes while any source could still time out. */
+    static final long MOTOR_FRAME_MS = 20L;
+
+    /** Timeout meaning a source's command holds until replaced or cleared. */
+    static final long NO_TIMEOUT = 0L;
+
+    private static final long EMPTY = 0L;
+
+    interface Listener {
+        /**
+         * Called on the motor thread after a command was applied to the motors, with the trace ID
+         * the source sent it with.
+         */
+        void onCommandApplied(@CommandSource int source, byte command, boolean success,
+                long traceId);
+    }
+
+    private final Handler mMotorHandler;
+    private final CarController mCarController;
+    private final Listener mListener;
+
+    // Per source: (elapsedRealtime millis << 8) | command, or EMPTY.
+    private final AtomicLongArray mSlots = new AtomicLongArray(SOURCE_COUNT);
+    // Per source: the trace ID of the command in its slot. Written before the slot, so a trace ID
+    // read after the slot is never older than the command (it may be newer, which is harmless).
+    private final AtomicLongArray mTraceIds = new AtomicLongArray(SOURCE_COUNT);
+    private final AtomicLongArray mTimeoutsMs = new AtomicLongArray(SOURCE_COUNT);
+    private final AtomicBoolean mArbitrationRequested = new AtomicBoolean();
+    private final AtomicLongArray mActivations = new AtomicLongArray(SOURCE_COUNT);
+
+    // Only touched on the motor thread, except for reads of mActiveSource.
+    private volatile int mActiveSource = CommandSource.NONE;
+    private int mAppliedCommand = CarCommands.STOP;
+    private long mAppliedSlot = EMPTY;
+    private boolean mFrameScheduled;
+
+    private final Runnable mArbitrateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mArbitrationRequested.set(false);
+            arbitrate();
+        }
+    };
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFrameScheduled = false;
+            arbitrate();
+        }
+    };
+
+    CommandMultiplexer(Handler motorHandler, CarController carController, Listener listener) {
+        if (motorHandler == null || carController == null || listener == null) {
+            throw new IllegalArgumentException("Arguments cannot be null");
+        }
+        mMotorHandler = motorHandler;
+        mCarController = carController;
+        mListener = listener;
+    }
+
+    /**
+     * Sets how long a command from the given source stays in effect without being renewed, or
+     * {@link #NO_TIMEOUT}. Applies to the command already published, too. Safe to call from any
+     * thread.
+     */
+    void setTimeout(@CommandSource int source, long timeoutMs) {
+        mTimeoutsMs.set(source, timeoutMs);
+    }
+
+    /** Publishes a command from the given source. Safe to call from any thread. */
+    void offer(@CommandSource int source, byte command) {
+        offer(source, command, Tracer.NO_TRACE_ID);
+    }
+
+    /** Publishes a command that is part of the given trace. Safe to call from any thread. */
+    void offer(@CommandSource int source, byte command, long traceId) {
+        mTraceIds.set(source, traceId);
+        mSlots.set(source, (SystemClock.elapsedRealtime() << 8) | (command & 0xFF));
+        requestArbitration();
+    }
+
+    /**
+     * Restarts the timeout of the given source's command, if that is still the given command and
+     * it hasn't timed out yet. Cheaper than offering it again, since nothing needs arbitrating.
+     * Safe to call from any thread.
+     *
+     * @return false if the source has no live command, or a different one
+     */
+    boolean renew(@CommandSource int source, byte command) {
+        long now = SystemClock.elapsedRealtime();
+        long timeout = mTimeoutsMs.get(source);
+        while (true) {
+            long slot = mSlots.get(source);
+            if (slot == EMPTY || (byte) slot != command
+                    || (timeout != NO_TIMEOUT && now - (slot >>> 8) >= timeout)) {
+                return false;
+            }
+            if (mSlots.compareAndSet(source, slot, (now << 8) | (command & 0xFF))) {
+                return true;
+            }
+        }
+    }
+
+    /** Withdraws the given source's command, e.g. when it disconnects. Safe from any thread. */
+    void clear(@CommandSource int source) {
+        mSlots.set(source, EMPTY);
+        requestArbitration();
+    }
+
+    @CommandSource
+    int getActiveSource() {
+        return mActiveSource;
+    }
+
+    static String getSourceName(@CommandSource int source) {
+        return source == CommandSource.NONE ? "none" : SOURCE_NAMES[source];
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        writer.print(prefix + "Command source: " + getSourceName(mActiveSource) + " (activations:");
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            writer.print(" " + SOURCE_NAMES[i] + "=" + mActivations.get(i));
+        }
+        writer.println(")");
+    }
+
+    private void requestArbitration() {
+        if (mArbitrationRequested.compareAndSet(false, true)) {
+            mMotorHandler.post(mArbitrateRunnable);
+        }
+    }
+
+    private void arbitrate() {
+        long now = SystemClock.elapsedRealtime();
+        int winner = CommandSource.NONE;
+        long winnerSlot = EMPTY;
+        byte command = CarCommands.STOP;
+        boolean needsFrame = false;
+        for (int source = 0; source < SOURCE_COUNT; source++) {
+            long slot = mSlots.get(source);
+            if (slot == EMPTY) {
+                continue;
+            }
+            long timeout = mTimeoutsMs.get(source);
+            if (timeout != NO_TIMEOUT && now - (slot >>> 8) >= timeout) {
+                // Expired. Only clear it if it wasn't renewed in the meantime.
+                mSlots.compareAndSet(source, slot, EMPTY);
+                continue;
+            }
+            needsFrame |= timeout != NO_TIMEOUT;
+            if (winner == CommandSource.NONE) {
+                winner = source;
+                winnerSlot = slot;
+                command = (byte) slot;
+            }
+        }
+
+        if (winner != mActiveSource) {
+            if (winner != CommandSource.NONE) {
+                mActivations.incrementAndGet(winner);
+            }
+            mActiveSource = winner;
+        }
+        long traceId = winner == CommandSource.NONE ? Tracer.NO_TRACE_ID : mTraceIds.get(winner);
+        if (command != mAppliedCommand) {
+            Tracer.get().beginSection("onCarCommand", traceId);
+            boolean success;
+            try {
+                success = mCarController.onCarCommand(command);
+            } finally {
+                Tracer.get().endSection();
+            }
+            // On failure, try again the next time this source sends something.
+            mAppliedCommand = success ? command : CarCommands.ERROR;
+            mListener.onCommandApplied(winner, command, success, traceId);
+        } else if (winnerSlot != mAppliedSlot && winner != CommandSource.NONE) {
+            // Same command renewed: the motors are already doing it, just report it.
+            mListener.onCommandApplied(winner, command, true, traceId);
+        }
+        mAppliedSlot = winnerSlot;
+
+        if (needsFrame && !mFrameScheduled) {
+            mFrameScheduled = true;
+            mMotorHandler.postDelayed(mFrameRunnable, MOTOR_FRAME_MS);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket rate limiter in front of the motor path, with one bucket per command source (each
+ * Nearby endpoint, and ADB keys). A command that arrives while its source is out of tokens is not
+ * queued: it replaces any command already waiting for that source, and only the latest one runs
+ * once a token is available. STOP is never limited and discards whatever was
+ * waiting, so a stale command can't run after it.
+ * <p>
+ * Tokens are tracked as the time at which the bucket will be full again, which avoids a refill
+ * timer and floating point math. Not thread safe; all calls must be made on the handler's thread.
+ */
+class CommandRateLimiter {
+
+    static final String SOURCE_ADB = "adb";
+
+    interface Sink {
+        /** Called on the handler's thread when a command from the given source may run. */
+        void onCommandPassed(String source, byte command, long traceId);
+    }
+
+    private final Handler mHandler;
+    private final Sink mSink;
+    private final long mIntervalNanos;
+    private final long mBurstNanos;
+
+    private final Map<String, Bucket> mBuckets = new HashMap<>();
+
+    private final AtomicLong mPassed = new AtomicLong();
+    private final AtomicLong mThrottled = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    /**
+     * @param commandsPerSecond sustained rate allowed for each source
+     * @param burst number of commands a source can send back to back after being idle
+     */
+    CommandRateLimiter(Handler handler, int commandsPerSecond, int burst, Sink sink) {
+        if (handler == null || sink == null) {
+            throw new IllegalArgumentException("Handler and sink cannot be null");
+        }
+        if (commandsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        mHandler = handler;
+        mSink = sink;
+        mIntervalNanos = 1000000000L / commandsPerSecond;
+        mBurstNanos = mIntervalNanos * (burst - 1);
+    }
+
+    void submit(String source, byte command, long traceId) {
+        Bucket bucket = mBuckets.get(source);
+        if (bucket == null) {
+            bucket = new Bucket(source);
+            mBuckets.put(source, bucket);
+        }
+
+        if (command == CarCommands.STOP) {
+            bucket.cancelPending();
+            pass(source, command, traceId);
+            return;
+        }
+
+        if (bucket.mPending != Bucket.NONE) {
+            // Already waiting for a token; the newest command wins.
+            bucket.mPending = command;
+            bucket.mPendingTraceId = traceId;
+            mThrottled.incrementAndGet();
+            mCoalesced.incrementAndGet();
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtimeNanos();
+        long waitNanos = bucket.tryAcquire(now);
+        if (waitNanos == 0) {
+            pass(source, command, traceId);
+        } else {
+            bucket.mPending = command;
+            bucket.mPendingTraceId = traceId;
+            mThrottled.incrementAndGet();
+            mHandler.postDelayed(bucket, (waitNanos + 999999L) / 1000000L);
+        }
+    }
+
+    /**
+     * Forgets a source, e.g. when a Nearby endpoint disconnects. A command it had waiting is
+     * discarded.
+     */
+    void removeSource(String source) {
+        Bucket bucket = mBuckets.remove(source);
+        if (bucket != null) {
+            bucket.cancelPending();
+        }
+    }
+
+    private void pass(String source, byte command, long traceId) {
+        mPassed.incrementAndGet();
+        mSink.onCommandPassed(source, command, traceId);
+    }
+
+    long getPassedCount() {
+        return mPassed.get();
+    }
+
+    /** Commands that had to wait for a token, including those that were coalesced. */
+    long getThrottledCount() {
+        return mThrottled.get();
+    }
+
+    /** Commands that were replaced by a newer one before they could run. */
+    long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "Command rate limiter: passed=" + mPassed.get()
+                + " throttled=" + mThrottled.get() + " coalesced=" + mCoalesced.get());
+    }
+
+    private class Bucket implements Runnable {
+
+        static final int NONE = Integer.MIN_VALUE;
+
+        final String mSource;
+        // The time at which the bucket is full again; tokens = (now + burst - full) / interval.
+        long mFullAtNanos;
+        int mPending = NONE;
+        long mPendingTraceId;
+
+        Bucket(String source) {
+            mSource = source;
+        }
+
+        /**
+         * Takes a token if there is one.
+         *
+         * @return 0 if a token was taken, otherwise how long until one is available
+         */
+        long tryAcquire(long now) {
+            long fullAt = Math.max(mFullAtNanos, now);
+            long waitNanos = fullAt - mBurstNanos - now;
+            if (waitNanos > 0) {
+                return waitNanos;
+            }
+            mFullAtNanos = fullAt + mIntervalNanos;
+            return 0;
+        }
+
+        void cancelPending() {
+            if (mPending != NONE) {
+                mHandler.removeCallbacks(this);
+                mPending = NONE;
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mPending == NONE) {
+                return;
+            }
+            long waitNanos = tryAcquire(SystemClock.elapsedRealtimeNanos());
+            if (waitNanos > 0) {
+                // Woke up early; Handler delays only have millisecond resolution.
+                mHandler.postDelayed(this, (waitNanos + 999999L) / 1000000L);
+                return;
+            }
+            byte command = (byte) mPending;
+            mPending = NONE;
+            pass(mSource, command, mPendingTraceId);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import android.util.Log;
+
+/**
+ * {@link MotorDriver} that doesn't touch any hardware, for replaying recordings on a bench or
+ * on a board without a Motor HAT.
+ */
+public class FakeMotorDriver implements MotorDriver {
+
+    private static final String TAG = "FakeMotorDriver";
+
+    private final boolean mVerbose;
+
+    /**
+     * @param verbose whether to log every write, which is too slow for accelerated replay
+     */
+    public FakeMotorDriver(boolean verbose) {
+        mVerbose = verbose;
+    }
+
+    @Override
+    public void setMotorState(int motor, int state) {
+        if (mVerbose) {
+            Log.d(TAG, "Motor " + motor + " state " + state);
+        }
+    }
+
+    @Override
+    public void setMotorSpeed(int motor, int speed) {
+        if (mVerbose) {
+            Log.d(TAG, "Motor " + motor + " speed " + speed);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Black box for motor commands. Records go into a fixed-size ring in a memory-mapped file, so
+ * writing one is a handful of stores into the page cache: no system calls, no allocation and no
+ * fsync. The kernel writes the pages back on its own schedule, and they survive the app crashing.
+ * <p>
+ * File layout, little endian:
+ * <pre>
+ * header (32 bytes): magic, version, record size, capacity (ints), records written (long), 0
+ * record (24 bytes): elapsedRealtimeNanos, motor frame or wall clock (longs),
+ *                    endpoint hash (int), kind, source, command, success (bytes)
+ * </pre>
+ * Record {@code n} lives in slot {@code n % capacity}. Every time the recorder is opened it
+ * writes a {@link #KIND_SESSION} record holding the wall clock time, since elapsed times from
+ * different boots can't be compared.
+ * <p>
+ * Writing is not thread safe; only record from the motor thread.
+ */
+public class FlightRecorder implements AutoCloseable {
+
+    private static final String TAG = "FlightRecorder";
+
+    public static final int KIND_SESSION = 0;
+    /** A command as it arrived, before rate limiting and arbitration. */
+    public static final int KIND_RECEIVED = 1;
+    /** A command that was applied to the motors, with the resulting motor frame. */
+    public static final int KIND_APPLIED = 2;
+
+    private static final int MAGIC = 0x52434652; // RCFR
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 24;
+    private static final int OFFSET_COUNT = 16;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private long mCount;
+
+    /**
+     * Opens or creates a recording, continuing after any records it already holds.
+     *
+     * @param capacity number of records kept before the oldest are overwritten
+     */
+    public static FlightRecorder open(File file, int capacity) throws IOException {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        return new FlightRecorder(file, capacity);
+    }
+
+    private FlightRecorder(File file, int capacity) throws IOException {
+        mCapacity = capacity;
+        mFile = new RandomAccessFile(file, "rw");
+        try {
+            long size = HEADER_SIZE + (long) RECORD_SIZE * capacity;
+            mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (mBuffer.getInt(0) == MAGIC && mBuffer.getInt(4) == VERSION
+                && mBuffer.getInt(8) == RECORD_SIZE && mBuffer.getInt(12) == capacity) {
+            mCount = mBuffer.getLong(OFFSET_COUNT);
+        } else {
+            Log.d(TAG, "Starting a new recording in " + file);
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(8, RECORD_SIZE);
+            mBuffer.putInt(12, capacity);
+            mCount = 0;
+        }
+        write(KIND_SESSION, 0, 0, (byte) 0, true, System.currentTimeMillis());
+    }
+
+    public void recordReceived(int source, String endpointId, byte command) {
+        write(KIND_RECEIVED, source, endpointId == null ? 0 : endpointId.hashCode(), command,
+                true, 0);
+    }
+
+    public void recordApplied(int source, byte command, boolean success, long motorFrame) {
+        write(KIND_APPLIED, source, 0, command, success, motorFrame);
+    }
+
+    private void write(int kind, int source, int endpointHash, byte command, boolean success,
+            long value) {
+        int offset = HEADER_SIZE + (int) (mCount % mCapacity) * RECORD_SIZE;
+        mBuffer.putLong(offset, SystemClock.elapsedRealtimeNanos());
+        mBuffer.putLong(offset + 8, value);
+        mBuffer.putInt(offset + 16, endpointHash);
+        mBuffer.put(offset + 20, (byte) kind);
+        mBuffer.put(offset + 21, (byte) source);
+        mBuffer.put(offset + 22, command);
+        mBuffer.put(offset + 23, (byte) (success ? 1 : 0));
+        mBuffer.putLong(OFFSET_COUNT, ++mCount);
+    }
+
+    public long getRecordCount() {
+        return mCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Deliberately no force(): the kernel writes the mapped pages back by itself.
+        mFile.close();
+    }
+
+    /**
+     * Reads every record still held in a recording, oldest first.
+     */
+    public static List<Record> read(File file) throws IOException {
+        ByteBuffer buffer;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+        } finally {
+            in.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION || buffer.getInt(8) != RECORD_SIZE) {
+            throw new IOException("Not a flight recording: " + file);
+        }
+        int capacity = buffer.getInt(12);
+        long count = buffer.getLong(OFFSET_COUNT);
+        if (buffer.capacity() < HEADER_SIZE + (long) RECORD_SIZE * capacity) {
+            throw new IOException("Truncated flight recording: " + file);
+        }
+
+        long first = Math.max(0, count - capacity);
+        List<Record> records = new ArrayList<>((int) (count - first));
+        for (long n = first; n < count; n++) {
+            int offset = HEADER_SIZE + (int) (n % capacity) * RECORD_SIZE;
+            records.add(new Record(buffer.getLong(offset), buffer.getLong(offset + 8),
+                    buffer.getInt(offset + 16), buffer.get(offset + 20), buffer.get(offset + 21),
+                    buffer.get(offset + 22), buffer.get(offset + 23) != 0));
+        }
+        return records;
+    }
+
+    public static class Record {
+        public final long mElapsedNanos;
+        /** The motor frame for {@link #KIND_APPLIED}, wall clock millis for KIND_SESSION. */
+        public final long mValue;
+        public final int mEndpointHash;
+        public final int mKind;
+        public final int mSource;
+        public final byte mCommand;
+        public final boolean mSuccess;
+
+        Record(long elapsedNanos, long value, int endpointHash, int kind, int source,
+                byte command, boolean success) {
+            mElapsedNanos = elapsedNanos;
+            mValue = value;
+            mEndpointHash = endpointHash;
+            mKind = kind;
+            mSource = source;
+            mCommand = command;
+            mSuccess = success;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Feeds the applied commands from a {@link FlightRecorder} recording back through
+ * {@link CarController#onCarCommand(int)} with their original spacing, optionally sped up. Gaps
+ * between sessions are skipped. Combined with {@link FakeMotorDriver} this replays an incident
+ * or a benchmark workload without a car.
+ */
+class FlightReplayer {
+
+    private static final String TAG = "FlightReplayer";
+
+    private final Handler mMotorHandler;
+    private final CarController mCarController;
+    private final byte[] mCommands;
+    private final long[] mOffsetsNanos;
+    private final float mSpeed;
+
+    private long mStartNanos;
+    private int mNext;
+    private long mLateNanos;
+
+    private final Runnable mStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            step();
+        }
+    };
+
+    /**
+     * @param speed 1 for real time, higher to replay faster
+     */
+    FlightReplayer(List<FlightRecorder.Record> records, Handler motorHandler,
+            CarController carController, float speed) {
+        if (speed <= 0) {
+            throw new IllegalArgumentException("Speed must be positive");
+        }
+        mMotorHandler = motorHandler;
+        mCarController = carController;
+        mSpeed = speed;
+
+        int count = 0;
+        for (FlightRecorder.Record record : records) {
+            if (record.mKind == FlightRecorder.KIND_APPLIED) {
+                count++;
+            }
+        }
+        mCommands = new byte[count];
+        mOffsetsNanos = new long[count];
+        long offset = 0;
+        long previous = -1;
+        int i = 0;
+        for (FlightRecorder.Record record : records) {
+            if (record.mKind == FlightRecorder.KIND_SESSION) {
+                previous = -1; // a new boot; its clock has nothing to do with the last one
+            } else if (record.mKind == FlightRecorder.KIND_APPLIED) {
+                if (previous >= 0) {
+                    offset += (long) ((record.mElapsedNanos - previous) / speed);
+                }
+                previous = record.mElapsedNanos;
+                mCommands[i] = record.mCommand;
+                mOffsetsNanos[i] = offset;
+                i++;
+            }
+        }
+    }
+
+    /** Starts replaying. Call on any thread. */
+    void start() {
+        Log.d(TAG, "Replaying " + mCommands.length + " commands at " + mSpeed + "x");
+        mMotorHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mNext = 0;
+                mLateNanos = 0;
+                mStartNanos = SystemClock.elapsedRealtimeNanos();
+                step();
+            }
+        });
+    }
+
+    void stop() {
+        mMotorHandler.removeCallbacks(mStepRunnable);
+    }
+
+    private void step() {
+        long elapsed = SystemClock.elapsedRealtimeNanos() - mStartNanos;
+        while (mNext < mCommands.length && mOffsetsNanos[mNext] <= elapsed) {
+            mLateNanos = Math.max(mLateNanos, elapsed - mOffsetsNanos[mNext]);
+            mCarController.onCarCommand(mCommands[mNext++]);
+            elapsed = SystemClock.elapsedRealtimeNanos() - mStartNanos;
+        }
+        if (mNext < mCommands.length) {
+            long waitMs = (mOffsetsNanos[mNext] - elapsed) / 1000000L;
+            mMotorHandler.postDelayed(mStepRunnable, waitMs);
+        } else {
+            Log.d(TAG, "Replay finished in " + (elapsed / 1000000L) + "ms, worst lateness "
+                    + (mLateNanos / 1000L) + "us");
+        }
+    }
+}
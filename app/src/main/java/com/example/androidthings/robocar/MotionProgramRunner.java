@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.androidthings.robocar.CommandMultiplexer.CommandSource;
+import com.example.androidthings.robocar.TricolorLed.Tricolor;
+import com.example.androidthings.robocar.shared.CarCommands;
+import com.example.androidthings.robocar.shared.program.MotionProgram;
+
+import java.io.PrintWriter;
+
+/**
+ * Interprets a {@link MotionProgram} on the motor thread. Motor commands go to the multiplexer as
+ * the AUTONOMOUS source, so a person driving always takes precedence. Waits are measured from when
+ * the program started rather than from when the previous step happened to run, so timing errors
+ * don't add up over a long route, and each step is fired with {@link CarController#runAt}.
+ * <p>
+ * Not thread safe; all calls must be made on the motor thread.
+ */
+class MotionProgramRunner {
+
+    private static final String TAG = "MotionProgramRunner";
+
+    interface Listener {
+        /**
+         * Called on the motor thread when the program sets the LED. The LED is owned by the main
+         * thread, so the change has to be made there.
+         */
+        void onLedColor(@Tricolor int color);
+
+        /** Called on the motor thread when a program ends, whether it completed or not. */
+        void onProgramFinished(boolean completed);
+    }
+
+    private final CarController mCarController;
+    private final CommandMultiplexer mMultiplexer;
+    private final Listener mListener;
+
+    private MotionProgram mProgram;
+    private int mPc;
+    private final int[] mLoopStarts = new int[MotionProgram.MAX_LOOP_DEPTH];
+    private final int[] mLoopRemaining = new int[MotionProgram.MAX_LOOP_DEPTH];
+    private int mLoopDepth;
+    private long mNextStepNanos;
+    // Bumped whenever a program starts or stops, so steps scheduled for an older one don't run.
+    private int mGeneration;
+
+    private long mStarted;
+    private long mCompleted;
+    private long mCancelled;
+
+    MotionProgramRunner(CarController carController, CommandMultiplexer multiplexer,
+            Listener listener) {
+        if (carController == null || multiplexer == null || listener == null) {
+            throw new IllegalArgumentException("Arguments cannot be null");
+        }
+        mCarController = carController;
+        mMultiplexer = multiplexer;
+        mListener = listener;
+    }
+
+    /** Starts a program, replacing any that is running. */
+    void start(MotionProgram program) {
+        if (mProgram != null) {
+            finish(false);
+        }
+        mProgram = program;
+        mPc = 0;
+        mLoopDepth = 0;
+        mNextStepNanos = SystemClock.elapsedRealtimeNanos();
+        mStarted++;
+        step();
+    }
+
+    /** Stops the running program, if any, and the motors with it. */
+    void cancel() {
+        if (mProgram != null) {
+            finish(false);
+        }
+    }
+
+    boolean isRunning() {
+        return mProgram != null;
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "Motion programs: " + (mProgram != null ? "running at " + mPc
+                : "idle") + " (started=" + mStarted + " completed=" + mCompleted
+                + " cancelled=" + mCancelled + ")");
+    }
+
+    /** Runs instructions up to the next wait or the end of the program. */
+    private void step() {
+        byte[] code = mProgram.mCode;
+        while (mPc < code.length) {
+            byte opcode = code[mPc];
+            switch (opcode) {
+                case MotionProgram.OP_STOP:
+                    mMultiplexer.offer(CommandSource.AUTONOMOUS, CarCommands.STOP);
+                    break;
+                case MotionProgram.OP_DRIVE:
+                case MotionProgram.OP_TURN:
+                    mMultiplexer.offer(CommandSource.AUTONOMOUS, code[mPc + 1]);
+                    break;
+                case MotionProgram.OP_LED:
+                    // Same bit layout as the Tricolor constants.
+                    mListener.onLedColor(code[mPc + 1]);
+                    break;
+                case MotionProgram.OP_LOOP:
+                    mLoopStarts[mLoopDepth] = mPc + 2;
+                    mLoopRemaining[mLoopDepth] = code[mPc + 1] & 0xFF;
+                    mLoopDepth++;
+                    break;
+                case MotionProgram.OP_END_LOOP:
+                    int remaining = mLoopRemaining[mLoopDepth - 1];
+                    if (remaining == MotionProgram.LOOP_FOREVER || --remaining > 0) {
+                        mLoopRemaining[mLoopDepth - 1] = remaining;
+                        mPc = mLoopStarts[mLoopDepth - 1];
+                        continue;
+                    }
+                    mLoopDepth--;
+                    break;
+                case MotionProgram.OP_WAIT:
+                    int waitMs = MotionProgram.getWaitMs(code, mPc);
+                    mPc += MotionProgram.getInstructionLength(opcode);
+                    if (waitMs > 0) {
+                        mNextStepNanos += waitMs * 1000000L;
+                        scheduleStep();
+                        return;
+                    }
+                    continue;
+            }
+            mPc += MotionProgram.getInstructionLength(opcode);
+        }
+        finish(true);
+    }
+
+    private void scheduleStep() {
+        final int generation = mGeneration;
+        boolean scheduled = mCarController.runAt(mNextStepNanos, new Runnable() {
+            @Override
+            public void run() {
+                if (generation == mGeneration && mProgram != null) {
+                    step();
+                }
+            }
+        });
+        if (!scheduled) {
+            Log.w(TAG, "Couldn't schedule the next step, stopping the program");
+            finish(false);
+        }
+    }
+
+    private void finish(boolean completed) {
+        mProgram = null;
+        mGeneration++;
+        if (completed) {
+            mCompleted++;
+        } else {
+            mCancelled++;
+        }
+        // With nothing from this source, the motors stop unless someone else is driving.
+        mMultiplexer.clear(CommandSource.AUTONOMOUS);
+        mListener.onProgramFinished(completed);
+    }
+}
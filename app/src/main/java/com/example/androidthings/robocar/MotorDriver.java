@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import java.io.IOException;
+
+/**
+ * The motor outputs CarController drives. States are the {@code MotorHat.MOTOR_STATE_*}
+ * constants and speeds range from 0 to 255.
+ */
+public interface MotorDriver extends AutoCloseable {
+
+    void setMotorState(int motor, int state) throws IOException;
+
+    void setMotorSpeed(int motor, int speed) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
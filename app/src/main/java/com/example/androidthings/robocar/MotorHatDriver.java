@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import com.google.android.things.contrib.driver.motorhat.MotorHat;
+
+import java.io.IOException;
+
+/**
+ * {@link MotorDriver} backed by an Adafruit Motor HAT on I2C.
+ */
+public class MotorHatDriver implements MotorDriver {
+
+    private final MotorHat mMotorHat;
+
+    public MotorHatDriver(String i2cBus) throws IOException {
+        mMotorHat = new MotorHat(i2cBus);
+    }
+
+    @Override
+    public void setMotorState(int motor, int state) throws IOException {
+        mMotorHat.setMotorState(motor, state);
+    }
+
+    @Override
+    public void setMotorSpeed(int motor, int speed) throws IOException {
+        mMotorHat.setMotorSpeed(motor, speed);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mMotorHat.close();
+    }
+}
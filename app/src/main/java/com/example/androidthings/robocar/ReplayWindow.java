@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import com.example.androidthings.robocar.shared.messaging.Message;
+
+/**
+ * Sliding window replay check over sequence numbers, as IPsec does it: accepts each sequence
+ * number once, as long as it is no more than {@link #WINDOW} - 1 behind the highest one seen.
+ * A bitmap records which numbers in the window have been seen, so the check is a few shifts
+ * whatever the window size.
+ * <p>
+ * Not thread safe.
+ */
+class ReplayWindow {
+
+    static final int WINDOW = 64;
+
+    private int mHighest = Message.NO_SEQUENCE;
+    // Bit i set if sequence number mHighest - i has been seen.
+    private long mSeen;
+
+    /** Returns true, and remembers it, if the sequence number hasn't been seen before. */
+    boolean accept(int sequence) {
+        if (sequence == Message.NO_SEQUENCE) {
+            return false;
+        }
+        if (mHighest == Message.NO_SEQUENCE) {
+            mHighest = sequence;
+            mSeen = 1;
+            return true;
+        }
+        // Compared by difference, so wrapping around is harmless.
+        int advance = sequence - mHighest;
+        if (advance > 0) {
+            mSeen = advance < WINDOW ? (mSeen << advance) | 1 : 1;
+            mHighest = sequence;
+            return true;
+        }
+        if (advance <= -WINDOW || (mSeen & (1L << -advance)) != 0) {
+            return false;
+        }
+        mSeen |= 1L << -advance;
+        return true;
+    }
+
+    /** Forgets everything, e.g. for a new connection, whose sequence numbers start over. */
+    void reset() {
+        mHighest = Message.NO_SEQUENCE;
+        mSeen = 0;
+    }
+}
@@ -18,30 +18,46 @@ package com.example.androidthings.robocar;
 
 import android.arch.lifecycle.Observer;
 import android.arch.lifecycle.ViewModelProviders;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.KeyEvent;
 
+import com.example.androidthings.robocar.CommandMultiplexer.CommandSource;
+import com.example.androidthings.robocar.TricolorLed.Tricolor;
 import com.example.androidthings.robocar.shared.CarCommands;
+import com.example.androidthings.robocar.shared.ClockSync;
 import com.example.androidthings.robocar.shared.ConnectorFragment;
 import com.example.androidthings.robocar.shared.ConnectorFragment.ConnectorCallbacks;
+import com.example.androidthings.robocar.shared.PairingStore;
 import com.example.androidthings.robocar.shared.PreferenceUtils;
+import com.example.androidthings.robocar.shared.diagnostics.EventRing;
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+import com.example.androidthings.robocar.shared.messaging.Capabilities;
+import com.example.androidthings.robocar.shared.messaging.CommandAuthenticator;
+import com.example.androidthings.robocar.shared.messaging.Message;
+import com.example.androidthings.robocar.shared.messaging.MessageBus;
+import com.example.androidthings.robocar.shared.messaging.MessageBus.MessageListener;
+import com.example.androidthings.robocar.shared.messaging.MessageType;
+import com.example.androidthings.robocar.shared.metrics.Counter;
+import com.example.androidthings.robocar.shared.metrics.Gauge;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
 import com.example.androidthings.robocar.shared.model.AdvertisingInfo;
-import com.google.android.things.contrib.driver.motorhat.MotorHat;
+import com.example.androidthings.robocar.shared.program.MotionProgram;
 import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
-import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
 import com.google.android.things.contrib.driver.button.Button.LogicState;
 import com.google.android.things.contrib.driver.button.ButtonInputDriver;
 import com.google.android.things.contrib.driver.ht16k33.AlphanumericDisplay;
 
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
 
 
 public class RobocarActivity extends AppCompatActivity implements ConnectorCallbacks {
@@ -50,16 +66,59 @@ public class RobocarActivity extends AppCompatActivity implements ConnectorCallb
     private static final long DISCONNECT_DELAY = 2500L; //ms
     private static final long RESET_DELAY = 5000L; //ms
 
+    // Per command source. Well above what a person can tap, well below what floods I2C.
+    private static final int MAX_COMMANDS_PER_SECOND = 20;
+    private static final int MAX_COMMAND_BURST = 5;
+    // ADB keys take over from the companion, but only while someone is pressing them.
+    private static final long ADB_COMMAND_TIMEOUT_MS = 3000L;
+    // A held command stops the car once this many renewals in a row have gone missing.
+    private static final long HELD_COMMAND_TIMEOUT_MS = 4 * Message.HELD_RENEWAL_INTERVAL_MS;
+
+    // Commands can be sent ahead of time, but not so far that a stale one surprises anyone.
+    private static final long MAX_SCHEDULE_AHEAD_NANOS = 60000000000L;
+
+    // Companions that number their commands get at most one acknowledgement per interval.
+    private static final long ACK_INTERVAL_MS = 100L;
+
+    private static final String METRIC_ACTIVE_SOURCE = "robocar_active_command_source";
+    private static final Counter COMMANDS_REJECTED = MetricsRegistry.getDefault().counter(
+            "robocar_commands_rejected_total",
+            "Commands and programs with no key, a bad MAC or a replayed sequence");
+
+    // adb shell dumpsys activity com.example.androidthings.robocar/.RobocarActivity bench-auth
+    private static final String DUMP_BENCHMARK_AUTH = "bench-auth";
+    private static final int BENCHMARK_AUTH_ITERATIONS = 100000;
+
+    private static final String FLIGHT_RECORDING_FILE = "flight_recording.bin";
+    private static final int FLIGHT_RECORDER_CAPACITY = 16384; // records, 24 bytes each
+
+    // Replay a flight recording instead of taking commands, e.g.
+    // adb shell am start -n com.example.androidthings.robocar/.RobocarActivity \
+    //     --es replay /data/data/com.example.androidthings.robocar/files/flight_recording.bin \
+    //     --ef replay_speed 4 --ez fake_motors true
+    private static final String EXTRA_REPLAY_FILE = "replay";
+    private static final String EXTRA_REPLAY_SPEED = "replay_speed";
+    private static final String EXTRA_FAKE_MOTORS = "fake_motors";
+
     private AdvertisingInfo mAdvertisingInfo;
     private RobocarAdvertiser mNearbyAdvertiser;
-    private CompanionConnection mCompanionConnection;
+    // Read from the motor thread when replying to commands.
+    private volatile CompanionConnection mCompanionConnection;
 
-    private MotorHat mMotorHat;
+    private MotorDriver mMotorDriver;
     private TricolorLed mLed;
     private AlphanumericDisplay mDisplay;
     private ButtonInputDriver mButtonInputDriver;
 
     private CarController mCarController;
+    private CommandRateLimiter mRateLimiter;
+    private CommandMultiplexer mMultiplexer;
+    private MotionProgramRunner mProgramRunner;
+    private CommandAcknowledger mAcknowledger;
+    // Only touched on the motor thread.
+    private final ReplayWindow mReplayWindow = new ReplayWindow();
+    private FlightRecorder mFlightRecorder;
+    private FlightReplayer mFlightReplayer;
     private RobocarViewModel mViewModel;
 
     private boolean mIsAdvertising;
@@ -67,46 +126,164 @@ public class RobocarActivity extends AppCompatActivity implements ConnectorCallb
     private Handler mResetHandler;
     private boolean mKeyPressed;
 
-    PayloadCallback mPayloadListener = new PayloadCallback() {
+    // Runs on the CarController motor thread.
+    MessageListener mCommandListener = new MessageListener() {
         @Override
-        public void onPayloadReceived(String s, Payload payload) {
-            byte[] bytes = CarCommands.fromPayload(payload);
-            if (bytes == null || bytes.length == 0) {
+        public void onMessageReceived(Message message) {
+            if (!authenticate(message)) {
                 return;
             }
+            byte command = message.getCommand();
+            long traceId = message.getTraceId();
+            int sequence = message.getSequence();
+            Log.d(TAG, "onMessageReceived: Command: " + command);
+            Tracer.get().beginSection("onCommand", traceId);
+            try {
+                boolean held = message.isHeld();
+                if (held && mMultiplexer.renew(CommandSource.NEARBY, command)) {
+                    // A renewal of the held command only moves its deadline.
+                    mAcknowledger.onCommandReceived(sequence, traceId);
+                    return;
+                }
+                // Whoever takes the controls ends the program the car was running.
+                mProgramRunner.cancel();
+                if (mFlightRecorder != null) {
+                    mFlightRecorder.recordReceived(CommandSource.NEARBY, message.mEndpointId,
+                            command);
+                }
+                mAcknowledger.onCommandReceived(sequence, traceId);
+                // A held command stops unless renewed; any other holds until replaced.
+                mMultiplexer.setTimeout(CommandSource.NEARBY,
+                        held ? HELD_COMMAND_TIMEOUT_MS : CommandMultiplexer.NO_TIMEOUT);
+                long executeAt = message.getExecuteAtNanos();
+                if (executeAt == Message.EXECUTE_NOW) {
+                    // Same for commands that were sent ahead and are still waiting.
+                    mCarController.cancelScheduled();
+                    mRateLimiter.submit(message.mEndpointId, command, traceId);
+                } else if (!scheduleCommand(message.mEndpointId, command, traceId, executeAt)) {
+                    mAcknowledger.onCommandFailed(sequence);
+                }
+            } finally {
+                Tracer.get().endSection();
+            }
+        }
+    };
 
-            byte command = bytes[0];
-            Log.d(TAG, "onPayloadReceived: Command: " + command);
-            byte response = CarCommands.ERROR;
-            if (mCarController != null && mCarController.onCarCommand(command)) {
-                response = command;
+    // Runs on the CarController motor thread.
+    MessageListener mProgramListener = new MessageListener() {
+        @Override
+        public void onMessageReceived(Message message) {
+            // A program drives the car as much as a command does, so it is signed the same way.
+            if (!authenticate(message)) {
+                return;
             }
-            mCompanionConnection.sendCommand(response);
-            if (response == CarCommands.ERROR) {
-                // TODO flash red
+            MotionProgram program = MotionProgram.decode(message);
+            if (program == null) {
+                Log.w(TAG, "Rejecting invalid motion program from " + message.mEndpointId);
+                CompanionConnection connection = mCompanionConnection;
+                if (connection != null && connection.isConnected()) {
+                    connection.sendCommand(CarCommands.ERROR);
+                }
+                return;
             }
+            Log.d(TAG, "Running motion program of " + program.mCode.length + " bytes");
+            // The companion's last command never times out and would outrank the program.
+            mMultiplexer.clear(CommandSource.NEARBY);
+            mProgramRunner.start(program);
+        }
+    };
+
+    // Runs on the CarController motor thread.
+    MotionProgramRunner.Listener mProgramRunnerListener = new MotionProgramRunner.Listener() {
+        @Override
+        public void onLedColor(final @Tricolor int color) {
+            // The LED blinker belongs to the main thread.
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCarController != null) {
+                        mCarController.setLedColor(color);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onProgramFinished(boolean completed) {
+            Log.d(TAG, "Motion program " + (completed ? "completed" : "cancelled"));
+            // Programs may change the LED; put back the one that shows our state.
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCarController != null) {
+                        updateUi();
+                    }
+                }
+            });
+        }
+    };
+
+    // Runs on the CarController motor thread.
+    CommandRateLimiter.Sink mCommandSink = new CommandRateLimiter.Sink() {
+        @Override
+        public void onCommandPassed(String source, byte command, long traceId) {
+            mMultiplexer.offer(CommandRateLimiter.SOURCE_ADB.equals(source)
+                    ? CommandSource.ADB : CommandSource.NEARBY, command, traceId);
         }
+    };
 
+    // Runs on the CarController motor thread.
+    CommandMultiplexer.Listener mCommandAppliedListener = new CommandMultiplexer.Listener() {
         @Override
-        public void onPayloadTransferUpdate(String s, PayloadTransferUpdate payloadTransferUpdate) {
+        public void onCommandApplied(@CommandSource int source, byte command, boolean success,
+                long traceId) {
+            if (mFlightRecorder != null) {
+                mFlightRecorder.recordApplied(source, command, success,
+                        mCarController.getMotorFrame());
+            }
+            // Tell the companion what the car is actually doing, whoever is driving. Companions
+            // that understand acks get it folded into the next one instead of an echo.
+            byte response = success ? command : CarCommands.ERROR;
+            CompanionConnection connection = mCompanionConnection;
+            if (connection != null && connection.isConnected()) {
+                if (connection.getPeerCapabilities().supportsMessageType(MessageType.ACK)) {
+                    mAcknowledger.onCommandApplied(command, success,
+                            source == CommandSource.NEARBY);
+                } else {
+                    connection.sendCommand(response, traceId);
+                }
+            }
+            if (response == CarCommands.ERROR) {
+                // TODO flash red
+            }
         }
     };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        EventRing.get().installCrashHandler(getFilesDir());
         // init AdvertisingInfo
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        mAdvertisingInfo = PreferenceUtils.loadAdvertisingInfo(prefs);
+        PairingStore pairingStore = PairingStore.get(this);
+        if (!pairingStore.exists()) {
+            PreferenceUtils.migrateToPairingStore(
+                    PreferenceManager.getDefaultSharedPreferences(this), pairingStore, true);
+        }
+        mAdvertisingInfo = pairingStore.getLocalRobocar();
         if (mAdvertisingInfo == null) {
             mAdvertisingInfo = AdvertisingInfo.generateAdvertisingInfo();
-            PreferenceUtils.saveAdvertisingInfo(prefs, mAdvertisingInfo);
+            pairingStore.edit().setLocal(mAdvertisingInfo).apply();
         }
 
-        try {
-            mMotorHat = new MotorHat(BoardDefaults.getI2cBus());
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to create MotorHat", e);
+        String replayFile = getIntent().getStringExtra(EXTRA_REPLAY_FILE);
+        if (getIntent().getBooleanExtra(EXTRA_FAKE_MOTORS, false)) {
+            mMotorDriver = new FakeMotorDriver(false);
+        } else {
+            try {
+                mMotorDriver = new MotorHatDriver(BoardDefaults.getI2cBus());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to create MotorHat", e);
+            }
         }
         try {
             mDisplay = new AlphanumericDisplay(BoardDefaults.getI2cBus());
@@ -129,15 +306,49 @@ public class RobocarActivity extends AppCompatActivity implements ConnectorCallb
 
         String[] ledPins = BoardDefaults.getLedGpioPins();
         mLed = new TricolorLed(ledPins[0], ledPins[1], ledPins[2]);
-        mCarController = new CarController(mMotorHat, mLed, mDisplay);
+        mCarController = new CarController(mMotorDriver, mLed, mDisplay);
+        mRateLimiter = new CommandRateLimiter(mCarController.getMotorHandler(),
+                MAX_COMMANDS_PER_SECOND, MAX_COMMAND_BURST, mCommandSink);
+        mMultiplexer = new CommandMultiplexer(mCarController.getMotorHandler(), mCarController,
+                mCommandAppliedListener);
+        mMultiplexer.setTimeout(CommandSource.ADB, ADB_COMMAND_TIMEOUT_MS);
+        mProgramRunner = new MotionProgramRunner(mCarController, mMultiplexer,
+                mProgramRunnerListener);
+        mAcknowledger = new CommandAcknowledger(mCarController.getMotorHandler(),
+                ACK_INTERVAL_MS);
+        MetricsRegistry.getDefault().gauge(METRIC_ACTIVE_SOURCE,
+                "Command source driving the motors (-1 none, 0 adb, 1 nearby, 2 autonomous)",
+                new Gauge() {
+                    @Override
+                    public long sample() {
+                        return mMultiplexer.getActiveSource();
+                    }
+                });
 
         mResetHandler = new Handler();
 
         mViewModel = ViewModelProviders.of(this).get(RobocarViewModel.class);
         mNearbyAdvertiser = mViewModel.getRobocarAdvertiser();
+        mNearbyAdvertiser.setLocalCapabilities(
+                Capabilities.createLocal(MAX_COMMANDS_PER_SECOND, false));
+        MessageBus messageBus = mNearbyAdvertiser.getMessageBus();
+        messageBus.setExecutor(MessageType.COMMAND, mCarController.getMotorExecutor());
+        messageBus.setExecutor(MessageType.PROGRAM, mCarController.getMotorExecutor());
+        if (replayFile == null) {
+            messageBus.subscribe(this, MessageType.COMMAND, mCommandListener);
+            messageBus.subscribe(this, MessageType.PROGRAM, mProgramListener);
+            try {
+                mFlightRecorder = FlightRecorder.open(
+                        new File(getFilesDir(), FLIGHT_RECORDING_FILE), FLIGHT_RECORDER_CAPACITY);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open flight recorder", e);
+            }
+        } else {
+            startReplay(replayFile, getIntent().getFloatExtra(EXTRA_REPLAY_SPEED, 1f));
+        }
 
         mNearbyAdvertiser.setAdvertisingInfo(mAdvertisingInfo);
-        mNearbyAdvertiser.setPairedDiscovererInfo(PreferenceUtils.loadDiscovererInfo(prefs));
+        mNearbyAdvertiser.setPairedDiscovererInfo(pairingStore.getLastPairedCompanion());
         mNearbyAdvertiser.getAdvertisingLiveData().observe(this, new Observer<Boolean>() {
             @Override
             public void onChanged(@Nullable Boolean value) {
@@ -159,32 +370,40 @@ public class RobocarActivity extends AppCompatActivity implements ConnectorCallb
         }
     }
 
-    @Override
-    protected void onStart() {
-        super.onStart();
-        mNearbyAdvertiser.setPayloadListener(mPayloadListener);
-    }
-
-    @Override
-    protected void onStop() {
-        super.onStop();
-        mNearbyAdvertiser.setPayloadListener(null);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        MetricsRegistry.getDefault().remove(METRIC_ACTIVE_SOURCE);
+        // The advertiser outlives us in the ViewModel; don't leave it pointing at a dead thread.
+        mNearbyAdvertiser.getMessageBus().setExecutor(MessageType.COMMAND,
+                MessageBus.DIRECT_EXECUTOR);
+        mNearbyAdvertiser.getMessageBus().setExecutor(MessageType.PROGRAM,
+                MessageBus.DIRECT_EXECUTOR);
+        if (mFlightReplayer != null) {
+            mFlightReplayer.stop();
+        }
         if (mCarController != null) {
             mCarController.shutDown();
         }
 
-        if (mMotorHat != null) {
+        // The motor thread has quit, so nothing is recording anymore.
+        if (mFlightRecorder != null) {
             try {
-                mMotorHat.close();
+                mFlightRecorder.close();
             } catch (IOException e) {
-                Log.e(TAG, "Error closing MotorHat", e);
+                Log.e(TAG, "Error closing flight recorder", e);
             } finally {
-                mMotorHat = null;
+                mFlightRecorder = null;
+            }
+        }
+
+        if (mMotorDriver != null) {
+            try {
+                mMotorDriver.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing motor driver", e);
+            } finally {
+                mMotorDriver = null;
             }
         }
 
@@ -224,6 +443,27 @@ public class RobocarActivity extends AppCompatActivity implements ConnectorCallb
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        // adb shell dumpsys activity com.example.androidthings.robocar/.RobocarActivity
+        writer.println(prefix + "Robocar " + mAdvertisingInfo.mRobocarId);
+        mNearbyAdvertiser.dump(writer, prefix + "  ");
+        CompanionConnection connection = mCompanionConnection;
+        if (connection != null) {
+            writer.println(prefix + "  Companion capabilities: "
+                    + connection.getPeerCapabilities());
+        }
+        mRateLimiter.dump(writer, prefix + "  ");
+        mMultiplexer.dump(writer, prefix + "  ");
+        mProgramRunner.dump(writer, prefix + "  ");
+        mAcknowledger.dump(writer, prefix + "  ");
+        EventRing.get().dump(writer, prefix + "  ", args, getFilesDir());
+        if (args != null && Arrays.asList(args).contains(DUMP_BENCHMARK_AUTH)) {
+            CommandAuthenticator.benchmark(writer, prefix + "  ", BENCHMARK_AUTH_ITERATIONS);
+        }
+    }
+
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if (keyCode == KeyEvent.KEYCODE_A) { //29
@@ -255,25 +495,80 @@ public class RobocarActivity extends AppCompatActivity implements ConnectorCallb
         if (mCarController != null) {
             switch (keyCode) {
                 case KeyEvent.KEYCODE_DPAD_UP: //19
-                    mCarController.onCarCommand(CarCommands.GO_FORWARD);
+                    postCarCommand(CarCommands.GO_FORWARD);
                     return true;
                 case KeyEvent.KEYCODE_DPAD_DOWN: //20
-                    mCarController.onCarCommand(CarCommands.GO_BACK);
+                    postCarCommand(CarCommands.GO_BACK);
                     return true;
                 case KeyEvent.KEYCODE_DPAD_LEFT: //21
-                    mCarController.onCarCommand(CarCommands.TURN_LEFT);
+                    postCarCommand(CarCommands.TURN_LEFT);
                     return true;
                 case KeyEvent.KEYCODE_DPAD_RIGHT: //22
-                    mCarController.onCarCommand(CarCommands.TURN_RIGHT);
+                    postCarCommand(CarCommands.TURN_RIGHT);
                     return true;
                 case KeyEvent.KEYCODE_DPAD_CENTER: //23
-                    mCarController.onCarCommand(CarCommands.STOP);
+                    postCarCommand(CarCommands.STOP);
                     return true;
             }
         }
         return false;
     }
 
+    private void postCarCommand(final byte command) {
+        mCarController.getMotorExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mFlightRecorder != null) {
+                    mFlightRecorder.recordReceived(CommandSource.ADB, null, command);
+                }
+                mRateLimiter.submit(CommandRateLimiter.SOURCE_ADB, command, Tracer.NO_TRACE_ID);
+            }
+        });
+    }
+
+    /**
+     * Runs a command at the time the companion asked for, on its clock. Scheduled commands skip
+     * the rate limiter, since holding them back would defeat the point; CarController bounds how
+     * many can be waiting instead. Runs on the motor thread.
+     *
+     * @return false if the command was dropped
+     */
+    private boolean scheduleCommand(String endpointId, final byte command, final long traceId,
+            long companionNanos) {
+        ClockSync clockSync = mNearbyAdvertiser.getClockSync(endpointId);
+        if (clockSync == null || !clockSync.isSynchronized()) {
+            // Better late than never; the companion will see when it ran from the echo.
+            Log.w(TAG, "Clock not synchronized, running scheduled command now");
+            mRateLimiter.submit(endpointId, command, traceId);
+            return true;
+        }
+        long atNanos = clockSync.toLocalTime(companionNanos);
+        if (atNanos - SystemClock.elapsedRealtimeNanos() > MAX_SCHEDULE_AHEAD_NANOS) {
+            Log.w(TAG, "Dropping command scheduled too far ahead");
+            return false;
+        }
+        boolean scheduled = mCarController.runAt(atNanos, new Runnable() {
+            @Override
+            public void run() {
+                mMultiplexer.offer(CommandSource.NEARBY, command, traceId);
+            }
+        });
+        if (!scheduled) {
+            Log.w(TAG, "Too many scheduled commands, dropping " + command);
+        }
+        return scheduled;
+    }
+
+    private void startReplay(String path, float speed) {
+        try {
+            mFlightReplayer = new FlightReplayer(FlightRecorder.read(new File(path)),
+                    mCarController.getMotorHandler(), mCarController, speed);
+            mFlightReplayer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read flight recording " + path, e);
+        }
+    }
+
     @Override
     public void onGoogleApiConnected(Bundle bundle) {}
 
@@ -286,13 +581,57 @@ public class RobocarActivity extends AppCompatActivity implements ConnectorCallb
         Log.e(TAG, "Google API connection failed: " + connectionResult);
     }
 
-    private void setConnection(CompanionConnection connection) {
+    /**
+     * Returns true if a command or program may be obeyed: it must carry a valid MAC from the
+     * companion we paired with, and a sequence number that hasn't been used yet. Runs on the
+     * motor thread.
+     */
+    private boolean authenticate(Message message) {
+        CompanionConnection connection = mCompanionConnection;
+        CommandAuthenticator authenticator = connection == null ? null
+                : connection.getCommandAuthenticator();
+        String reason = null;
+        if (authenticator == null) {
+            reason = "no key";
+        } else if (!authenticator.verify(message)) {
+            reason = "bad MAC";
+        } else if (!mReplayWindow.accept(message.getSequence())) {
+            reason = "replayed";
+        }
+        if (reason != null) {
+            COMMANDS_REJECTED.increment();
+            Log.w(TAG, "Rejecting message from " + message.mEndpointId + ": " + reason);
+            return false;
+        }
+        return true;
+    }
+
+    private void setConnection(final CompanionConnection connection) {
         if (mCompanionConnection != connection) {
             if (mCompanionConnection != null) {
                 mCompanionConnection.getConnectionStateLiveData()
                         .removeObserver(mConnectionStateObserver);
+                final String endpointId = mCompanionConnection.getEndpointId();
+                mCarController.getMotorExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mRateLimiter.removeSource(endpointId);
+                        // Nobody is left to take the controls back.
+                        mProgramRunner.cancel();
+                    }
+                });
+                mCarController.cancelScheduled();
+                // Don't keep driving on the word of a companion that's gone.
+                mMultiplexer.clear(CommandSource.NEARBY);
             }
             mCompanionConnection = connection;
+            mCarController.getMotorExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mAcknowledger.setConnection(connection);
+                    mReplayWindow.reset();
+                }
+            });
             if (mCompanionConnection != null) {
                 mCompanionConnection.getConnectionStateLiveData()
                         .observe(this, mConnectionStateObserver);
@@ -353,15 +692,14 @@ public class RobocarActivity extends AppCompatActivity implements ConnectorCallb
         mNearbyAdvertiser.disconnectCompanion();
         mNearbyAdvertiser.stopAdvertising();
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        // Remove the saved discoverer info.
-        PreferenceUtils.clearDicovererInfo(prefs);
-        mNearbyAdvertiser.setPairedDiscovererInfo(null);
-
-        // Remove pair token from advertising info.
+        // Forget every companion, and remove the pair token from advertising info.
         mAdvertisingInfo = new AdvertisingInfo(mAdvertisingInfo.mRobocarId,
                 mAdvertisingInfo.mLedSequence, null);
-        PreferenceUtils.saveAdvertisingInfo(prefs, mAdvertisingInfo);
+        PairingStore.get(this).edit()
+                .clearPaired()
+                .setLocal(mAdvertisingInfo)
+                .apply();
+        mNearbyAdvertiser.setPairedDiscovererInfo(null);
         mNearbyAdvertiser.setAdvertisingInfo(mAdvertisingInfo);
 
         // Start advertising after a delay so the display & LED changes are obvious to the user.
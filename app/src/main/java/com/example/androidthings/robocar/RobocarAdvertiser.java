@@ -17,16 +17,21 @@ package com.example.androidthings.robocar;
 
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
-import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.example.androidthings.robocar.shared.NearbyConnection.ConnectionState;
 import com.example.androidthings.robocar.shared.NearbyConnectionManager;
-import com.example.androidthings.robocar.shared.PreferenceUtils;
+import com.example.androidthings.robocar.shared.PairingStore;
+import com.example.androidthings.robocar.shared.diagnostics.EventRing;
+import com.example.androidthings.robocar.shared.diagnostics.EventRing.EventCode;
+import com.example.androidthings.robocar.shared.messaging.Capabilities;
+import com.example.androidthings.robocar.shared.messaging.CommandAuthenticator;
+import com.example.androidthings.robocar.shared.metrics.Counter;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
 import com.example.androidthings.robocar.shared.model.AdvertisingInfo;
 import com.example.androidthings.robocar.shared.model.DiscovererInfo;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -40,16 +45,29 @@ import com.google.android.gms.nearby.connection.ConnectionResolution;
 import com.google.android.gms.nearby.connection.Connections;
 import com.google.android.gms.nearby.connection.Connections.StartAdvertisingResult;
 
+import java.util.Arrays;
+
 public class RobocarAdvertiser extends NearbyConnectionManager implements ConnectionCallbacks {
 
     private static final String TAG = "RobocarAdvertiser";
 
+    private static final Counter CONNECTIONS_REFUSED = MetricsRegistry.getDefault().counter(
+            "robocar_connections_refused_total",
+            "Incoming connections rejected because we were busy or the companion didn't match");
+    private static final Counter PAIRINGS = MetricsRegistry.getDefault().counter(
+            "robocar_pairings_total", "Companions connected to and remembered");
+    private static final Counter PAIRING_KEYS_REFUSED = MetricsRegistry.getDefault().counter(
+            "robocar_pairing_keys_refused_total",
+            "Keys refused because the companion already had a different one");
+
     private AdvertisingInfo mAdvertisingInfo;
     private DiscovererInfo mPairedDiscovererInfo;
 
     private MutableLiveData<Boolean> mAdvertisingLiveData;
     private MutableLiveData<CompanionConnection> mCompanionConnectionLiveData;
 
+    private long mAdvertisingStartedNanos;
+
     public RobocarAdvertiser(GoogleApiClient client) {
         super(client);
         client.registerConnectionCallbacks(this);
@@ -103,6 +121,7 @@ public class RobocarAdvertiser extends NearbyConnectionManager implements Connec
 
         // Pre-emptively set this so the check above catches calls while we wait for a result.
         mAdvertisingLiveData.setValue(true);
+        mAdvertisingStartedNanos = SystemClock.elapsedRealtimeNanos();
         Nearby.Connections.startAdvertising(mGoogleApiClient, mAdvertisingInfo.getAdvertisingName(),
                 SERVICE_ID, mLifecycleCallback, new AdvertisingOptions(STRATEGY))
                 .setResultCallback(new ResultCallback<Connections.StartAdvertisingResult>() {
@@ -110,11 +129,11 @@ public class RobocarAdvertiser extends NearbyConnectionManager implements Connec
                     public void onResult(@NonNull StartAdvertisingResult startAdvertisingResult) {
                         Status status = startAdvertisingResult.getStatus();
                         if (status.isSuccess()) {
-                            Log.d(TAG, "Advertising started.");
+                            EventRing.get().record(EventCode.ADVERTISING_STARTED, null);
                             mAdvertisingLiveData.setValue(true);
                         } else {
-                            Log.d(TAG, String.format("Failed to start advertising. %d, %s",
-                                    status.getStatusCode(), status.getStatusMessage()));
+                            EventRing.get().record(EventCode.ADVERTISING_FAILED, null,
+                                    status.getStatusCode(), 0);
                             // revert state
                             mAdvertisingLiveData.setValue(false);
                         }
@@ -129,6 +148,7 @@ public class RobocarAdvertiser extends NearbyConnectionManager implements Connec
             if (mGoogleApiClient.isConnected()) {
                 Nearby.Connections.stopAdvertising(mGoogleApiClient);
             }
+            EventRing.get().record(EventCode.ADVERTISING_STOPPED, null);
         }
     }
 
@@ -153,6 +173,7 @@ public class RobocarAdvertiser extends NearbyConnectionManager implements Connec
         super.onNearbyConnectionInitiated(endpointId, connectionInfo);
         if (mCompanionConnectionLiveData.getValue() != null) {
             // We already have a companion trying to connect. Reject this one.
+            CONNECTIONS_REFUSED.increment();
             Nearby.Connections.rejectConnection(mGoogleApiClient, endpointId);
             return;
         }
@@ -161,10 +182,16 @@ public class RobocarAdvertiser extends NearbyConnectionManager implements Connec
         DiscovererInfo info = DiscovererInfo.parse(connectionInfo.getEndpointName());
         if (info == null || isNotTheDroidWeAreLookingFor(info)) {
             // Discoverer looks malformed, or doesn't match our previous paired companion.
+            CONNECTIONS_REFUSED.increment();
             Nearby.Connections.rejectConnection(mGoogleApiClient, endpointId);
             return;
         }
 
+        if (mAdvertisingLiveData.getValue()) {
+            getConnectionSetupStats().recordSearching(
+                    SystemClock.elapsedRealtimeNanos() - mAdvertisingStartedNanos);
+        }
+
         // Store the endpoint and accept.
         CompanionConnection connection = new CompanionConnection(endpointId, info, this);
         connection.setAuthToken(connectionInfo.getAuthenticationToken());
@@ -175,11 +202,11 @@ public class RobocarAdvertiser extends NearbyConnectionManager implements Connec
                 .setResultCallback(new ResultCallback<Status>() {
                     @Override
                     public void onResult(@NonNull Status status) {
+                        EventRing.get().record(EventCode.CONNECTION_ACCEPTED, endpointId,
+                                status.getStatusCode(), 0);
                         if (status.isSuccess()) {
-                            Log.d(TAG, "Accepted connection. " + endpointId);
                             // TODO implement a timeout
                         } else {
-                            Log.d(TAG, "Accept connection failed." + endpointId);
                             // revert state
                             clearCompanionEndpoint();
                         }
@@ -205,6 +232,7 @@ public class RobocarAdvertiser extends NearbyConnectionManager implements Connec
     protected void onNearbyConnectionRejected(String endpointId) {
         super.onNearbyConnectionRejected(endpointId);
         if (isCompanionEndpointId(endpointId)) {
+            mCompanionConnectionLiveData.getValue().markRemotelyRejected();
             clearCompanionEndpoint();
         }
     }
@@ -213,19 +241,54 @@ public class RobocarAdvertiser extends NearbyConnectionManager implements Connec
     protected void onNearbyDisconnected(String endpointId) {
         super.onNearbyDisconnected(endpointId);
         if (isCompanionEndpointId(endpointId)) {
-            mCompanionConnectionLiveData.getValue().setState(ConnectionState.NOT_CONNECTED);
             clearCompanionEndpoint();
             startAdvertising();
         }
     }
 
+    @Override
+    protected void onPeerCapabilities(String endpointId, Capabilities capabilities) {
+        super.onPeerCapabilities(endpointId, capabilities);
+        if (isCompanionEndpointId(endpointId)) {
+            mCompanionConnectionLiveData.getValue().setPeerCapabilities(capabilities);
+        }
+    }
+
+    @Override
+    protected void onPairingKey(String endpointId, byte[] key) {
+        super.onPairingKey(endpointId, key);
+        CompanionConnection connection = mCompanionConnectionLiveData.getValue();
+        if (!isCompanionEndpointId(endpointId) || !connection.isConnected()) {
+            return;
+        }
+        // The first key wins. Taking another would let anyone who can pass for the companion,
+        // whose name is advertised, take over the car.
+        String companionId = connection.getDiscovererInfo().mCompanionId;
+        PairingStore pairingStore = PairingStore.get(mGoogleApiClient.getContext());
+        byte[] stored = pairingStore.getCompanionKey(companionId);
+        if (stored == null) {
+            pairingStore.edit()
+                    .putCompanionKey(companionId, key)
+                    .apply();
+        } else if (!Arrays.equals(stored, key)) {
+            PAIRING_KEYS_REFUSED.increment();
+            Log.w(TAG, "Refusing new key from " + endpointId + "; reset to pair again");
+            return;
+        }
+        connection.setCommandAuthenticator(CommandAuthenticator.fromKey(key));
+    }
+
     private boolean isCompanionEndpointId(String id) {
         CompanionConnection connection = mCompanionConnectionLiveData.getValue();
         return connection != null && connection.endpointMatches(id);
     }
 
     private void clearCompanionEndpoint() {
-        mCompanionConnectionLiveData.setValue(null);
+        CompanionConnection connection = mCompanionConnectionLiveData.getValue();
+        if (connection != null) {
+            connection.setState(ConnectionState.NOT_CONNECTED);
+            mCompanionConnectionLiveData.setValue(null);
+        }
     }
 
     public void disconnectCompanion() {
@@ -245,18 +308,23 @@ public class RobocarAdvertiser extends NearbyConnectionManager implements Connec
     }
 
     private void savePairingInformation(CompanionConnection connection) {
+        PAIRINGS.increment();
         DiscovererInfo di = connection.getDiscovererInfo();
         String authToken = connection.getAuthToken();
         DiscovererInfo diWithToken = new DiscovererInfo(di.mCompanionId, authToken);
         AdvertisingInfo aiWithToken = new AdvertisingInfo(mAdvertisingInfo.mRobocarId,
                 mAdvertisingInfo.mLedSequence, authToken);
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
-                mGoogleApiClient.getContext());
-        PreferenceUtils.saveDiscovererInfo(prefs, diWithToken);
-        PreferenceUtils.saveAdvertisingInfo(prefs, aiWithToken);
+        PairingStore pairingStore = PairingStore.get(mGoogleApiClient.getContext());
+        pairingStore.edit()
+                .putPaired(diWithToken)
+                .setLocal(aiWithToken)
+                .apply();
 
         setAdvertisingInfo(aiWithToken);
         setPairedDiscovererInfo(diWithToken);
+        // Without a key, commands are refused until the companion hands us one.
+        byte[] key = pairingStore.getCompanionKey(di.mCompanionId);
+        connection.setCommandAuthenticator(key == null ? null : CommandAuthenticator.fromKey(key));
     }
 }
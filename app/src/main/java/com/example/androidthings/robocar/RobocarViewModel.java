@@ -19,6 +19,8 @@ import android.app.Application;
 import android.arch.lifecycle.AndroidViewModel;
 
 import com.example.androidthings.robocar.shared.NearbyConnectionManager;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
+import com.example.androidthings.robocar.shared.metrics.MetricsServer;
 import com.google.android.gms.common.api.GoogleApiClient;
 
 
@@ -26,11 +28,21 @@ public class RobocarViewModel extends AndroidViewModel {
 
     private GoogleApiClient mGoogleApiClient;
     private RobocarAdvertiser mRobocarAdvertiser;
+    // adb forward tcp:9100 localabstract:robocar-metrics
+    private MetricsServer mMetricsServer;
 
     public RobocarViewModel(Application application) {
         super(application);
         mGoogleApiClient = NearbyConnectionManager.createNearbyApiClient(application);
         mRobocarAdvertiser = new RobocarAdvertiser(mGoogleApiClient);
+        mMetricsServer = new MetricsServer(MetricsRegistry.getDefault(), "robocar-metrics");
+        mMetricsServer.start();
+    }
+
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        mMetricsServer.stop();
     }
 
     public GoogleApiClient getGoogleApiClient() {
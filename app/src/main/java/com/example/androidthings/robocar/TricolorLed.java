@@ -18,6 +18,8 @@ package com.example.androidthings.robocar;
 import android.support.annotation.IntDef;
 import android.util.Log;
 
+import com.example.androidthings.robocar.shared.metrics.Counter;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
 import com.example.androidthings.robocar.shared.model.AdvertisingInfo.LedColor;
 import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.PeripheralManager;
@@ -32,6 +34,11 @@ public class TricolorLed implements AutoCloseable {
 
     private static final String TAG = "TricolorLed";
 
+    private static final Counter GPIO_WRITES = MetricsRegistry.getDefault().counter(
+            "robocar_gpio_writes_total", "Writes to the LED GPIOs");
+    private static final Counter GPIO_ERRORS = MetricsRegistry.getDefault().counter(
+            "robocar_gpio_errors_total", "Failed writes to the LED GPIOs");
+
     public static final int OFF = 0;
     public static final int RED = 1; // __R
     public static final int GREEN = 2; // _G_
@@ -119,9 +126,11 @@ public class TricolorLed implements AutoCloseable {
 
     private void setGpioValue(Gpio gpio, boolean value) {
         if (gpio != null) {
+            GPIO_WRITES.increment();
             try {
                 gpio.setValue(value);
-            } catch (IOException ignored) {
+            } catch (IOException e) {
+                GPIO_ERRORS.increment();
             }
         }
     }
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.example.androidthings.robocar.shared.messaging.Message;
+
+import org.junit.Test;
+
+public class ReplayWindowTest {
+
+    private final ReplayWindow mWindow = new ReplayWindow();
+
+    @Test
+    public void accept_takesEachSequenceOnce() {
+        assertTrue(mWindow.accept(1));
+        assertTrue(mWindow.accept(2));
+        assertFalse(mWindow.accept(2));
+        assertFalse(mWindow.accept(1));
+    }
+
+    @Test
+    public void accept_neverTakesNoSequence() {
+        assertFalse(mWindow.accept(Message.NO_SEQUENCE));
+        assertTrue(mWindow.accept(5));
+        assertFalse(mWindow.accept(Message.NO_SEQUENCE));
+    }
+
+    @Test
+    public void accept_takesLateSequenceWithinWindow() {
+        assertTrue(mWindow.accept(100));
+        assertTrue(mWindow.accept(100 - ReplayWindow.WINDOW + 1));
+        assertFalse(mWindow.accept(100 - ReplayWindow.WINDOW + 1));
+        assertTrue(mWindow.accept(99));
+    }
+
+    @Test
+    public void accept_refusesSequenceBehindWindow() {
+        assertTrue(mWindow.accept(100));
+        assertFalse(mWindow.accept(100 - ReplayWindow.WINDOW));
+        assertFalse(mWindow.accept(1));
+    }
+
+    @Test
+    public void accept_forgetsWhatSlidesOutOfWindow() {
+        assertTrue(mWindow.accept(1));
+        // A jump as big as the window leaves nothing from before it.
+        assertTrue(mWindow.accept(1 + ReplayWindow.WINDOW));
+        assertFalse(mWindow.accept(1));
+        assertTrue(mWindow.accept(2));
+    }
+
+    @Test
+    public void accept_remembersAcrossSmallAdvances() {
+        for (int sequence = 1; sequence <= ReplayWindow.WINDOW; sequence += 2) {
+            assertTrue(mWindow.accept(sequence));
+        }
+        for (int sequence = 1; sequence <= ReplayWindow.WINDOW; sequence++) {
+            // The odd ones were seen; the even ones are late but new.
+            if (sequence % 2 == 1) {
+                assertFalse(mWindow.accept(sequence));
+            } else {
+                assertTrue(mWindow.accept(sequence));
+            }
+        }
+    }
+
+    @Test
+    public void accept_handlesWrapAround() {
+        assertTrue(mWindow.accept(-3));
+        assertTrue(mWindow.accept(-1));
+        // Senders skip NO_SEQUENCE when they wrap.
+        assertTrue(mWindow.accept(1));
+        assertTrue(mWindow.accept(-2));
+        assertFalse(mWindow.accept(-3));
+        assertFalse(mWindow.accept(-1));
+        assertTrue(mWindow.accept(2));
+        assertFalse(mWindow.accept(1));
+    }
+
+    @Test
+    public void reset_forgetsEverything() {
+        assertTrue(mWindow.accept(1000));
+        mWindow.reset();
+        assertTrue(mWindow.accept(1));
+        assertTrue(mWindow.accept(1000));
+    }
+}
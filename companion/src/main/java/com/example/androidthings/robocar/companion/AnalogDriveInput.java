@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.companion;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+
+/**
+ * Turns a two axis analog input, such as phone tilt or a gamepad stick, into car commands. Raw
+ * samples can come in at sensor rate (200 Hz or so); each one goes through a first order low-pass
+ * filter, and the filtered value is only looked at once per output interval. A dead zone around
+ * the center means stop, the rest of each axis is quantized into levels, and a level only changes
+ * once the input has moved past its boundaries by a threshold, so noise near a boundary doesn't
+ * flip back and forth. A command is emitted only when the quantized input maps to a different
+ * one than last time.
+ * <p>
+ * Axes are normalized to [-1, 1]: x is right, y is forward. Nothing is allocated per sample. Not
+ * thread safe; feed it from one thread.
+ */
+class AnalogDriveInput {
+
+    interface Listener {
+        /** Called on the feeding thread when the input asks for a different command. */
+        void onDriveCommand(byte command);
+    }
+
+    private final Listener mListener;
+    private final float mTimeConstantNanos;
+    private final long mOutputIntervalNanos;
+    private final float mDeadZone;
+    private final int mLevels;
+    private final float mLevelSize;
+    private final float mThreshold;
+
+    private boolean mStarted;
+    private long mLastSampleNanos;
+    private long mLastOutputNanos;
+    private float mFilteredX;
+    private float mFilteredY;
+    private int mLevelX;
+    private int mLevelY;
+    private byte mCommand = CarCommands.STOP;
+
+    /**
+     * @param cutoffHz corner frequency of the low-pass filter
+     * @param outputRateHz how often the filtered input is turned into a command, at most
+     * @param deadZone fraction of each axis around the center that counts as zero
+     * @param levels quantization levels on each side of the center
+     * @param threshold how far past a level boundary the input must go to change level, as a
+     *         fraction of the axis; at most the dead zone, so the input can always get back to 0
+     */
+    AnalogDriveInput(float cutoffHz, float outputRateHz, float deadZone, int levels,
+            float threshold, Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        if (cutoffHz <= 0 || outputRateHz <= 0 || levels <= 0) {
+            throw new IllegalArgumentException("Cutoff, output rate and levels must be positive");
+        }
+        if (deadZone < 0 || deadZone >= 1 || threshold < 0 || threshold > deadZone) {
+            throw new IllegalArgumentException("Dead zone or threshold out of range");
+        }
+        mListener = listener;
+        mTimeConstantNanos = (float) (1e9 / (2 * Math.PI * cutoffHz));
+        mOutputIntervalNanos = (long) (1e9 / outputRateHz);
+        mDeadZone = deadZone;
+        mLevels = levels;
+        mLevelSize = (1f - deadZone) / levels;
+        mThreshold = threshold;
+    }
+
+    /** Feeds a sample taken at the given time, in nanoseconds on any monotonic clock. */
+    void onSample(float x, float y, long timestampNanos) {
+        if (!mStarted) {
+            mStarted = true;
+            mFilteredX = x;
+            mFilteredY = y;
+            mLastOutputNanos = timestampNanos - mOutputIntervalNanos;
+        } else {
+            long dt = timestampNanos - mLastSampleNanos;
+            if (dt <= 0) {
+                return;
+            }
+            float alpha = dt / (mTimeConstantNanos + dt);
+            mFilteredX += alpha * (x - mFilteredX);
+            mFilteredY += alpha * (y - mFilteredY);
+        }
+        mLastSampleNanos = timestampNanos;
+        if (timestampNanos - mLastOutputNanos < mOutputIntervalNanos) {
+            return;
+        }
+        mLastOutputNanos = timestampNanos;
+        mLevelX = quantize(mFilteredX, mLevelX);
+        mLevelY = quantize(mFilteredY, mLevelY);
+        byte command = toCommand(mLevelX, mLevelY);
+        if (command != mCommand) {
+            mCommand = command;
+            mListener.onDriveCommand(command);
+        }
+    }
+
+    /**
+     * Forgets the input's history, e.g. when the source goes away. The next sample starts from
+     * scratch, and the last command is assumed to be STOP.
+     */
+    void reset() {
+        mStarted = false;
+        mLevelX = mLevelY = 0;
+        mCommand = CarCommands.STOP;
+    }
+
+    /** Returns the command last emitted, or STOP if none has been since the last reset. */
+    byte getCommand() {
+        return mCommand;
+    }
+
+    private int quantize(float value, int level) {
+        float magnitude = Math.min(Math.abs(value), 1f);
+        int candidate = magnitude <= mDeadZone ? 0
+                : Math.min(mLevels, (int) Math.ceil((magnitude - mDeadZone) / mLevelSize));
+        if (value < 0) {
+            candidate = -candidate;
+        }
+        if (candidate == level) {
+            return level;
+        }
+        if (level != 0 && candidate != 0 && (candidate > 0) != (level > 0)) {
+            // Went through the dead zone between two outputs; that's no noise.
+            return candidate;
+        }
+        // Level 0 is the dead zone; level L covers deadZone + (L - 1) * levelSize up to
+        // deadZone + L * levelSize. Leave it only once a threshold past either end.
+        int current = Math.abs(level);
+        float lower = current == 0 ? 0f : mDeadZone + (current - 1) * mLevelSize;
+        float upper = current == 0 ? mDeadZone : lower + mLevelSize;
+        if (magnitude > upper + mThreshold || magnitude <= lower - mThreshold) {
+            return candidate;
+        }
+        return level;
+    }
+
+    private static byte toCommand(int levelX, int levelY) {
+        if (levelX == 0 && levelY == 0) {
+            return CarCommands.STOP;
+        }
+        // The axis pushed further wins; the car can't drive and turn at once.
+        if (Math.abs(levelY) >= Math.abs(levelX)) {
+            return levelY > 0 ? CarCommands.GO_FORWARD : CarCommands.GO_BACK;
+        }
+        return levelX > 0 ? CarCommands.TURN_RIGHT : CarCommands.TURN_LEFT;
+    }
+}
@@ -20,7 +20,6 @@ import android.arch.lifecycle.Observer;
 import android.arch.lifecycle.ViewModelProviders;
 import android.content.Intent;
 import android.content.IntentSender.SendIntentException;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
@@ -28,14 +27,20 @@ import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
+import android.view.MotionEvent;
 
 import com.example.androidthings.robocar.companion.CompanionViewModel.NavigationState;
 import com.example.androidthings.robocar.shared.ConnectorFragment;
 import com.example.androidthings.robocar.shared.ConnectorFragment.ConnectorCallbacks;
+import com.example.androidthings.robocar.shared.PairingStore;
 import com.example.androidthings.robocar.shared.PreferenceUtils;
+import com.example.androidthings.robocar.shared.diagnostics.EventRing;
 import com.example.androidthings.robocar.shared.model.DiscovererInfo;
 import com.google.android.gms.common.ConnectionResult;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 
 public class CompanionActivity extends AppCompatActivity implements ConnectorCallbacks {
 
@@ -59,14 +64,19 @@ public class CompanionActivity extends AppCompatActivity implements ConnectorCal
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        EventRing.get().installCrashHandler(getFilesDir());
         setContentView(R.layout.activity_companion);
 
         // init DiscovererInfo
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        mDiscovererInfo = PreferenceUtils.loadDiscovererInfo(prefs);
+        PairingStore pairingStore = PairingStore.get(this);
+        if (!pairingStore.exists()) {
+            PreferenceUtils.migrateToPairingStore(
+                    PreferenceManager.getDefaultSharedPreferences(this), pairingStore, false);
+        }
+        mDiscovererInfo = pairingStore.getLocalCompanion();
         if (mDiscovererInfo == null) {
             mDiscovererInfo = DiscovererInfo.generateDiscoveryInfo();
-            PreferenceUtils.saveDiscovererInfo(prefs, mDiscovererInfo);
+            pairingStore.edit().setLocal(mDiscovererInfo).apply();
         }
 
         mViewModel = ViewModelProviders.of(this).get(CompanionViewModel.class);
@@ -92,7 +102,6 @@ public class CompanionActivity extends AppCompatActivity implements ConnectorCal
 
         RobocarDiscoverer discoverer = mViewModel.getRobocarDiscoverer();
         discoverer.setDiscovererInfo(mDiscovererInfo);
-        discoverer.setPairedAdvertisingInfo(PreferenceUtils.loadAdvertisingInfo(prefs));
         mViewModel.getNavigationStateLiveData().observe(this, new Observer<Integer>() {
             @Override
             public void onChanged(@Nullable Integer value) {
@@ -136,6 +145,16 @@ public class CompanionActivity extends AppCompatActivity implements ConnectorCal
         }
     }
 
+    @Override
+    public boolean onGenericMotionEvent(MotionEvent event) {
+        // Gamepad sticks drive the car while the controller is showing.
+        if (mCurrentFragment == mControllerFragment && mControllerFragment != null
+                && mControllerFragment.onGenericMotionEvent(event)) {
+            return true;
+        }
+        return super.onGenericMotionEvent(event);
+    }
+
     @Override
     public void onBackPressed() {
         if (mCurrentFragment == mControllerFragment) {
@@ -145,6 +164,15 @@ public class CompanionActivity extends AppCompatActivity implements ConnectorCal
         }
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        // adb shell dumpsys activity com.example.androidthings.robocar.companion/.CompanionActivity
+        writer.println(prefix + "Companion " + mDiscovererInfo.mCompanionId);
+        mViewModel.getRobocarDiscoverer().dump(writer, prefix + "  ");
+        EventRing.get().dump(writer, prefix + "  ", args, getFilesDir());
+    }
+
     @Override
     public void onGoogleApiConnected(Bundle bundle) {}
 
@@ -19,14 +19,27 @@ import android.app.Application;
 import android.arch.lifecycle.AndroidViewModel;
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
+import android.os.AsyncTask;
 import android.support.annotation.IntDef;
+import android.util.Log;
 
 import com.example.androidthings.robocar.shared.NearbyConnectionManager;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
+import com.example.androidthings.robocar.shared.metrics.MetricsServer;
 import com.google.android.gms.common.api.GoogleApiClient;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
 
 public class CompanionViewModel extends AndroidViewModel {
 
+    private static final String TAG = "CompanionViewModel";
+    private static final String MACRO_FILE = "macro.bin";
+
     @IntDef({NavigationState.DISCOVERY_UI, NavigationState.CONTROLLER_UI})
     public @interface NavigationState {
         int DISCOVERY_UI = 1;
@@ -35,16 +48,46 @@ public class CompanionViewModel extends AndroidViewModel {
 
     private final GoogleApiClient mGoogleApiClient;
     private final RobocarDiscoverer mRobocarDiscoverer;
+    // adb forward tcp:9101 localabstract:robocar-companion-metrics
+    private final MetricsServer mMetricsServer;
 
     private final MutableLiveData<Integer> mNavigationState;
 
+    private final MacroRecorder mMacroRecorder = new MacroRecorder();
+    private final MacroPlayer mMacroPlayer = new MacroPlayer();
+    private final MutableLiveData<Macro> mMacroLiveData = new MutableLiveData<>();
+
     public CompanionViewModel(Application application) {
         super(application);
         mGoogleApiClient = NearbyConnectionManager.createNearbyApiClient(application);
         mRobocarDiscoverer = new RobocarDiscoverer(mGoogleApiClient);
+        mMetricsServer = new MetricsServer(MetricsRegistry.getDefault(),
+                "robocar-companion-metrics");
+        mMetricsServer.start();
 
         mNavigationState = new MutableLiveData<>();
         mNavigationState.setValue(NavigationState.DISCOVERY_UI);
+
+        final File macroFile = new File(application.getFilesDir(), MACRO_FILE);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (macroFile.exists()) {
+                    try {
+                        mMacroLiveData.postValue(Macro.fromBytes(readFile(macroFile)));
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to load macro", e);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        mMacroPlayer.stop(false);
+        mMetricsServer.stop();
     }
 
     public GoogleApiClient getGoogleApiClient() {
@@ -55,6 +98,58 @@ public class CompanionViewModel extends AndroidViewModel {
         return mRobocarDiscoverer;
     }
 
+    MacroRecorder getMacroRecorder() {
+        return mMacroRecorder;
+    }
+
+    MacroPlayer getMacroPlayer() {
+        return mMacroPlayer;
+    }
+
+    LiveData<Macro> getMacroLiveData() {
+        return mMacroLiveData;
+    }
+
+    /** Makes a macro the current one and saves it for next time. Call on the main thread. */
+    void setMacro(Macro macro) {
+        mMacroLiveData.setValue(macro);
+        final byte[] data = macro.toBytes();
+        final File macroFile = new File(getApplication().getFilesDir(), MACRO_FILE);
+        // One save at a time and in order, since they all go through the same temp file.
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                File temp = new File(macroFile.getPath() + ".tmp");
+                try {
+                    FileOutputStream out = new FileOutputStream(temp);
+                    try {
+                        out.write(data);
+                        // Make sure the data is on disk before the rename makes it current.
+                        out.getFD().sync();
+                    } finally {
+                        out.close();
+                    }
+                    if (!temp.renameTo(macroFile)) {
+                        throw new IOException("Failed to rename " + temp);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to save macro", e);
+                }
+            }
+        });
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
     public LiveData<Integer> getNavigationStateLiveData() {
         return mNavigationState;
     }
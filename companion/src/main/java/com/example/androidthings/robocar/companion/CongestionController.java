@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.companion;
+
+import android.arch.lifecycle.LiveData;
+import android.arch.lifecycle.MutableLiveData;
+
+import com.example.androidthings.robocar.shared.messaging.Ack;
+import com.example.androidthings.robocar.shared.messaging.Message;
+
+import java.io.PrintWriter;
+
+/**
+ * AIMD congestion control for the commands a companion sends. The allowed rate grows by one
+ * command per second for every increase interval in which round trips stay close to the best one
+ * seen, and halves when a payload fails to go out or round trips balloon, which is what a queue
+ * building up somewhere along the link looks like. Decreases are held off for a round trip, so one
+ * burst of trouble only counts once.
+ * <p>
+ * Round trips are measured by matching {@link Ack}s to the send times of the commands they cover.
+ * Acks may be held back by the Robocar's ack interval, which is budgeted for in the threshold.
+ * <p>
+ * Not thread safe; all calls must be made on the main thread, where sends, acks and payload
+ * transfer updates all happen.
+ */
+class CongestionController {
+
+    static final int MIN_RATE = 2;
+    // Used when the Robocar doesn't say how many commands it takes.
+    private static final int DEFAULT_MAX_RATE = 20;
+
+    private static final long INCREASE_INTERVAL_NANOS = 500000000L;
+    // Round trips this much longer than the best one mean queueing. Covers the ack interval.
+    private static final long RTT_SLACK_NANOS = 150000000L;
+    private static final int RTT_HISTORY = 64;
+    // The best round trip is forgotten after this many samples, so a change of route is noticed.
+    private static final int MIN_RTT_WINDOW = 256;
+
+    private int mMaxRate = DEFAULT_MAX_RATE;
+    private float mRate = DEFAULT_MAX_RATE;
+    private String mReason = "starting";
+
+    // Send times of recent numbered commands, indexed by sequence number.
+    private final int[] mSentSequences = new int[RTT_HISTORY];
+    private final long[] mSentNanos = new long[RTT_HISTORY];
+    private int mLastAcked = Message.NO_SEQUENCE;
+
+    private long mSmoothedRttNanos;
+    private long mMinRttNanos = Long.MAX_VALUE;
+    private int mMinRttAge;
+    private long mLastIncreaseNanos;
+    private long mHoldOffUntilNanos;
+
+    // Token bucket for the current rate, with room for a single command.
+    private long mNextSendNanos;
+
+    private long mDecreases;
+    private long mFailures;
+
+    private final MutableLiveData<String> mStatusLiveData = new MutableLiveData<>();
+
+    CongestionController() {
+        publish();
+    }
+
+    /** Caps the rate at what the Robocar accepts; 0 means it doesn't say. */
+    void setMaxRate(int maxRate) {
+        mMaxRate = maxRate > 0 ? Math.max(maxRate, MIN_RATE) : DEFAULT_MAX_RATE;
+        mRate = Math.min(mRate, mMaxRate);
+        publish();
+    }
+
+    /**
+     * Returns true if a command may go out now, and if so counts it against the rate. Otherwise
+     * see {@link #getNextSendNanos()}.
+     */
+    boolean tryAcquire(long nowNanos) {
+        if (nowNanos - mNextSendNanos < 0) {
+            return false;
+        }
+        mNextSendNanos = nowNanos + (long) (1e9 / mRate);
+        return true;
+    }
+
+    /** Returns when the next command may go out. */
+    long getNextSendNanos() {
+        return mNextSendNanos;
+    }
+
+    /** Records when a numbered command was sent, to measure its round trip. */
+    void onCommandSent(int sequence, long nowNanos) {
+        if (sequence == Message.NO_SEQUENCE) {
+            return;
+        }
+        int index = sequence & (RTT_HISTORY - 1);
+        mSentSequences[index] = sequence;
+        mSentNanos[index] = nowNanos;
+    }
+
+    void onAck(Ack ack, long nowNanos) {
+        if (ack.mSequence == Message.NO_SEQUENCE || (mLastAcked != Message.NO_SEQUENCE
+                && ack.mSequence - mLastAcked <= 0)) {
+            // Nothing new acknowledged.
+            return;
+        }
+        mLastAcked = ack.mSequence;
+        // The newest command covered went out last, so it waited least for the ack.
+        int index = ack.mSequence & (RTT_HISTORY - 1);
+        if (mSentSequences[index] != ack.mSequence) {
+            return;
+        }
+        long rtt = nowNanos - mSentNanos[index];
+        mSmoothedRttNanos = mSmoothedRttNanos == 0 ? rtt
+                : mSmoothedRttNanos + (rtt - mSmoothedRttNanos) / 8;
+        if (rtt < mMinRttNanos || ++mMinRttAge > MIN_RTT_WINDOW) {
+            mMinRttNanos = rtt;
+            mMinRttAge = 0;
+        }
+        if (mSmoothedRttNanos > mMinRttNanos * 2 + RTT_SLACK_NANOS) {
+            decrease(nowNanos, "round trip " + mSmoothedRttNanos / 1000000 + " ms");
+        } else if (nowNanos - mLastIncreaseNanos >= INCREASE_INTERVAL_NANOS
+                && nowNanos - mHoldOffUntilNanos >= 0 && mRate < mMaxRate) {
+            mLastIncreaseNanos = nowNanos;
+            mRate = Math.min(mMaxRate, mRate + 1);
+            mReason = "round trip " + mSmoothedRttNanos / 1000000 + " ms";
+            publish();
+        }
+    }
+
+    /** Called when Nearby reports that a payload to the Robocar failed or was cancelled. */
+    void onPayloadFailed(long nowNanos) {
+        mFailures++;
+        decrease(nowNanos, "payload failed");
+    }
+
+    int getRate() {
+        return (int) mRate;
+    }
+
+    /** Current rate and why, for showing to the user. */
+    LiveData<String> getStatusLiveData() {
+        return mStatusLiveData;
+    }
+
+    void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "Send rate: " + getRate() + "/s of " + mMaxRate + " ("
+                + mReason + "), srtt=" + mSmoothedRttNanos / 1000 + "us min="
+                + (mMinRttNanos == Long.MAX_VALUE ? -1 : mMinRttNanos / 1000) + "us decreases="
+                + mDecreases + " failures=" + mFailures);
+    }
+
+    private void decrease(long nowNanos, String reason) {
+        if (nowNanos - mHoldOffUntilNanos < 0) {
+            return;
+        }
+        if (mRate > MIN_RATE) {
+            mDecreases++;
+        }
+        mRate = Math.max(MIN_RATE, mRate / 2);
+        mReason = reason;
+        // Whatever we sent before this is already in flight; give the cut a round trip to show.
+        mHoldOffUntilNanos = nowNanos + Math.max(mSmoothedRttNanos, INCREASE_INTERVAL_NANOS);
+        mLastIncreaseNanos = nowNanos;
+        publish();
+    }
+
+    private void publish() {
+        mStatusLiveData.postValue(getRate() + "/s (" + mReason + ")");
+    }
+}
@@ -17,36 +17,96 @@ package com.example.androidthings.robocar.companion;
 
 import android.arch.lifecycle.Observer;
 import android.arch.lifecycle.ViewModelProviders;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.util.SparseArray;
+import android.view.InputDevice;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
 import com.example.androidthings.robocar.companion.CompanionViewModel.NavigationState;
 import com.example.androidthings.robocar.shared.CarCommands;
-import com.google.android.gms.nearby.connection.Payload;
-import com.google.android.gms.nearby.connection.PayloadCallback;
-import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+import com.example.androidthings.robocar.shared.messaging.Ack;
+import com.example.androidthings.robocar.shared.messaging.Message;
+import com.example.androidthings.robocar.shared.messaging.MessageBus;
+import com.example.androidthings.robocar.shared.messaging.MessageBus.MessageListener;
+import com.example.androidthings.robocar.shared.messaging.MessageType;
+import com.example.androidthings.robocar.shared.program.MotionProgram;
 
 
 public class ControllerFragment extends Fragment {
 
     private static final String TAG = "ControllerFragment";
 
+    // How long a control may show as pending before we give up on hearing back from the car.
+    private static final long CONFIRM_TIMEOUT_MS = 1000L;
+    private static final float PENDING_ALPHA = 0.5f;
+
+    // Analog input. Commands go out at most as fast as the Robocar accepts them.
+    private static final float ANALOG_OUTPUT_RATE_HZ = 20f;
+    private static final float ANALOG_THRESHOLD = 0.05f;
+    private static final float TILT_CUTOFF_HZ = 4f;
+    private static final float TILT_DEAD_ZONE = 0.2f;
+    // Tilting this far from where the phone was held when tilt was turned on is full scale.
+    private static final float TILT_FULL_SCALE = SensorManager.GRAVITY_EARTH * 0.5f; // 30 degrees
+    private static final int TILT_SAMPLING_PERIOD_US = 5000; // 200 Hz
+    private static final float GAMEPAD_CUTOFF_HZ = 10f;
+    private static final float GAMEPAD_DEAD_ZONE = 0.25f;
+
+    // Four sides of a square, more or less, depending on the floor.
+    private static final MotionProgram DEMO_LAP = new MotionProgram.Builder()
+            .led(MotionProgram.LED_BLUE)
+            .loop(4)
+            .drive(true).waitMs(1500)
+            .turn(false).waitMs(600)
+            .endLoop()
+            .stop()
+            .build();
+
     private SparseArray<View> mCarControlMap = new SparseArray<>(5);
     private View mActivatedControl;
+    // Activated as soon as it is tapped, but not yet confirmed by the car.
+    private View mPendingControl;
+    // Sequence number of the last command sent from here, if the Robocar acknowledges them.
+    private int mLastSequence = Message.NO_SEQUENCE;
+    // What the car last told us it is doing; where a rejected command rolls back to.
+    private byte mConfirmedCommand = CarCommands.STOP;
+    private final Handler mHandler = new Handler();
+
+    // Hold to drive: the car only moves while a control is held down.
+    private boolean mHoldToDrive;
+    // The held command, renewed while it is held; STOP if none is, which needs no renewing.
+    private byte mHeldCommand = CarCommands.STOP;
+    private View mHeldControl;
+
+    private SensorManager mSensorManager;
+    private Sensor mAccelerometer;
+    private boolean mTiltToDrive;
+    // Accelerometer y reading when tilt was turned on, taken as level; NaN until the first one.
+    private float mTiltNeutralY = Float.NaN;
     private View mErrorView;
     private TextView mLogView;
+    private TextView mSendRateView;
 
     private CompanionViewModel mViewModel;
+    private MacroRecorder mMacroRecorder;
+    private MacroPlayer mMacroPlayer;
+    private Macro mMacro;
     private RobocarDiscoverer mRobocarDiscoverer;
     private RobocarConnection mRobocarConnection;
 
@@ -67,7 +127,10 @@ public class ControllerFragment extends Fragment {
     public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
         super.onViewCreated(view, savedInstanceState);
         mErrorView = view.findViewById(R.id.error);
+        mSensorManager = (SensorManager) getContext().getSystemService(Context.SENSOR_SERVICE);
+        mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
         mLogView = view.findViewById(R.id.log_text);
+        mSendRateView = view.findViewById(R.id.send_rate);
 
         configureButton(view, R.id.btn_forward, CarCommands.GO_FORWARD);
         configureButton(view, R.id.btn_back, CarCommands.GO_BACK);
@@ -76,18 +139,79 @@ public class ControllerFragment extends Fragment {
         configureButton(view, R.id.btn_stop, CarCommands.STOP);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (mTiltToDrive) {
+            startTilt();
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        stopTilt();
+        // Don't leave the car driving on the last tilt or stick position when we're not looking.
+        boolean analogDriving = mTiltInput.getCommand() != CarCommands.STOP
+                || mGamepadInput.getCommand() != CarCommands.STOP;
+        mTiltInput.reset();
+        mGamepadInput.reset();
+        if (analogDriving && mRobocarConnection != null) {
+            mRobocarConnection.sendCommand(CarCommands.STOP);
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mHandler.removeCallbacks(mConfirmTimeoutRunnable);
+        mPendingControl = null;
+        releaseHeldControl();
+    }
+
     @Override
     public void onActivityCreated(@Nullable Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
         mViewModel = ViewModelProviders.of(getActivity()).get(CompanionViewModel.class);
         mRobocarDiscoverer = mViewModel.getRobocarDiscoverer();
+        mMacroRecorder = mViewModel.getMacroRecorder();
+        mMacroPlayer = mViewModel.getMacroPlayer();
+        mViewModel.getMacroLiveData().observe(this, new Observer<Macro>() {
+            @Override
+            public void onChanged(@Nullable Macro macro) {
+                mMacro = macro;
+                getActivity().invalidateOptionsMenu();
+            }
+        });
+        mMacroPlayer.getPlayingLiveData().observe(this, new Observer<Boolean>() {
+            @Override
+            public void onChanged(@Nullable Boolean playing) {
+                getActivity().invalidateOptionsMenu();
+            }
+        });
+        MessageBus messageBus = mRobocarDiscoverer.getMessageBus();
+        messageBus.subscribe(this, MessageType.COMMAND, mCommandListener);
+        // Newer Robocars acknowledge commands in batches instead of echoing them.
+        messageBus.subscribe(this, MessageType.ACK, mAckListener);
 
         mRobocarDiscoverer.getRobocarConnectionLiveData().observe(this,
                 new Observer<RobocarConnection>() {
                     @Override
                     public void onChanged(@Nullable RobocarConnection connection) {
+                        if (mRobocarConnection != null && mRobocarConnection != connection) {
+                            mRobocarConnection.getCongestionController().getStatusLiveData()
+                                    .removeObserver(mSendRateObserver);
+                        }
+                        if (connection != null && connection != mRobocarConnection) {
+                            connection.getCongestionController().getStatusLiveData()
+                                    .observe(ControllerFragment.this, mSendRateObserver);
+                        }
                         mRobocarConnection = connection;
+                        // Each connection numbers its commands from the start.
+                        mLastSequence = Message.NO_SEQUENCE;
+                        mConfirmedCommand = CarCommands.STOP;
                         if (connection == null || !connection.isConnected()) {
+                            mMacroPlayer.stop(false);
                             // We're not connected, so go back to discovery UI
                             mViewModel.navigateTo(NavigationState.DISCOVERY_UI);
                         }
@@ -95,30 +219,76 @@ public class ControllerFragment extends Fragment {
                 });
     }
 
-    @Override
-    public void onStart() {
-        super.onStart();
-        mRobocarDiscoverer.setPayloadListener(mPayloadListener);
-    }
-
-    @Override
-    public void onStop() {
-        super.onStop();
-        mRobocarDiscoverer.setPayloadListener(null);
-    }
-
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         super.onCreateOptionsMenu(menu, inflater);
         inflater.inflate(R.menu.controller, menu);
     }
 
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        boolean recording = mMacroRecorder != null && mMacroRecorder.isRecording();
+        boolean playing = mMacroPlayer != null && mMacroPlayer.isPlaying();
+        MenuItem record = menu.findItem(R.id.action_record_macro);
+        record.setTitle(recording ? R.string.action_stop_recording : R.string.action_record_macro);
+        record.setEnabled(!playing);
+        MenuItem play = menu.findItem(R.id.action_play_macro);
+        play.setTitle(playing ? R.string.action_stop_macro : R.string.action_play_macro);
+        play.setEnabled(!recording && (playing || mMacro != null));
+        menu.findItem(R.id.action_hold_to_drive).setChecked(mHoldToDrive);
+        menu.findItem(R.id.action_tilt_to_drive).setChecked(mTiltToDrive);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         if (item.getItemId() == R.id.action_disconnect) {
             disconnect();
             return true;
         }
+        if (item.getItemId() == R.id.action_record_macro) {
+            if (mMacroRecorder.isRecording()) {
+                Macro macro = mMacroRecorder.stop();
+                if (macro != null) {
+                    mViewModel.setMacro(macro);
+                    logUi("Recorded " + macro.getStepCount() + " steps, "
+                            + macro.getDurationMs() + " ms");
+                }
+            } else {
+                mMacroRecorder.start();
+            }
+            getActivity().invalidateOptionsMenu();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_play_macro) {
+            if (mMacroPlayer.isPlaying()) {
+                mMacroPlayer.stop(true);
+            } else if (mMacro != null && mRobocarConnection != null) {
+                mMacroPlayer.play(mRobocarConnection, mMacro);
+            }
+            return true;
+        }
+        if (item.getItemId() == R.id.action_hold_to_drive) {
+            mHoldToDrive = !mHoldToDrive;
+            item.setChecked(mHoldToDrive);
+            return true;
+        }
+        if (item.getItemId() == R.id.action_tilt_to_drive) {
+            setTiltToDrive(!mTiltToDrive);
+            item.setChecked(mTiltToDrive);
+            return true;
+        }
+        if (item.getItemId() == R.id.action_demo_lap) {
+            if (mRobocarConnection != null) {
+                if (mRobocarConnection.runProgram(DEMO_LAP)) {
+                    clearPending();
+                    setActivatedControl(null);
+                } else {
+                    logUi("This Robocar can't run programs");
+                }
+            }
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
@@ -135,13 +305,201 @@ public class ControllerFragment extends Fragment {
             button.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    mRobocarConnection.sendCommand(command);
-                    setActivatedControl(v);
+                    // Starts the trace that follows this command to the Robocar and back.
+                    long traceId = Tracer.get().beginTrace("onClick");
+                    try {
+                        // Taking the controls ends playback; this command supersedes it.
+                        mMacroPlayer.stop(false);
+                        mMacroRecorder.record(command);
+                        // Show the command right away, as pending until the car confirms it.
+                        mLastSequence = mRobocarConnection.sendCommand(command, traceId);
+                        setPendingControl(v);
+                    } finally {
+                        Tracer.get().endSection();
+                    }
                 }
             });
+            button.setOnTouchListener(new View.OnTouchListener() {
+                @Override
+                public boolean onTouch(View v, MotionEvent event) {
+                    if (!mHoldToDrive || mRobocarConnection == null) {
+                        // Let it be a click.
+                        return false;
+                    }
+                    switch (event.getActionMasked()) {
+                        case MotionEvent.ACTION_DOWN:
+                            holdControl(v, command);
+                            break;
+                        case MotionEvent.ACTION_MOVE:
+                            // Sliding off the control lets go of it.
+                            if (v == mHeldControl && (event.getX() < 0 || event.getY() < 0
+                                    || event.getX() > v.getWidth()
+                                    || event.getY() > v.getHeight())) {
+                                releaseHeldControl();
+                            }
+                            break;
+                        case MotionEvent.ACTION_UP:
+                        case MotionEvent.ACTION_CANCEL:
+                            if (v == mHeldControl) {
+                                releaseHeldControl();
+                            }
+                            break;
+                    }
+                    return true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts driving with a held control. The command goes out marked as held, and is renewed
+     * every {@link Message#HELD_RENEWAL_INTERVAL_MS} for as long as the control is held. The car
+     * stops by itself if the renewals stop, e.g. because the STOP on release was lost or this app
+     * was killed. Renewals only move the car's deadline, and they and touch moves allocate
+     * nothing beyond the Payload Nearby needs to send; see
+     * {@link RobocarConnection#sendRenewal(byte)}.
+     */
+    private void holdControl(View control, byte command) {
+        mHandler.removeCallbacks(mRenewalRunnable);
+        mLastSequence = mRobocarConnection.sendCommand(command, Tracer.NO_TRACE_ID,
+                Message.EXECUTE_NOW, command != CarCommands.STOP);
+        mMacroPlayer.stop(false);
+        mMacroRecorder.record(command);
+        mHeldControl = control;
+        mHeldCommand = command;
+        setPendingControl(control);
+        if (mHeldCommand != CarCommands.STOP) {
+            mHandler.postDelayed(mRenewalRunnable, Message.HELD_RENEWAL_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * Lets go of the held control. STOP goes out straight from the touch event, before any
+     * bookkeeping and ahead of the next renewal, and the Robocar never rate limits it.
+     */
+    private void releaseHeldControl() {
+        mHandler.removeCallbacks(mRenewalRunnable);
+        boolean wasMoving = mHeldCommand != CarCommands.STOP;
+        mHeldCommand = CarCommands.STOP;
+        mHeldControl = null;
+        if (wasMoving && mRobocarConnection != null) {
+            mLastSequence = mRobocarConnection.sendCommand(CarCommands.STOP);
+            mMacroRecorder.record(CarCommands.STOP);
+            setPendingControl(mCarControlMap.get(CarCommands.STOP));
+        }
+    }
+
+    private final AnalogDriveInput.Listener mAnalogListener = new AnalogDriveInput.Listener() {
+        @Override
+        public void onDriveCommand(byte command) {
+            if (mRobocarConnection == null) {
+                return;
+            }
+            mMacroPlayer.stop(false);
+            mMacroRecorder.record(command);
+            mLastSequence = mRobocarConnection.sendCommand(command);
+            setPendingControl(mCarControlMap.get(command));
+        }
+    };
+
+    private final AnalogDriveInput mTiltInput = new AnalogDriveInput(TILT_CUTOFF_HZ,
+            ANALOG_OUTPUT_RATE_HZ, TILT_DEAD_ZONE, 1, ANALOG_THRESHOLD, mAnalogListener);
+    private final AnalogDriveInput mGamepadInput = new AnalogDriveInput(GAMEPAD_CUTOFF_HZ,
+            ANALOG_OUTPUT_RATE_HZ, GAMEPAD_DEAD_ZONE, 1, ANALOG_THRESHOLD, mAnalogListener);
+
+    private final SensorEventListener mTiltListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            // Tipping the right edge down reads negative x; tipping the top edge away from
+            // you lowers y.
+            if (Float.isNaN(mTiltNeutralY)) {
+                mTiltNeutralY = event.values[1];
+            }
+            mTiltInput.onSample(-event.values[0] / TILT_FULL_SCALE,
+                    (mTiltNeutralY - event.values[1]) / TILT_FULL_SCALE, event.timestamp);
         }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+    };
+
+    /**
+     * Drives with a gamepad's left stick or D-pad. Called by the activity with joystick motion
+     * events nobody else handled.
+     *
+     * @return true if the event was used
+     */
+    boolean onGenericMotionEvent(MotionEvent event) {
+        if ((event.getSource() & InputDevice.SOURCE_JOYSTICK) != InputDevice.SOURCE_JOYSTICK
+                || event.getActionMasked() != MotionEvent.ACTION_MOVE) {
+            return false;
+        }
+        // Batched samples first, so the filter sees the stick's whole path.
+        for (int i = 0; i < event.getHistorySize(); i++) {
+            onGamepadSample(event.getHistoricalAxisValue(MotionEvent.AXIS_X, i),
+                    event.getHistoricalAxisValue(MotionEvent.AXIS_Y, i),
+                    event.getHistoricalAxisValue(MotionEvent.AXIS_HAT_X, i),
+                    event.getHistoricalAxisValue(MotionEvent.AXIS_HAT_Y, i),
+                    event.getHistoricalEventTime(i));
+        }
+        onGamepadSample(event.getAxisValue(MotionEvent.AXIS_X),
+                event.getAxisValue(MotionEvent.AXIS_Y),
+                event.getAxisValue(MotionEvent.AXIS_HAT_X),
+                event.getAxisValue(MotionEvent.AXIS_HAT_Y), event.getEventTime());
+        return true;
+    }
+
+    private void onGamepadSample(float x, float y, float hatX, float hatY, long timeMs) {
+        // Axis y grows downwards. Whichever of stick and D-pad is pushed further counts.
+        mGamepadInput.onSample(Math.abs(hatX) > Math.abs(x) ? hatX : x,
+                Math.abs(hatY) > Math.abs(y) ? -hatY : -y, timeMs * 1000000L);
     }
 
+    private void setTiltToDrive(boolean enabled) {
+        if (mTiltToDrive == enabled) {
+            return;
+        }
+        mTiltToDrive = enabled;
+        if (enabled) {
+            startTilt();
+        } else {
+            stopTilt();
+            // Whatever tilt had the car doing ends with it.
+            if (mRobocarConnection != null) {
+                mLastSequence = mRobocarConnection.sendCommand(CarCommands.STOP);
+                setPendingControl(mCarControlMap.get(CarCommands.STOP));
+            }
+        }
+    }
+
+    private void startTilt() {
+        if (mAccelerometer == null) {
+            logUi("No accelerometer to drive with");
+            mTiltToDrive = false;
+            return;
+        }
+        mTiltNeutralY = Float.NaN;
+        mTiltInput.reset();
+        mSensorManager.registerListener(mTiltListener, mAccelerometer, TILT_SAMPLING_PERIOD_US,
+                mHandler);
+    }
+
+    private void stopTilt() {
+        if (mSensorManager != null) {
+            mSensorManager.unregisterListener(mTiltListener);
+        }
+    }
+
+    private final Runnable mRenewalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mHeldCommand != CarCommands.STOP && mRobocarConnection != null) {
+                mRobocarConnection.sendRenewal(mHeldCommand);
+                mHandler.postDelayed(this, Message.HELD_RENEWAL_INTERVAL_MS);
+            }
+        }
+    };
+
     private void setActivatedControl(View view) {
         if (mActivatedControl != null && mActivatedControl != view) {
             mActivatedControl.setActivated(false);
@@ -152,6 +510,39 @@ public class ControllerFragment extends Fragment {
         }
     }
 
+    private void setPendingControl(View view) {
+        clearPending();
+        setActivatedControl(view);
+        mPendingControl = view;
+        if (mPendingControl != null) {
+            mPendingControl.setAlpha(PENDING_ALPHA);
+        }
+        mHandler.postDelayed(mConfirmTimeoutRunnable, CONFIRM_TIMEOUT_MS);
+    }
+
+    private void clearPending() {
+        mHandler.removeCallbacks(mConfirmTimeoutRunnable);
+        if (mPendingControl != null) {
+            mPendingControl.setAlpha(1f);
+            mPendingControl = null;
+        }
+    }
+
+    /** Undoes an optimistic update: the car isn't doing what we showed, so show what it is. */
+    private void rollBack() {
+        clearPending();
+        mErrorView.setVisibility(View.VISIBLE);
+        setActivatedControl(mCarControlMap.get(mConfirmedCommand));
+    }
+
+    private final Runnable mConfirmTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, "No confirmation from the Robocar, rolling back");
+            rollBack();
+        }
+    };
+
     private void logUi(String text) {
         if (mLogView.getText().length() > 0) {
             mLogView.append("\n");
@@ -159,29 +550,70 @@ public class ControllerFragment extends Fragment {
         mLogView.append(text);
     }
 
-    PayloadCallback mPayloadListener = new PayloadCallback() {
+    MessageListener mCommandListener = new MessageListener() {
         @Override
-        public void onPayloadReceived(String s, Payload payload) {
-            byte[] bytes = CarCommands.fromPayload(payload);
-            if (bytes == null || bytes.length == 0) {
-                return;
+        public void onMessageReceived(Message message) {
+            byte command = message.getCommand();
+            Tracer.get().beginSection("onCommandEcho", message.getTraceId());
+            try {
+                showCarCommand(command);
+            } finally {
+                Tracer.get().endSection();
             }
+        }
+    };
 
-            byte command = bytes[0];
-            if (command == CarCommands.ERROR) {
-                mErrorView.setVisibility(View.VISIBLE);
-                Log.d(TAG, "onPayloadReceived: error");
-            } else {
-                mErrorView.setVisibility(View.GONE);
-                Log.d(TAG, "onPayloadReceived: " + command);
-                // activate control
-                View toActivate = mCarControlMap.get(command);
-                setActivatedControl(toActivate);
-            }
+    private final Observer<String> mSendRateObserver = new Observer<String>() {
+        @Override
+        public void onChanged(@Nullable String status) {
+            mSendRateView.setText(getString(R.string.send_rate, status));
         }
+    };
 
+    MessageListener mAckListener = new MessageListener() {
         @Override
-        public void onPayloadTransferUpdate(String endpoitnId, PayloadTransferUpdate xferUpdate) {
+        public void onMessageReceived(Message message) {
+            Ack ack = Ack.decode(message);
+            if (ack == null) {
+                Log.w(TAG, "Ignoring malformed ack");
+                return;
+            }
+            Tracer.get().beginSection("onAck", ack.mTraceId);
+            try {
+                onAck(ack);
+            } finally {
+                Tracer.get().endSection();
+            }
+        }
+
+        private void onAck(Ack ack) {
+            if (ack.isFailed(mLastSequence)) {
+                // Our last command didn't take; go back to what the car is doing.
+                Log.d(TAG, "Command " + mLastSequence + " failed");
+                if (ack.mCommand != CarCommands.ERROR) {
+                    mConfirmedCommand = ack.mCommand;
+                }
+                rollBack();
+            } else if (mLastSequence == Message.NO_SEQUENCE || ack.covers(mLastSequence)) {
+                showCarCommand(ack.mCommand);
+            }
+            // Otherwise the ack predates our last command, which is still on its way.
         }
     };
+
+    /** Shows what the Robocar reports it is doing, confirming or rolling back what we showed. */
+    private void showCarCommand(byte command) {
+        if (command == CarCommands.ERROR) {
+            Log.d(TAG, "onMessageReceived: error");
+            rollBack();
+        } else {
+            mConfirmedCommand = command;
+            clearPending();
+            mErrorView.setVisibility(View.GONE);
+            Log.d(TAG, "onMessageReceived: " + command);
+            // activate control
+            View toActivate = mCarControlMap.get(command);
+            setActivatedControl(toActivate);
+        }
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.companion;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hashed timing wheel that expires endpoints which haven't been seen within a fixed TTL.
+ * <p>
+ * Each entry sits in the slot of the tick its deadline falls on, so refreshing or removing an
+ * entry is O(1) and advancing the wheel by one tick only visits the entries that expire in that
+ * tick, no matter how many endpoints are being tracked. Not thread safe; drive it from a single
+ * thread.
+ */
+class EndpointExpiryWheel {
+
+    interface ExpiryListener {
+        void onEndpointExpired(String endpointId);
+    }
+
+    private final long mTtlMillis;
+    private final long mTickMillis;
+    private final Entry[] mSlots;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+
+    private long mLastTick;
+
+    EndpointExpiryWheel(long ttlMillis, long tickMillis) {
+        if (tickMillis <= 0 || ttlMillis < tickMillis) {
+            throw new IllegalArgumentException("TTL must be at least one tick");
+        }
+        mTtlMillis = ttlMillis;
+        mTickMillis = tickMillis;
+        // Enough slots that a fresh deadline never lands on the slot currently being processed.
+        mSlots = new Entry[(int) (ttlMillis / tickMillis) + 2];
+    }
+
+    public long getTickMillis() {
+        return mTickMillis;
+    }
+
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Marks an endpoint as seen at {@code nowMillis}, (re)starting its TTL.
+     */
+    public void touch(String endpointId, long nowMillis) {
+        if (mEntries.isEmpty()) {
+            // The wheel was idle, so start counting ticks from now.
+            mLastTick = nowMillis / mTickMillis;
+        }
+        Entry entry = mEntries.get(endpointId);
+        if (entry == null) {
+            entry = new Entry(endpointId);
+            mEntries.put(endpointId, entry);
+        } else {
+            unlink(entry);
+        }
+        entry.mDeadlineMillis = nowMillis + mTtlMillis;
+        // Round up so an entry never expires before its full TTL has elapsed.
+        entry.mTick = Math.max((entry.mDeadlineMillis + mTickMillis - 1) / mTickMillis,
+                mLastTick + 1);
+        link(entry);
+    }
+
+    public void remove(String endpointId) {
+        Entry entry = mEntries.remove(endpointId);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    public void clear() {
+        mEntries.clear();
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = null;
+        }
+    }
+
+    /**
+     * Processes every tick up to {@code nowMillis}, reporting each expired endpoint to the
+     * listener.
+     *
+     * @return the number of endpoints that expired
+     */
+    public int advanceTo(long nowMillis, ExpiryListener listener) {
+        long target = nowMillis / mTickMillis;
+        if (target <= mLastTick) {
+            return 0;
+        }
+        // If we fell more than a full revolution behind, visiting each slot once is enough.
+        long tick = Math.max(mLastTick + 1, target - mSlots.length + 1);
+        int expired = 0;
+        for (; tick <= target; tick++) {
+            expired += expireSlot(slotIndex(tick), target, listener);
+        }
+        mLastTick = target;
+        return expired;
+    }
+
+    private int expireSlot(int slot, long targetTick, ExpiryListener listener) {
+        int expired = 0;
+        Entry entry = mSlots[slot];
+        while (entry != null) {
+            Entry next = entry.mNext;
+            // Entries scheduled while the wheel lagged behind can share a slot with a later tick.
+            if (entry.mTick <= targetTick) {
+                unlink(entry);
+                mEntries.remove(entry.mEndpointId);
+                expired++;
+                if (listener != null) {
+                    listener.onEndpointExpired(entry.mEndpointId);
+                }
+            }
+            entry = next;
+        }
+        return expired;
+    }
+
+    private int slotIndex(long tick) {
+        return (int) (tick % mSlots.length);
+    }
+
+    private void link(Entry entry) {
+        int slot = slotIndex(entry.mTick);
+        Entry head = mSlots[slot];
+        entry.mPrev = null;
+        entry.mNext = head;
+        if (head != null) {
+            head.mPrev = entry;
+        }
+        mSlots[slot] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.mPrev != null) {
+            entry.mPrev.mNext = entry.mNext;
+        } else {
+            int slot = slotIndex(entry.mTick);
+            if (mSlots[slot] == entry) {
+                mSlots[slot] = entry.mNext;
+            }
+        }
+        if (entry.mNext != null) {
+            entry.mNext.mPrev = entry.mPrev;
+        }
+        entry.mPrev = entry.mNext = null;
+    }
+
+    private static class Entry {
+        final String mEndpointId;
+        long mDeadlineMillis;
+        long mTick;
+        Entry mPrev;
+        Entry mNext;
+
+        Entry(String endpointId) {
+            mEndpointId = endpointId;
+        }
+    }
+}
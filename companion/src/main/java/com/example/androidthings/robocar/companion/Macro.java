@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.companion;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A recorded sequence of car commands, each with its time from the start of the macro.
+ * <p>
+ * Binary format: the bytes 'R' 'M', a version byte, the number of steps as a varint, and then
+ * per step the command byte followed by the milliseconds since the previous step as a varint.
+ * A typical step takes two or three bytes.
+ */
+class Macro {
+
+    private static final byte MAGIC_0 = 'R';
+    private static final byte MAGIC_1 = 'M';
+    private static final int VERSION = 1;
+
+    private final byte[] mCommands;
+    private final long[] mOffsetsMs;
+
+    /**
+     * @param offsetsMs for each command, milliseconds from the start of the macro, ascending
+     */
+    Macro(byte[] commands, long[] offsetsMs) {
+        if (commands == null || offsetsMs == null || commands.length != offsetsMs.length) {
+            throw new IllegalArgumentException("Need one offset per command");
+        }
+        for (int i = 1; i < offsetsMs.length; i++) {
+            if (offsetsMs[i] < offsetsMs[i - 1]) {
+                throw new IllegalArgumentException("Offsets must be ascending");
+            }
+        }
+        mCommands = commands.clone();
+        mOffsetsMs = offsetsMs.clone();
+    }
+
+    int getStepCount() {
+        return mCommands.length;
+    }
+
+    byte getCommand(int step) {
+        return mCommands[step];
+    }
+
+    long getOffsetMs(int step) {
+        return mOffsetsMs[step];
+    }
+
+    long getDurationMs() {
+        return mOffsetsMs.length == 0 ? 0 : mOffsetsMs[mOffsetsMs.length - 1];
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4 + mCommands.length * 3);
+        out.write(MAGIC_0);
+        out.write(MAGIC_1);
+        out.write(VERSION);
+        writeVarint(out, mCommands.length);
+        long previous = 0;
+        for (int i = 0; i < mCommands.length; i++) {
+            out.write(mCommands[i]);
+            writeVarint(out, mOffsetsMs[i] - previous);
+            previous = mOffsetsMs[i];
+        }
+        return out.toByteArray();
+    }
+
+    static Macro fromBytes(byte[] data) throws IOException {
+        if (data.length < 4 || data[0] != MAGIC_0 || data[1] != MAGIC_1) {
+            throw new IOException("Not a macro");
+        }
+        if (data[2] != VERSION) {
+            throw new IOException("Unsupported macro version " + data[2]);
+        }
+        int[] position = {3};
+        long count = readVarint(data, position);
+        // Every step takes at least two bytes, which also bounds what we allocate.
+        if (count > (data.length - position[0]) / 2) {
+            throw new IOException("Truncated macro");
+        }
+        byte[] commands = new byte[(int) count];
+        long[] offsetsMs = new long[(int) count];
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            if (position[0] >= data.length) {
+                throw new IOException("Truncated macro");
+            }
+            commands[i] = data[position[0]++];
+            offset += readVarint(data, position);
+            offsetsMs[i] = offset;
+        }
+        return new Macro(commands, offsetsMs);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] data, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= data.length) {
+                throw new IOException("Truncated macro");
+            }
+            byte b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in macro");
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.companion;
+
+import android.arch.lifecycle.LiveData;
+import android.arch.lifecycle.MutableLiveData;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+import com.example.androidthings.robocar.shared.ClockSync;
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+import com.example.androidthings.robocar.shared.messaging.Message;
+
+/**
+ * Plays a {@link Macro} back to a Robocar. Every command is sent with the time it should execute
+ * at, up to {@link #LOOKAHEAD_MS} and {@link #MAX_AHEAD} commands ahead of time, so the car runs
+ * them on its own synchronized clock and delivery jitter doesn't show up in the timing. A car
+ * runs commands as they arrive until the clocks are synchronized, so until then, and for a car
+ * that can't schedule commands at all, each command is sent to execute right away when it is
+ * due. Must be used on the main thread.
+ */
+class MacroPlayer {
+
+    /** How far ahead of its execution time a command is sent. */
+    static final long LOOKAHEAD_MS = 1000L;
+    /** Commands that may be waiting on the car at once; it accepts up to 32. */
+    static final int MAX_AHEAD = 8;
+    /** Time given to the first commands to get there before playback starts. */
+    private static final long START_DELAY_MS = 250L;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final MutableLiveData<Boolean> mPlayingLiveData = new MutableLiveData<>();
+
+    private RobocarConnection mConnection;
+    private Macro mMacro;
+    private long mStartNanos;
+    private boolean mCanSchedule;
+    // Steps before mNext have been sent; steps before mDone have executed.
+    private int mNext;
+    private int mDone;
+
+    private final Runnable mPumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            pump();
+        }
+    };
+
+    MacroPlayer() {
+        mPlayingLiveData.setValue(false);
+    }
+
+    LiveData<Boolean> getPlayingLiveData() {
+        return mPlayingLiveData;
+    }
+
+    boolean isPlaying() {
+        return mMacro != null;
+    }
+
+    void play(RobocarConnection connection, Macro macro) {
+        if (connection == null || macro == null) {
+            throw new IllegalArgumentException("Connection and macro cannot be null");
+        }
+        stop(false);
+        mConnection = connection;
+        mMacro = macro;
+        mStartNanos = SystemClock.elapsedRealtimeNanos() + START_DELAY_MS * 1000000L;
+        mCanSchedule = connection.getPeerCapabilities()
+                .supportsCommandFlags(Message.COMMAND_FLAG_EXECUTE_AT);
+        mNext = 0;
+        mDone = 0;
+        mPlayingLiveData.setValue(true);
+        pump();
+    }
+
+    /**
+     * Stops playback.
+     *
+     * @param stopCar whether to stop the car as well. A command sent right away also drops the
+     *                ones the car was holding for later.
+     */
+    void stop(boolean stopCar) {
+        if (mMacro == null) {
+            return;
+        }
+        mHandler.removeCallbacks(mPumpRunnable);
+        if (stopCar && mConnection.isConnected()) {
+            mConnection.sendCommand(CarCommands.STOP);
+        }
+        mMacro = null;
+        mConnection = null;
+        mPlayingLiveData.setValue(false);
+    }
+
+    private long getStepNanos(int step) {
+        return mStartNanos + mMacro.getOffsetMs(step) * 1000000L;
+    }
+
+    /**
+     * Returns how far ahead commands can be sent right now: not at all until the clocks are
+     * synchronized, since the car would run them as soon as they arrive.
+     */
+    private long getLookaheadNanos() {
+        if (!mCanSchedule) {
+            return 0L;
+        }
+        ClockSync clockSync = mConnection.getClockSync();
+        return clockSync != null && clockSync.isSynchronized() ? LOOKAHEAD_MS * 1000000L : 0L;
+    }
+
+    private void pump() {
+        if (!mConnection.isConnected()) {
+            stop(false);
+            return;
+        }
+        long now = SystemClock.elapsedRealtimeNanos();
+        int count = mMacro.getStepCount();
+        while (mDone < mNext && getStepNanos(mDone) <= now) {
+            mDone++;
+        }
+        long lookaheadNanos = getLookaheadNanos();
+        long horizon = now + lookaheadNanos;
+        while (mNext < count && mNext - mDone < MAX_AHEAD && getStepNanos(mNext) <= horizon) {
+            mConnection.sendCommand(mMacro.getCommand(mNext), Tracer.NO_TRACE_ID,
+                    lookaheadNanos > 0 ? getStepNanos(mNext) : Message.EXECUTE_NOW);
+            mNext++;
+        }
+
+        long wakeAt;
+        if (mNext < count) {
+            // When the next step comes into the lookahead, or a slot frees up for it.
+            wakeAt = getStepNanos(mNext) - lookaheadNanos;
+            if (mNext - mDone >= MAX_AHEAD) {
+                wakeAt = Math.max(wakeAt, getStepNanos(mDone));
+            }
+        } else if (mDone < count) {
+            wakeAt = getStepNanos(count - 1);
+        } else {
+            stop(false);
+            return;
+        }
+        mHandler.postDelayed(mPumpRunnable, Math.max(1L, (wakeAt - now + 999999L) / 1000000L));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.companion;
+
+import android.os.SystemClock;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+
+import java.util.Arrays;
+
+/**
+ * Captures the commands the user sends, with when they were sent, and simplifies them into a
+ * {@link Macro}: repeats of the command the car is already running are merged into the first
+ * one, the wait before the first command is dropped, and time spent stopped is cut short. Time
+ * spent driving is kept as recorded, since that's what shapes the route. Not thread safe.
+ */
+class MacroRecorder {
+
+    /** Longest time the car stays stopped between two commands in a recorded macro. */
+    static final long MAX_IDLE_GAP_MS = 500L;
+
+    private byte[] mCommands = new byte[32];
+    private long[] mTimesMs = new long[32];
+    private int mCount;
+    private boolean mRecording;
+
+    void start() {
+        mCount = 0;
+        mRecording = true;
+    }
+
+    boolean isRecording() {
+        return mRecording;
+    }
+
+    void record(byte command) {
+        if (!mRecording) {
+            return;
+        }
+        if (mCount == mCommands.length) {
+            mCommands = Arrays.copyOf(mCommands, mCount * 2);
+            mTimesMs = Arrays.copyOf(mTimesMs, mCount * 2);
+        }
+        mCommands[mCount] = command;
+        mTimesMs[mCount] = SystemClock.elapsedRealtime();
+        mCount++;
+    }
+
+    /**
+     * Stops recording.
+     *
+     * @return the simplified macro, or null if nothing but stops was recorded
+     */
+    Macro stop() {
+        if (!mRecording) {
+            return null;
+        }
+        mRecording = false;
+        long stoppedAt = SystemClock.elapsedRealtime();
+        byte[] commands = new byte[mCount + 1];
+        long[] offsets = new long[mCount + 1];
+        int kept = 0;
+        byte current = CarCommands.STOP;
+        long currentSince = 0;
+        long offset = 0;
+        for (int i = 0; i < mCount; i++) {
+            byte command = mCommands[i];
+            if (command == current) {
+                continue; // The car is already doing this.
+            }
+            if (kept > 0) {
+                long gap = mTimesMs[i] - currentSince;
+                offset += current == CarCommands.STOP ? Math.min(gap, MAX_IDLE_GAP_MS) : gap;
+            }
+            commands[kept] = command;
+            offsets[kept] = offset;
+            kept++;
+            current = command;
+            currentSince = mTimesMs[i];
+        }
+        if (kept == 0) {
+            return null;
+        }
+        if (current != CarCommands.STOP) {
+            // Keep driving as long as the recording did, then stop.
+            commands[kept] = CarCommands.STOP;
+            offsets[kept] = offset + (stoppedAt - currentSince);
+            kept++;
+        }
+        return new Macro(Arrays.copyOf(commands, kept), Arrays.copyOf(offsets, kept));
+    }
+}
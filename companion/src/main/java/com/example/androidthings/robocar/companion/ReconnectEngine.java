@@ -0,0 +1,227 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.companion;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.androidthings.robocar.shared.metrics.Counter;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
+
+/**
+ * Reconnects to the last paired Robocar after an unexpected disconnect without waiting for
+ * discovery to find it again. The last endpoint (including its pairing token) is cached and a
+ * connection is requested right away, retrying with bounded exponential backoff. Discovery keeps
+ * running in parallel, so if the Robocar comes back under a new endpoint ID the next attempt uses
+ * that instead. An attempt that hasn't got anywhere after {@link #ATTEMPT_TIMEOUT_MS} is abandoned
+ * and counts as failed, so a request Nearby never answers doesn't stall the retries. Only the
+ * engine's own requests count: a request discovery makes while a retry is pending may fail
+ * without costing an attempt or scheduling another retry.
+ */
+class ReconnectEngine {
+
+    private static final String TAG = "ReconnectEngine";
+
+    private static final long INITIAL_BACKOFF_MS = 250L;
+    private static final long MAX_BACKOFF_MS = 4000L;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long ATTEMPT_TIMEOUT_MS = 10000L;
+
+    private static final Counter ATTEMPTS = MetricsRegistry.getDefault().counter(
+            "robocar_reconnect_attempts_total", "Attempts to reconnect to the last Robocar");
+    private static final Counter RECONNECTS = MetricsRegistry.getDefault().counter(
+            "robocar_reconnects_total", "Successful reconnects to the last Robocar");
+
+    interface Callback {
+        /**
+         * Requests a connection to the given endpoint.
+         *
+         * @return true if a request was issued
+         */
+        boolean requestReconnect(RobocarEndpoint endpoint);
+
+        /**
+         * Gives up on a connection request that is still waiting for Nearby to answer or for the
+         * connection to come up.
+         *
+         * @return true if the request was still waiting and has been dropped
+         */
+        boolean abandonReconnect(RobocarEndpoint endpoint);
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+
+    private RobocarEndpoint mLastEndpoint;
+    private int mAttempts;
+    private boolean mReconnecting;
+    // Whether a request made by attempt() has yet to succeed or fail.
+    private boolean mAttemptInFlight;
+    private long mDisconnectedMillis;
+    private boolean mAwaitingFirstCommand;
+    private long mLastTimeToFirstCommandMillis = -1;
+
+    private final Runnable mAttemptRunnable = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+
+    private final Runnable mAttemptTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mAttemptInFlight && mLastEndpoint != null
+                    && mCallback.abandonReconnect(mLastEndpoint)) {
+                Log.d(TAG, "Reconnect attempt " + mAttempts + " timed out");
+                onAttemptFailed();
+            }
+        }
+    };
+
+    ReconnectEngine(Handler handler, Callback callback) {
+        mHandler = handler;
+        mCallback = callback;
+    }
+
+    /**
+     * Caches the endpoint of the Robocar we just paired with or reconnected to.
+     */
+    public void setLastEndpoint(RobocarEndpoint endpoint) {
+        mLastEndpoint = endpoint;
+    }
+
+    /**
+     * Called when discovery finds the remembered Robocar, possibly under a new endpoint ID.
+     */
+    public void onRememberedEndpointFound(RobocarEndpoint endpoint) {
+        if (mLastEndpoint != null && mLastEndpoint.mAdvertisingInfo.mRobocarId.equals(
+                endpoint.mAdvertisingInfo.mRobocarId)) {
+            mLastEndpoint = endpoint;
+        }
+    }
+
+    public boolean isReconnecting() {
+        return mReconnecting;
+    }
+
+    public void onConnected() {
+        if (mReconnecting) {
+            RECONNECTS.increment();
+            Log.d(TAG, "Reconnected after " + mAttempts + " attempt(s), "
+                    + (SystemClock.elapsedRealtime() - mDisconnectedMillis) + "ms");
+            mAwaitingFirstCommand = true;
+        }
+        stop();
+    }
+
+    public void onDisconnected() {
+        if (mLastEndpoint == null) {
+            return;
+        }
+        stop();
+        mReconnecting = true;
+        mDisconnectedMillis = SystemClock.elapsedRealtime();
+        mAwaitingFirstCommand = false;
+        // Fast path: try the cached endpoint immediately.
+        attempt();
+    }
+
+    /**
+     * Called when a connection request didn't succeed. Ignored unless it is the one our last
+     * attempt made; there is only ever one request at a time, so any other was not ours.
+     */
+    public void onAttemptFailed() {
+        if (!mAttemptInFlight) {
+            return;
+        }
+        mAttemptInFlight = false;
+        mHandler.removeCallbacks(mAttemptTimeoutRunnable);
+        scheduleRetry();
+    }
+
+    /**
+     * Stops any pending attempts, e.g. because the user disconnected on purpose.
+     */
+    public void cancel() {
+        stop();
+        mAwaitingFirstCommand = false;
+    }
+
+    /**
+     * Forgets the cached endpoint, e.g. because the pairing was lost.
+     */
+    public void forget() {
+        cancel();
+        mLastEndpoint = null;
+    }
+
+    public void onCommandSent() {
+        if (mAwaitingFirstCommand) {
+            mAwaitingFirstCommand = false;
+            mLastTimeToFirstCommandMillis = SystemClock.elapsedRealtime() - mDisconnectedMillis;
+            Log.d(TAG, "Time to first command after reconnect: "
+                    + mLastTimeToFirstCommandMillis + "ms");
+        }
+    }
+
+    /**
+     * Returns the time from the last disconnect until the first command was sent over the
+     * reconnected link, or -1 if no reconnect has completed yet.
+     */
+    public long getLastTimeToFirstCommandMillis() {
+        return mLastTimeToFirstCommandMillis;
+    }
+
+    private void attempt() {
+        if (!mReconnecting || mLastEndpoint == null) {
+            return;
+        }
+        mAttempts++;
+        ATTEMPTS.increment();
+        Log.d(TAG, "Reconnect attempt " + mAttempts + " to " + mLastEndpoint.mEndpointId);
+        if (mCallback.requestReconnect(mLastEndpoint)) {
+            mAttemptInFlight = true;
+            mHandler.postDelayed(mAttemptTimeoutRunnable, ATTEMPT_TIMEOUT_MS);
+        } else {
+            scheduleRetry();
+        }
+    }
+
+    private void scheduleRetry() {
+        if (!mReconnecting) {
+            return;
+        }
+        if (mAttempts >= MAX_ATTEMPTS) {
+            Log.d(TAG, "Giving up after " + mAttempts + " attempts; relying on discovery");
+            stop();
+            return;
+        }
+        long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << (mAttempts - 1));
+        // Never more than one retry pending.
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mHandler.postDelayed(mAttemptRunnable, backoff);
+    }
+
+    private void stop() {
+        mHandler.removeCallbacks(mAttemptRunnable);
+        mHandler.removeCallbacks(mAttemptTimeoutRunnable);
+        mReconnecting = false;
+        mAttemptInFlight = false;
+        mAttempts = 0;
+    }
+}
@@ -15,12 +15,30 @@
  */
 package com.example.androidthings.robocar.companion;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.androidthings.robocar.shared.CarCommands;
 import com.example.androidthings.robocar.shared.NearbyConnection;
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+import com.example.androidthings.robocar.shared.messaging.Ack;
+import com.example.androidthings.robocar.shared.messaging.Capabilities;
+import com.example.androidthings.robocar.shared.messaging.CommandAuthenticator;
+import com.example.androidthings.robocar.shared.messaging.Message;
+import com.example.androidthings.robocar.shared.messaging.MessageType;
 import com.example.androidthings.robocar.shared.model.AdvertisingInfo;
+import com.example.androidthings.robocar.shared.program.MotionProgram;
+import com.google.android.gms.nearby.connection.Payload;
 
 /**
  * Handle for a connection to a Robocar, providing convenient methods for both authenticating the
  * connection and transmitting data through it.
+ * <p>
+ * Commands go out no faster than its {@link CongestionController} allows. One that comes too
+ * soon is held back, replacing any command already held, and sent once the rate allows. STOP and
+ * commands scheduled for later are never held back. A command that is held back is numbered
+ * right away, so callers can tell which ack confirms it.
  */
 public class RobocarConnection extends NearbyConnection {
 
@@ -29,6 +47,35 @@ public class RobocarConnection extends NearbyConnection {
 
     private final boolean mAutoConnect;
 
+    private final CongestionController mCongestionController = new CongestionController();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mHasDeferred;
+    private byte mDeferredCommand;
+    private long mDeferredTraceId;
+    private boolean mDeferredHeld;
+    private int mDeferredSequence;
+
+    // The last renewal sent, reused for the next renewal of the same command.
+    private byte[] mRenewalFrame;
+
+    private final Runnable mDeferredSendRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mHasDeferred) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (isConnected() && !mCongestionController.tryAcquire(now)) {
+                // The rate went down in the meantime.
+                postDeferredSend(now);
+                return;
+            }
+            mHasDeferred = false;
+            send(mDeferredCommand, mDeferredTraceId, Message.EXECUTE_NOW, mDeferredHeld,
+                    mDeferredSequence, now);
+        }
+    };
+
     public RobocarConnection(String endpointId, AdvertisingInfo advertisingInfo,
             RobocarDiscoverer robocarDiscoverer, boolean autoConnect) {
         super(endpointId, robocarDiscoverer);
@@ -63,4 +110,122 @@ public class RobocarConnection extends NearbyConnection {
     public void disconnect() {
         mRobocarDiscoverer.disconnect();
     }
+
+    /**
+     * Uploads a motion program for the Robocar to run on its own. Any command sent afterwards
+     * stops the program.
+     *
+     * @return false if the Robocar doesn't run programs, isn't connected or wouldn't trust the
+     * program because commands to it aren't signed
+     */
+    public boolean runProgram(MotionProgram program) {
+        CommandAuthenticator authenticator = getCommandAuthenticator();
+        if (!isConnected() || !getPeerCapabilities().supportsMessageType(MessageType.PROGRAM)
+                || !isSigningCommands() || authenticator == null) {
+            return false;
+        }
+        byte[] frame = program.toFrame(reserveSequence());
+        authenticator.sign(frame);
+        mRobocarDiscoverer.sendData(getEndpointId(), Payload.fromBytes(frame));
+        return true;
+    }
+
+    public CongestionController getCongestionController() {
+        return mCongestionController;
+    }
+
+    /**
+     * Renews a held command the Robocar already has, to keep it going; see
+     * {@link Message#COMMAND_FLAG_HELD}. Skipped if the link is busy; the next one will do.
+     * <p>
+     * Renewals of the same command reuse one frame. Signed commands need a fresh sequence number
+     * each time, or the Robocar would take them for replays, so the frame is renumbered and
+     * signed again in place. Nearby copies the bytes out when the payload is sent, so that is
+     * safe. Must be called on the main thread.
+     */
+    public void sendRenewal(byte command) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        // A command waiting to go out replaces the held one anyway.
+        if (!isConnected() || mHasDeferred || !mCongestionController.tryAcquire(now)) {
+            return;
+        }
+        CommandAuthenticator authenticator = getCommandAuthenticator();
+        if (isSigningCommands() && authenticator != null) {
+            if (mRenewalFrame == null || mRenewalFrame.length == 1
+                    || mRenewalFrame[1] != command) {
+                // The sequence number is only there to make room; it is set below.
+                mRenewalFrame = Message.encodeCommand(command, Tracer.NO_TRACE_ID,
+                        Message.EXECUTE_NOW, Integer.MAX_VALUE,
+                        getPeerCapabilities().supportsCommandFlags(Message.COMMAND_FLAG_HELD),
+                        true);
+            }
+            int sequence = reserveSequence();
+            Message.setSequence(mRenewalFrame, sequence);
+            authenticator.sign(mRenewalFrame);
+            sendFrame(mRenewalFrame);
+            mCongestionController.onCommandSent(sequence, now);
+        } else {
+            // An older Robocar, which only understands a bare command and just repeats it.
+            if (mRenewalFrame == null || mRenewalFrame.length != 1
+                    || mRenewalFrame[0] != command) {
+                mRenewalFrame = new byte[]{command};
+            }
+            sendFrame(mRenewalFrame);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Must be called on the main thread. A command held back by congestion control already has
+     * its sequence number, which is returned; if a newer command replaces it before it goes out,
+     * it is never sent and only the newer one is acknowledged.
+     */
+    @Override
+    public int sendCommand(byte command, long traceId, long executeAtNanos, boolean held) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        // Whatever was held back is out of date now.
+        mHasDeferred = false;
+        mHandler.removeCallbacks(mDeferredSendRunnable);
+        if (command != CarCommands.STOP && executeAtNanos == Message.EXECUTE_NOW
+                && isConnected() && !mCongestionController.tryAcquire(now)) {
+            mHasDeferred = true;
+            mDeferredCommand = command;
+            mDeferredTraceId = traceId;
+            mDeferredHeld = held;
+            mDeferredSequence = reserveSequence();
+            postDeferredSend(now);
+            return mDeferredSequence;
+        }
+        return send(command, traceId, executeAtNanos, held, reserveSequence(), now);
+    }
+
+    private int send(byte command, long traceId, long executeAtNanos, boolean held,
+            int sequence, long now) {
+        sequence = sendCommand(command, traceId, executeAtNanos, held, sequence);
+        if (isConnected()) {
+            mCongestionController.onCommandSent(sequence, now);
+            mRobocarDiscoverer.onCommandSent(this);
+        }
+        return sequence;
+    }
+
+    private void postDeferredSend(long now) {
+        long delayMs = (mCongestionController.getNextSendNanos() - now + 999999) / 1000000;
+        mHandler.postDelayed(mDeferredSendRunnable, delayMs);
+    }
+
+    @Override
+    public void setPeerCapabilities(Capabilities capabilities) {
+        super.setPeerCapabilities(capabilities);
+        mCongestionController.setMaxRate(capabilities.mMaxCommandRate);
+    }
+
+    void onAck(Ack ack) {
+        mCongestionController.onAck(ack, SystemClock.elapsedRealtimeNanos());
+    }
+
+    void onPayloadFailed() {
+        mCongestionController.onPayloadFailed(SystemClock.elapsedRealtimeNanos());
+    }
 }
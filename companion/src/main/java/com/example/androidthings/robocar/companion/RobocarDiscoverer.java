@@ -17,16 +17,29 @@ package com.example.androidthings.robocar.companion;
 
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
-import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.preference.PreferenceManager;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.example.androidthings.robocar.shared.NearbyConnection.ConnectionState;
 import com.example.androidthings.robocar.shared.NearbyConnectionManager;
-import com.example.androidthings.robocar.shared.PreferenceUtils;
+import com.example.androidthings.robocar.shared.PairingStore;
+import com.example.androidthings.robocar.shared.diagnostics.EventRing;
+import com.example.androidthings.robocar.shared.diagnostics.EventRing.EventCode;
+import com.example.androidthings.robocar.shared.messaging.Ack;
+import com.example.androidthings.robocar.shared.messaging.Capabilities;
+import com.example.androidthings.robocar.shared.messaging.CommandAuthenticator;
+import com.example.androidthings.robocar.shared.messaging.HandlerExecutor;
+import com.example.androidthings.robocar.shared.messaging.Message;
+import com.example.androidthings.robocar.shared.messaging.MessageBus;
+import com.example.androidthings.robocar.shared.messaging.MessageBus.MessageListener;
+import com.example.androidthings.robocar.shared.messaging.MessageType;
+import com.example.androidthings.robocar.shared.metrics.Counter;
+import com.example.androidthings.robocar.shared.metrics.Gauge;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
 import com.example.androidthings.robocar.shared.model.AdvertisingInfo;
 import com.example.androidthings.robocar.shared.model.DiscovererInfo;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -41,19 +54,51 @@ import com.google.android.gms.nearby.connection.DiscoveredEndpointInfo;
 import com.google.android.gms.nearby.connection.DiscoveryOptions;
 import com.google.android.gms.nearby.connection.EndpointDiscoveryCallback;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 
 
 public class RobocarDiscoverer extends NearbyConnectionManager implements ConnectionCallbacks {
 
     private static final String TAG = "RobocarDiscoverer";
 
-    private final Map<String, RobocarEndpoint> mEndpointMap = new LinkedHashMap<>();
+    private static final Counter CONNECTION_REQUESTS = MetricsRegistry.getDefault().counter(
+            "robocar_connection_requests_total", "Connections requested to a Robocar");
+    private static final Counter CONNECTION_REQUEST_FAILURES =
+            MetricsRegistry.getDefault().counter("robocar_connection_request_failures_total",
+                    "Connection requests the Nearby API refused");
+    private static final Counter ENDPOINTS_EXPIRED = MetricsRegistry.getDefault().counter(
+            "robocar_endpoints_expired_total", "Discovered endpoints dropped after their TTL");
+
+    // Nearby only reports an endpoint once per discovery session and can be slow to report it
+    // lost, so endpoints expire if not rediscovered within the TTL. Discovery is restarted
+    // periodically so that Robocars still in range are reported (and refreshed) again.
+    private static final long ENDPOINT_TTL_MS = 30000L;
+    private static final long EXPIRY_TICK_MS = 500L;
+    private static final long DISCOVERY_REFRESH_MS = 20000L;
+
+    private static final Comparator<RobocarEndpoint> MOST_RECENT_FIRST =
+            new Comparator<RobocarEndpoint>() {
+                @Override
+                public int compare(RobocarEndpoint a, RobocarEndpoint b) {
+                    return Long.compare(b.mLastSeenMillis, a.mLastSeenMillis);
+                }
+            };
+
+    private final RobocarEndpointRegistry mEndpoints = new RobocarEndpointRegistry();
+    private final EndpointExpiryWheel mExpiryWheel =
+            new EndpointExpiryWheel(ENDPOINT_TTL_MS, EXPIRY_TICK_MS);
+    private final Handler mHandler = new Handler();
+    private boolean mExpiryTickScheduled;
+    private long mDiscoveryStartedMillis;
+    // Unlike the above, not reset when discovery is refreshed.
+    private long mSearchStartedNanos;
+
+    private final ReconnectEngine mReconnectEngine;
     private DiscovererInfo mDiscovererInfo;
-    private AdvertisingInfo mPairedAdvertisingInfo;
 
     private boolean mAutoConnectEnabled = true;
 
@@ -76,14 +121,89 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
                 }
             };
 
+    private final EndpointExpiryWheel.ExpiryListener mExpiryListener =
+            new EndpointExpiryWheel.ExpiryListener() {
+                @Override
+                public void onEndpointExpired(String endpointId) {
+                    EventRing.get().record(EventCode.ENDPOINT_EXPIRED, endpointId);
+                    mEndpoints.remove(endpointId);
+                    ENDPOINTS_EXPIRED.increment();
+                }
+            };
+
+    private final Runnable mExpiryTickRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mExpiryTickScheduled = false;
+            long now = SystemClock.elapsedRealtime();
+            if (mExpiryWheel.advanceTo(now, mExpiryListener) > 0) {
+                onEndpointsChanged();
+            }
+            if (shouldRefreshDiscovery(now)) {
+                refreshDiscovery();
+            }
+            scheduleExpiryTick();
+        }
+    };
+
     public RobocarDiscoverer(GoogleApiClient client) {
         super(client);
         client.registerConnectionCallbacks(this);
+        MetricsRegistry.getDefault().gauge("robocar_endpoints_discovered",
+                "Robocar endpoints currently known", new Gauge() {
+                    @Override
+                    public long sample() {
+                        return mEndpoints.size(); // racy, but only ever an estimate
+                    }
+                });
 
         mDiscoveryLiveData = new MutableLiveData<>();
         mDiscoveryLiveData.setValue(false);
         mRobocarEndpointsLiveData = new MutableLiveData<>();
         mRobocarConnectionLiveData = new MutableLiveData<>();
+
+        mReconnectEngine = new ReconnectEngine(mHandler, new ReconnectEngine.Callback() {
+            @Override
+            public boolean requestReconnect(RobocarEndpoint endpoint) {
+                return requestConnection(endpoint);
+            }
+
+            @Override
+            public boolean abandonReconnect(RobocarEndpoint endpoint) {
+                RobocarConnection connection = mRobocarConnectionLiveData.getValue();
+                if (connection == null || !connection.endpointMatches(endpoint.mEndpointId)) {
+                    return false;
+                }
+                // Either Nearby hasn't answered, or we accepted and it never connected.
+                int state = connection.getState();
+                if (state != ConnectionState.REQUESTING
+                        && state != ConnectionState.AUTH_ACCEPTED) {
+                    return false;
+                }
+                disconnectFromEndpoint(endpoint.mEndpointId);
+                clearRobocarConnection();
+                return true;
+            }
+        });
+        MessageBus messageBus = getMessageBus();
+        // Command echoes and acks update views. Keep the latest of each so that coming back to
+        // the controller shows what the Robocar is currently doing.
+        messageBus.setExecutor(MessageType.COMMAND, HandlerExecutor.forMainLooper());
+        messageBus.setReplayCount(MessageType.COMMAND, 1);
+        messageBus.setExecutor(MessageType.ACK, HandlerExecutor.forMainLooper());
+        messageBus.setReplayCount(MessageType.ACK, 1);
+        // Acks drive congestion control, whether or not a screen is showing them.
+        messageBus.subscribe(MessageType.ACK, new MessageListener() {
+            @Override
+            public void onMessageReceived(Message message) {
+                Ack ack = Ack.decode(message);
+                RobocarConnection connection = mRobocarConnectionLiveData.getValue();
+                if (ack != null && connection != null
+                        && connection.endpointMatches(message.mEndpointId)) {
+                    connection.onAck(ack);
+                }
+            }
+        });
     }
 
     public void setDiscovererInfo(DiscovererInfo info) {
@@ -92,10 +212,6 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
         mDiscovererInfo = info;
     }
 
-    public void setPairedAdvertisingInfo(AdvertisingInfo info) {
-        mPairedAdvertisingInfo = info;
-    }
-
     // For observers
 
     public LiveData<Boolean> getDiscoveryLiveData() {
@@ -124,16 +240,22 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
 
         // Pre-emptively set this so the check above catches calls while we wait for a result.
         mDiscoveryLiveData.setValue(true);
+        mSearchStartedNanos = SystemClock.elapsedRealtimeNanos();
+        startNearbyDiscovery();
+    }
+
+    private void startNearbyDiscovery() {
+        mDiscoveryStartedMillis = SystemClock.elapsedRealtime();
         Nearby.Connections.startDiscovery(mGoogleApiClient, SERVICE_ID, mEndpointDiscoveryCallback,
                 new DiscoveryOptions(STRATEGY)).setResultCallback(new ResultCallback<Status>() {
             @Override
             public void onResult(@NonNull Status status) {
                 if (status.isSuccess()) {
-                    Log.d(TAG, "Discovery started.");
+                    EventRing.get().record(EventCode.DISCOVERY_STARTED, null);
                     mDiscoveryLiveData.setValue(true);
                 } else {
-                    Log.d(TAG, String.format("Failed to start discovery. %d, %s",
-                            status.getStatusCode(), status.getStatusMessage()));
+                    EventRing.get().record(EventCode.DISCOVERY_FAILED, null,
+                            status.getStatusCode(), 0);
                     mDiscoveryLiveData.setValue(false);
                 }
             }
@@ -147,10 +269,28 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
             if (mGoogleApiClient.isConnected()) {
                 Nearby.Connections.stopDiscovery(mGoogleApiClient);
             }
+            EventRing.get().record(EventCode.DISCOVERY_STOPPED, null);
             clearEndpoints();
         }
     }
 
+    private boolean shouldRefreshDiscovery(long nowMillis) {
+        return mDiscoveryLiveData.getValue()
+                && mRobocarConnectionLiveData.getValue() == null
+                && mGoogleApiClient.isConnected()
+                && nowMillis - mDiscoveryStartedMillis >= DISCOVERY_REFRESH_MS;
+    }
+
+    /**
+     * Restarts the Nearby discovery session without clearing the known endpoints, so Robocars that
+     * are still in range get reported again before their TTL runs out.
+     */
+    private void refreshDiscovery() {
+        Nearby.Connections.stopDiscovery(mGoogleApiClient);
+        EventRing.get().record(EventCode.DISCOVERY_STOPPED, null);
+        startNearbyDiscovery();
+    }
+
     // Google API connection
 
     @Override
@@ -160,6 +300,7 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
 
     @Override
     public void onConnectionSuspended(int cause) {
+        mReconnectEngine.cancel();
         stopDiscovery();
         clearRobocarConnection();
         clearEndpoints();
@@ -170,10 +311,28 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
     private void onNearbyEndpointFound(String endpointId, DiscoveredEndpointInfo endpointInfo) {
         AdvertisingInfo info = AdvertisingInfo.parseAdvertisingName(endpointInfo.getEndpointName());
         if (info != null) {
+            long now = SystemClock.elapsedRealtime();
+            // Expire stale entries first so they can't be picked for auto-connect below.
+            mExpiryWheel.advanceTo(now, mExpiryListener);
+
             boolean isRemembered = isTheDroidWeAreLookingFor(info);
-            mEndpointMap.put(endpointId, new RobocarEndpoint(endpointId, info, isRemembered));
+            RobocarEndpoint endpoint = new RobocarEndpoint(endpointId, info, isRemembered, now);
+            RobocarEndpoint replaced = mEndpoints.put(endpoint);
+            EventRing.get().record(EventCode.ENDPOINT_FOUND, endpointId);
+            if (replaced != null) {
+                // The Robocar re-advertised under a new endpoint ID; forget the old one.
+                EventRing.get().record(EventCode.ENDPOINT_REPLACED, endpointId,
+                        replaced.mEndpointId.hashCode(), 0);
+                mExpiryWheel.remove(replaced.mEndpointId);
+            }
+            mExpiryWheel.touch(endpointId, now);
+            scheduleExpiryTick();
             onEndpointsChanged();
 
+            if (isRemembered) {
+                mReconnectEngine.onRememberedEndpointFound(endpoint);
+            }
+            // Just found, so it is as fresh as an endpoint gets.
             if (isRemembered && mAutoConnectEnabled) {
                 // try to auto-connect
                 requestConnection(endpointId);
@@ -182,40 +341,73 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
     }
 
     private void onNearbyEndpointLost(String endpointId) {
-        mEndpointMap.remove(endpointId);
+        mEndpoints.remove(endpointId);
+        mExpiryWheel.remove(endpointId);
         onEndpointsChanged();
     }
 
-    public void requestConnection(String endpointId) {
-        if (mRobocarConnectionLiveData.getValue() != null) {
-            // We're already connecting to something else
-            return;
+    private void scheduleExpiryTick() {
+        if (!mExpiryTickScheduled && !mExpiryWheel.isEmpty()) {
+            mExpiryTickScheduled = true;
+            mHandler.postDelayed(mExpiryTickRunnable, mExpiryWheel.getTickMillis());
         }
-        RobocarEndpoint endpoint = mEndpointMap.get(endpointId);
+    }
+
+    public void requestConnection(String endpointId) {
+        RobocarEndpoint endpoint = mEndpoints.get(endpointId);
         if (endpoint == null) {
             // Not a valid ID
             return;
         }
+        requestConnection(endpoint);
+    }
+
+    private boolean requestConnection(final RobocarEndpoint endpoint) {
+        if (mRobocarConnectionLiveData.getValue() != null) {
+            // We're already connecting to something else
+            return false;
+        }
+
+        if (mDiscoveryLiveData.getValue()) {
+            getConnectionSetupStats().recordSearching(
+                    SystemClock.elapsedRealtimeNanos() - mSearchStartedNanos);
+        }
 
-        RobocarConnection connection = new RobocarConnection(endpoint.mEndpointId,
+        final RobocarConnection connection = new RobocarConnection(endpoint.mEndpointId,
                 endpoint.mAdvertisingInfo, this, endpoint.mIsRemembered);
         connection.setState(ConnectionState.REQUESTING);
         mRobocarConnectionLiveData.setValue(connection);
 
-        String name = mDiscovererInfo == null ? null : mDiscovererInfo.getAdvertisingName();
-        Nearby.Connections.requestConnection(mGoogleApiClient, name, endpointId, mLifecycleCallback)
+        String name = null;
+        if (mDiscovererInfo != null) {
+            // A Robocar only knows us by the token from when it paired with us, which is not the
+            // latest one if we have paired with another Robocar since.
+            AdvertisingInfo paired = getPairingStore().getPairedRobocar(
+                    endpoint.mAdvertisingInfo.mRobocarId);
+            name = paired == null ? mDiscovererInfo.getAdvertisingName()
+                    : new DiscovererInfo(mDiscovererInfo.mCompanionId, paired.mPairToken)
+                            .getAdvertisingName();
+        }
+        Nearby.Connections.requestConnection(mGoogleApiClient, name, endpoint.mEndpointId,
+                mLifecycleCallback)
                 .setResultCallback(new ResultCallback<Status>() {
                     @Override
                     public void onResult(@NonNull Status status) {
-                        if (status.isSuccess()) {
-                            Log.d(TAG, "Requested connection.");
-                        } else {
-                            Log.d(TAG, String.format("Request connection failed. %d %s",
-                                    status.getStatusCode(), status.getStatusMessage()));
-                            clearRobocarConnection();
+                        EventRing.get().record(EventCode.CONNECTION_REQUESTED,
+                                endpoint.mEndpointId, status.getStatusCode(), 0);
+                        CONNECTION_REQUESTS.increment();
+                        if (!status.isSuccess()) {
+                            CONNECTION_REQUEST_FAILURES.increment();
+                            // The attempt may have timed out and been abandoned already, which
+                            // reported the failure; a late result must not report it again.
+                            if (connection == mRobocarConnectionLiveData.getValue()) {
+                                clearRobocarConnection();
+                                mReconnectEngine.onAttemptFailed();
+                            }
                         }
                     }
                 });
+        return true;
     }
 
     @Override
@@ -243,22 +435,20 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
 
     public void acceptConnection() {
         final RobocarConnection connection = mRobocarConnectionLiveData.getValue();
-        if (connection == null) {
+        if (connection == null || !connection.setState(ConnectionState.AUTH_ACCEPTED)) {
             return;
         }
 
-        connection.setState(ConnectionState.AUTH_ACCEPTED);
         acceptConnection(connection.getEndpointId())
                 .setResultCallback(new ResultCallback<Status>() {
                     @Override
                     public void onResult(@NonNull Status status) {
-                        if (status.isSuccess()) {
-                            Log.d(TAG, "Accepted connection.");
-                        } else {
-                            Log.d(TAG, String.format("Accept unsuccessful. %d %s",
-                                    status.getStatusCode(), status.getStatusMessage()));
-                            // revert state
-                            connection.setState(ConnectionState.AUTHENTICATING);
+                        EventRing.get().record(EventCode.CONNECTION_ACCEPTED,
+                                connection.getEndpointId(), status.getStatusCode(), 0);
+                        if (!status.isSuccess()) {
+                            // revert state, unless something else moved it on meanwhile
+                            connection.compareAndSetState(ConnectionState.AUTH_ACCEPTED,
+                                    ConnectionState.AUTHENTICATING);
                         }
                     }
                 });
@@ -270,21 +460,19 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
 
     public void rejectConnection() {
         final RobocarConnection connection = mRobocarConnectionLiveData.getValue();
-        if (connection == null) {
+        if (connection == null || !connection.setState(ConnectionState.AUTH_REJECTED)) {
             return;
         }
 
-        connection.setState(ConnectionState.AUTH_REJECTED);
         rejectConnection(connection.getEndpointId())
                 .setResultCallback(new ResultCallback<Status>() {
                     @Override
                     public void onResult(@NonNull Status status) {
-                        if (status.isSuccess()) {
-                            Log.d(TAG, "Rejected connection.");
-                        } else {
-                            Log.d(TAG, String.format("Reject unsuccessful. %d %s",
-                                    status.getStatusCode(), status.getStatusMessage()));
-                            connection.setState(ConnectionState.AUTHENTICATING);
+                        EventRing.get().record(EventCode.CONNECTION_REJECTED,
+                                connection.getEndpointId(), status.getStatusCode(), 0);
+                        if (!status.isSuccess()) {
+                            connection.compareAndSetState(ConnectionState.AUTH_REJECTED,
+                                    ConnectionState.AUTHENTICATING);
                         }
                     }
                 });
@@ -295,11 +483,17 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
         super.onNearbyConnectionRejected(endpointId);
         RobocarConnection connection = mRobocarConnectionLiveData.getValue();
         if (connection != null && connection.endpointMatches(endpointId)) {
-            if (connection.isAutoConnect()) {
-                // Avoid reconnecting.
+            connection.markRemotelyRejected();
+            boolean rejectedByUser = connection.getState() == ConnectionState.AUTH_REJECTED;
+            clearRobocarConnection();
+            if (rejectedByUser) {
+                // The user said no; don't keep asking.
                 mAutoConnectEnabled = false;
+                mReconnectEngine.cancel();
+            } else {
+                // Could be the Robocar busy or a transient failure; back off and retry.
+                mReconnectEngine.onAttemptFailed();
             }
-            clearRobocarConnection();
         }
     }
 
@@ -311,6 +505,7 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
             stopDiscovery();
             connection.setState(ConnectionState.CONNECTED);
             savePairingInformation(connection);
+            mReconnectEngine.onConnected();
             // We may have disabled this due to a canceled or rejected connection. Re-enable it now.
             mAutoConnectEnabled = true;
         } else {
@@ -319,13 +514,45 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
         }
     }
 
+    @Override
+    protected void onPeerCapabilities(String endpointId, Capabilities capabilities) {
+        super.onPeerCapabilities(endpointId, capabilities);
+        RobocarConnection connection = mRobocarConnectionLiveData.getValue();
+        if (connection != null && connection.endpointMatches(endpointId)) {
+            connection.setPeerCapabilities(capabilities);
+            // The key only goes to a Robocar the user confirmed, never to one that just
+            // advertises what a paired one does, and before any command that is signed with it.
+            if (!connection.isAutoConnect()
+                    && capabilities.supportsMessageType(MessageType.PAIRING_KEY)) {
+                byte[] key = getPairingStore().getRobocarKey(
+                        connection.getAdvertisingInfo().mRobocarId);
+                if (key != null) {
+                    connection.sendFrame(CommandAuthenticator.encodeKey(key));
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onPayloadFailed(String endpointId) {
+        super.onPayloadFailed(endpointId);
+        RobocarConnection connection = mRobocarConnectionLiveData.getValue();
+        if (connection != null && connection.endpointMatches(endpointId)) {
+            connection.onPayloadFailed();
+        }
+    }
+
     @Override
     protected void onNearbyDisconnected(String endpointId) {
         super.onNearbyDisconnected(endpointId);
         RobocarConnection connection = mRobocarConnectionLiveData.getValue();
         if (connection != null && connection.endpointMatches(endpointId)) {
             clearRobocarConnection();
+            // Discovery is the fallback in case the fast-path reconnect doesn't work out.
             startDiscovery();
+            if (mAutoConnectEnabled) {
+                mReconnectEngine.onDisconnected();
+            }
         }
     }
 
@@ -337,6 +564,7 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
                 // Avoid reconnecting.
                 mAutoConnectEnabled = false;
             }
+            mReconnectEngine.cancel();
             // We don't receive onNearbyDisconnected() from the above, and we want to clear it
             // anyway to handle cancelation by the user.
             clearRobocarConnection();
@@ -345,6 +573,33 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
         }
     }
 
+    void onCommandSent(RobocarConnection connection) {
+        if (connection == mRobocarConnectionLiveData.getValue()) {
+            mReconnectEngine.onCommandSent();
+        }
+    }
+
+    /**
+     * Returns how long it took from the last unexpected disconnect until the first command went
+     * out over the reconnected link, or -1 if there hasn't been a reconnect yet.
+     */
+    public long getLastTimeToFirstCommandMillis() {
+        return mReconnectEngine.getLastTimeToFirstCommandMillis();
+    }
+
+    @Override
+    public void dump(PrintWriter writer, String prefix) {
+        super.dump(writer, prefix);
+        writer.println(prefix + "Endpoints in range: " + mEndpoints.size());
+        RobocarConnection connection = mRobocarConnectionLiveData.getValue();
+        if (connection != null) {
+            writer.println(prefix + "Robocar capabilities: " + connection.getPeerCapabilities());
+            connection.getCongestionController().dump(writer, prefix);
+        }
+        writer.println(prefix + "Last time to first command after reconnect: "
+                + getLastTimeToFirstCommandMillis() + "ms");
+    }
+
     private void clearRobocarConnection() {
         RobocarConnection connection = mRobocarConnectionLiveData.getValue();
         if (connection != null) {
@@ -354,16 +609,32 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
     }
 
     private void clearEndpoints() {
-        mEndpointMap.clear();
+        mEndpoints.clear();
+        mExpiryWheel.clear();
+        mHandler.removeCallbacks(mExpiryTickRunnable);
+        mExpiryTickScheduled = false;
         onEndpointsChanged();
     }
 
     private void onEndpointsChanged() {
-        mRobocarEndpointsLiveData.setValue(new ArrayList<>(mEndpointMap.values()));
+        // Most recently seen first, so the UI lists the freshest Robocars at the top.
+        List<RobocarEndpoint> list = new ArrayList<>(mEndpoints.getAll());
+        Collections.sort(list, MOST_RECENT_FIRST);
+        mRobocarEndpointsLiveData.setValue(list);
     }
 
     private boolean isTheDroidWeAreLookingFor(AdvertisingInfo info) {
-        return mPairedAdvertisingInfo != null && mPairedAdvertisingInfo.equals(info);
+        // Any Robocar we have paired with, as long as it still advertises our pair token and we
+        // have handed it a key; one paired before keys existed has to be confirmed once more.
+        // AdvertisingInfo caches its hash code, so comparing it first avoids walking the LED
+        // sequence and strings in equals() for a Robocar that has paired with someone else.
+        AdvertisingInfo paired = getPairingStore().getPairedRobocar(info.mRobocarId);
+        return paired != null && paired.hashCode() == info.hashCode() && paired.equals(info)
+                && getPairingStore().getRobocarKey(info.mRobocarId) != null;
+    }
+
+    private PairingStore getPairingStore() {
+        return PairingStore.get(mGoogleApiClient.getContext());
     }
 
     private void savePairingInformation(RobocarConnection connection) {
@@ -373,12 +644,22 @@ public class RobocarDiscoverer extends NearbyConnectionManager implements Connec
         AdvertisingInfo aiWithToken = new AdvertisingInfo(ai.mRobocarId, ai.mLedSequence,
                 authToken);
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
-                mGoogleApiClient.getContext());
-        PreferenceUtils.saveAdvertisingInfo(prefs, aiWithToken);
-        PreferenceUtils.saveDiscovererInfo(prefs, diWithToken);
+        // Keep the key we already handed this Robocar, if any; it refuses any other.
+        byte[] key = getPairingStore().getRobocarKey(ai.mRobocarId);
+        if (key == null) {
+            key = CommandAuthenticator.generateKey();
+        }
+        getPairingStore().edit()
+                .putPaired(aiWithToken)
+                .putRobocarKey(ai.mRobocarId, key)
+                .setLocal(diWithToken)
+                .apply();
 
         setDiscovererInfo(diWithToken);
-        setPairedAdvertisingInfo(aiWithToken);
+        // The Robocar gets the key once it has said hello; see onPeerCapabilities.
+        connection.setCommandAuthenticator(CommandAuthenticator.fromKey(key));
+        // Cache the endpoint together with the new pairing token for fast reconnects.
+        mReconnectEngine.setLastEndpoint(new RobocarEndpoint(connection.getEndpointId(),
+                aiWithToken, true, SystemClock.elapsedRealtime()));
     }
 }
@@ -26,9 +26,11 @@ public class RobocarEndpoint {
     public final AdvertisingInfo mAdvertisingInfo;
     public final boolean mIsPaired;
     public final boolean mIsRemembered;
+    /** {@link android.os.SystemClock#elapsedRealtime()} when this endpoint was last discovered. */
+    public final long mLastSeenMillis;
 
     public RobocarEndpoint(String endpointId, AdvertisingInfo advertisingInfo,
-            boolean isRemembered) {
+            boolean isRemembered, long lastSeenMillis) {
         if (endpointId == null) {
             throw new IllegalArgumentException("Endpoint ID cannot be null");
         }
@@ -39,6 +41,7 @@ public class RobocarEndpoint {
         mAdvertisingInfo = advertisingInfo;
         mIsPaired = mAdvertisingInfo.mIsPaired;
         mIsRemembered = mIsPaired && isRemembered;
+        mLastSeenMillis = lastSeenMillis;
     }
 
     @Override
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.companion;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Discovered Robocar endpoints, indexed by Nearby endpoint ID and by Robocar ID.
+ * A Robocar is only ever present once: if it re-advertises under a new endpoint ID, the new
+ * endpoint replaces the old one. Not thread safe.
+ */
+class RobocarEndpointRegistry {
+
+    private final Map<String, RobocarEndpoint> mByEndpointId = new LinkedHashMap<>();
+    private final Map<String, RobocarEndpoint> mByRobocarId = new HashMap<>();
+
+    /**
+     * Adds or replaces an endpoint.
+     *
+     * @return the endpoint previously registered for the same Robocar under a different endpoint
+     * ID, or null if there wasn't one
+     */
+    public RobocarEndpoint put(RobocarEndpoint endpoint) {
+        remove(endpoint.mEndpointId);
+        RobocarEndpoint replaced = mByRobocarId.get(endpoint.mAdvertisingInfo.mRobocarId);
+        if (replaced != null) {
+            remove(replaced.mEndpointId);
+        }
+
+        mByEndpointId.put(endpoint.mEndpointId, endpoint);
+        mByRobocarId.put(endpoint.mAdvertisingInfo.mRobocarId, endpoint);
+        return replaced;
+    }
+
+    public RobocarEndpoint remove(String endpointId) {
+        RobocarEndpoint endpoint = mByEndpointId.remove(endpointId);
+        if (endpoint != null) {
+            String robocarId = endpoint.mAdvertisingInfo.mRobocarId;
+            if (mByRobocarId.get(robocarId) == endpoint) {
+                mByRobocarId.remove(robocarId);
+            }
+        }
+        return endpoint;
+    }
+
+    public void clear() {
+        mByEndpointId.clear();
+        mByRobocarId.clear();
+    }
+
+    public RobocarEndpoint get(String endpointId) {
+        return mByEndpointId.get(endpointId);
+    }
+
+    public Collection<RobocarEndpoint> getAll() {
+        return Collections.unmodifiableCollection(mByEndpointId.values());
+    }
+
+    public int size() {
+        return mByEndpointId.size();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.companion;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class MacroTest {
+
+    private static void assertSameSteps(Macro expected, Macro actual) {
+        assertEquals(expected.getStepCount(), actual.getStepCount());
+        for (int i = 0; i < expected.getStepCount(); i++) {
+            assertEquals(expected.getCommand(i), actual.getCommand(i));
+            assertEquals(expected.getOffsetMs(i), actual.getOffsetMs(i));
+        }
+    }
+
+    @Test
+    public void toBytes_roundTrips() throws IOException {
+        Macro macro = new Macro(
+                new byte[]{CarCommands.GO_FORWARD, CarCommands.TURN_LEFT, CarCommands.STOP},
+                new long[]{0, 127, 128 + 127});
+        assertSameSteps(macro, Macro.fromBytes(macro.toBytes()));
+    }
+
+    @Test
+    public void toBytes_roundTripsEmptyMacro() throws IOException {
+        Macro macro = new Macro(new byte[0], new long[0]);
+        assertSameSteps(macro, Macro.fromBytes(macro.toBytes()));
+    }
+
+    @Test
+    public void toBytes_roundTripsVarintBoundaries() throws IOException {
+        long[] gaps = {0, 1, 127, 128, 16383, 16384, (1L << 35) - 1, 1L << 35,
+                Long.MAX_VALUE / 2};
+        byte[] commands = new byte[gaps.length];
+        long[] offsets = new long[gaps.length];
+        long offset = 0;
+        for (int i = 0; i < gaps.length; i++) {
+            commands[i] = CarCommands.GO_BACK;
+            offset += gaps[i];
+            offsets[i] = offset;
+        }
+        Macro macro = new Macro(commands, offsets);
+        assertSameSteps(macro, Macro.fromBytes(macro.toBytes()));
+    }
+
+    @Test
+    public void toBytes_usesOneByteForShortGaps() {
+        Macro macro = new Macro(new byte[]{CarCommands.GO_FORWARD, CarCommands.STOP},
+                new long[]{0, 127});
+        assertArrayEquals(new byte[]{'R', 'M', 1, 2, CarCommands.GO_FORWARD, 0,
+                CarCommands.STOP, 127}, macro.toBytes());
+    }
+
+    @Test
+    public void toBytes_writesLeastSignificantGroupFirst() {
+        Macro macro = new Macro(new byte[]{CarCommands.STOP}, new long[]{300});
+        // 300 is 0b10_0101100: 0x2C with the continuation bit, then 0x02.
+        assertArrayEquals(new byte[]{'R', 'M', 1, 1, CarCommands.STOP, (byte) 0xAC, 0x02},
+                macro.toBytes());
+    }
+
+    @Test(expected = IOException.class)
+    public void fromBytes_rejectsBadMagic() throws IOException {
+        Macro.fromBytes(new byte[]{'X', 'M', 1, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void fromBytes_rejectsOtherVersion() throws IOException {
+        Macro.fromBytes(new byte[]{'R', 'M', 2, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void fromBytes_rejectsTruncatedVarint() throws IOException {
+        Macro.fromBytes(new byte[]{'R', 'M', 1, 1, CarCommands.STOP, (byte) 0x80});
+    }
+
+    @Test(expected = IOException.class)
+    public void fromBytes_rejectsCountLargerThanData() throws IOException {
+        Macro.fromBytes(new byte[]{'R', 'M', 1, 100, CarCommands.STOP, 0});
+    }
+
+    @Test(expected = IOException.class)
+    public void fromBytes_rejectsOverlongVarint() throws IOException {
+        byte[] data = new byte[4 + 11];
+        data[0] = 'R';
+        data[1] = 'M';
+        data[2] = 1;
+        for (int i = 3; i < data.length; i++) {
+            data[i] = (byte) 0x80;
+        }
+        Macro.fromBytes(data);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.example.androidthings.robocar.shared.messaging.Message;
+import com.example.androidthings.robocar.shared.messaging.MessageType;
+import com.example.androidthings.robocar.shared.metrics.Histogram;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
+import com.google.android.gms.nearby.connection.Payload;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * NTP-style estimate of the peer's clock for one connection. Both sides ping each other, so each
+ * side has its own estimate of the other's {@link SystemClock#elapsedRealtimeNanos()}.
+ * <p>
+ * A ping carries our send time t1. The pong echoes t1 and adds the peer's receive time t2 and
+ * its send time t3, and we note the time t4 at which it arrives. The offset (peer minus local) is
+ * ((t2 - t1) + (t3 - t4)) / 2, which is exact if the radio delay is the same both ways, and the
+ * round trip spent on the link is (t4 - t1) - (t3 - t2). Queuing only ever adds delay, so out of
+ * the last few samples only the one with the shortest round trip is trusted (the NTP clock
+ * filter). A line fitted through the trusted offsets gives the offset and drift; a trusted offset
+ * far off that line is dropped as an outlier unless it keeps happening, which means the peer's
+ * clock really did jump.
+ * <p>
+ * Once synchronized, each pong also yields one-way latencies: uplink is t2 mapped to our clock
+ * minus t1, downlink is t4 minus t3 mapped to our clock. Their split is only as good as the
+ * symmetry assumption behind the offset, but changes in either one are meaningful. Time the peer
+ * took to answer (t3 - t2) is excluded from both, so it tells the radio apart from our own
+ * processing.
+ */
+public class ClockSync implements Runnable {
+
+    private static final int KIND_PING = 0;
+    private static final int KIND_PONG = 1;
+    private static final int PING_SIZE = 2 + 8;
+    private static final int PONG_SIZE = 2 + 3 * 8;
+
+    /** Pings sent quickly after connecting, to synchronize before the first commands. */
+    private static final int FAST_PINGS = 8;
+    private static final long FAST_PING_INTERVAL_MS = 100L;
+    private static final long PING_INTERVAL_MS = 2000L;
+    /** Pongs slower than this are useless for synchronizing and most likely stale. */
+    private static final long MAX_ROUND_TRIP_NANOS = 2000000000L;
+
+    private static final int FILTER_SIZE = 8;
+    private static final int FIT_SIZE = 16;
+    /** Minimum span of trusted samples before drift is estimated, rather than assumed zero. */
+    private static final long MIN_DRIFT_SPAN_NANOS = 10000000000L;
+    private static final double MIN_OUTLIER_NANOS = 2000000.0;
+    private static final int MAX_CONSECUTIVE_OUTLIERS = 3;
+
+    private static final Histogram ROUND_TRIP = MetricsRegistry.getDefault().histogram(
+            "robocar_clock_round_trip_us", "Round trip of clock sync pings, excluding the peer",
+            "us", Histogram.LATENCY_MICROS_BOUNDS);
+    private static final Histogram UPLINK = MetricsRegistry.getDefault().histogram(
+            "robocar_uplink_latency_us", "One-way latency from this device to the peer",
+            "us", Histogram.LATENCY_MICROS_BOUNDS);
+    private static final Histogram DOWNLINK = MetricsRegistry.getDefault().histogram(
+            "robocar_downlink_latency_us", "One-way latency from the peer to this device",
+            "us", Histogram.LATENCY_MICROS_BOUNDS);
+    private static final Histogram PEER_TURNAROUND = MetricsRegistry.getDefault().histogram(
+            "robocar_clock_peer_turnaround_us", "Time the peer took to answer a ping",
+            "us", Histogram.LATENCY_MICROS_BOUNDS);
+
+    private final String mEndpointId;
+    private final NearbyConnectionManager mConnectionManager;
+    private final Handler mHandler;
+    private volatile int mPingsSent;
+    private volatile boolean mStopped;
+
+    // Raw samples for the clock filter. Guarded by this, as are all the fields below.
+    private final long[] mRawDelay = new long[FILTER_SIZE];
+    private final long[] mRawOffset = new long[FILTER_SIZE];
+    private final long[] mRawTime = new long[FILTER_SIZE];
+    private int mRawCount;
+    private int mRawNext;
+    private long mLastTrustedTime = Long.MIN_VALUE;
+
+    // Trusted samples the offset and drift are fitted to.
+    private final long[] mFitTime = new long[FIT_SIZE];
+    private final long[] mFitOffset = new long[FIT_SIZE];
+    private int mFitCount;
+    private int mFitNext;
+    private int mConsecutiveOutliers;
+    private long mOutliers;
+
+    // offset(t) = mOffsetNanos + mDrift * (t - mOriginNanos), in local time.
+    private boolean mSynchronized;
+    private long mOriginNanos;
+    private double mOffsetNanos;
+    private double mDrift;
+    private double mResidualNanos;
+
+    ClockSync(String endpointId, NearbyConnectionManager connectionManager, Handler handler) {
+        mEndpointId = endpointId;
+        mConnectionManager = connectionManager;
+        mHandler = handler;
+    }
+
+    void start() {
+        mHandler.post(this);
+    }
+
+    void stop() {
+        mStopped = true;
+        mHandler.removeCallbacks(this);
+    }
+
+    @Override
+    public void run() {
+        if (mStopped) {
+            return;
+        }
+        ByteBuffer ping = ByteBuffer.allocate(PING_SIZE);
+        ping.put(Message.toWireType(MessageType.TIME_SYNC)).put((byte) KIND_PING)
+                .putLong(SystemClock.elapsedRealtimeNanos());
+        mConnectionManager.sendData(mEndpointId, Payload.fromBytes(ping.array()));
+        mPingsSent++;
+        mHandler.postDelayed(this,
+                mPingsSent < FAST_PINGS ? FAST_PING_INTERVAL_MS : PING_INTERVAL_MS);
+    }
+
+    /** Handles a TIME_SYNC message from this connection's endpoint. */
+    void onMessage(Message message) {
+        ByteBuffer body = ByteBuffer.wrap(message.mData, message.mBodyOffset,
+                message.getBodyLength());
+        int kind = body.get();
+        if (kind == KIND_PING && body.remaining() >= PING_SIZE - 2) {
+            long t1 = body.getLong();
+            ByteBuffer pong = ByteBuffer.allocate(PONG_SIZE);
+            pong.put(Message.toWireType(MessageType.TIME_SYNC)).put((byte) KIND_PONG)
+                    .putLong(t1).putLong(message.mReceivedNanos)
+                    .putLong(SystemClock.elapsedRealtimeNanos());
+            mConnectionManager.sendData(mEndpointId, Payload.fromBytes(pong.array()));
+        } else if (kind == KIND_PONG && body.remaining() >= PONG_SIZE - 2) {
+            onPong(body.getLong(), body.getLong(), body.getLong(), message.mReceivedNanos);
+        }
+    }
+
+    private synchronized void onPong(long t1, long t2, long t3, long t4) {
+        long delay = (t4 - t1) - (t3 - t2);
+        if (t3 < t2 || delay < 0 || t4 - t1 > MAX_ROUND_TRIP_NANOS) {
+            return;
+        }
+        ROUND_TRIP.record(delay / 1000L);
+        PEER_TURNAROUND.record((t3 - t2) / 1000L);
+        long offset = ((t2 - t1) + (t3 - t4)) / 2;
+
+        mRawDelay[mRawNext] = delay;
+        mRawOffset[mRawNext] = offset;
+        mRawTime[mRawNext] = t4;
+        mRawNext = (mRawNext + 1) % FILTER_SIZE;
+        mRawCount = Math.min(mRawCount + 1, FILTER_SIZE);
+        int best = 0;
+        for (int i = 1; i < mRawCount; i++) {
+            if (mRawDelay[i] < mRawDelay[best]) {
+                best = i;
+            }
+        }
+        // Only use each trusted sample once, and never go back in time.
+        if (mRawTime[best] > mLastTrustedTime) {
+            mLastTrustedTime = mRawTime[best];
+            addTrustedSample(mRawTime[best], mRawOffset[best]);
+        }
+
+        if (mSynchronized) {
+            UPLINK.record(Math.max(0L, toLocalTime(t2) - t1) / 1000L);
+            DOWNLINK.record(Math.max(0L, t4 - toLocalTime(t3)) / 1000L);
+        }
+    }
+
+    private void addTrustedSample(long time, long offset) {
+        if (mFitCount >= 4) {
+            double error = Math.abs(offset - offsetAt(time));
+            if (error > Math.max(4 * mResidualNanos, MIN_OUTLIER_NANOS)
+                    && ++mConsecutiveOutliers <= MAX_CONSECUTIVE_OUTLIERS) {
+                mOutliers++;
+                return;
+            }
+            if (mConsecutiveOutliers > MAX_CONSECUTIVE_OUTLIERS) {
+                // The peer's clock moved; what we fitted so far no longer applies.
+                mFitCount = 0;
+                mFitNext = 0;
+            }
+        }
+        mConsecutiveOutliers = 0;
+        mFitTime[mFitNext] = time;
+        mFitOffset[mFitNext] = offset;
+        mFitNext = (mFitNext + 1) % FIT_SIZE;
+        mFitCount = Math.min(mFitCount + 1, FIT_SIZE);
+        fit(time, offset);
+    }
+
+    /** Least squares line through the trusted samples, relative to the newest one. */
+    private void fit(long newestTime, long newestOffset) {
+        mOriginNanos = newestTime;
+        double sumX = 0, sumY = 0, sumXX = 0, sumXY = 0;
+        long oldest = newestTime;
+        for (int i = 0; i < mFitCount; i++) {
+            double x = mFitTime[i] - newestTime;
+            double y = mFitOffset[i] - newestOffset;
+            sumX += x;
+            sumY += y;
+            sumXX += x * x;
+            sumXY += x * y;
+            oldest = Math.min(oldest, mFitTime[i]);
+        }
+        int n = mFitCount;
+        double denominator = n * sumXX - sumX * sumX;
+        if (n >= 3 && newestTime - oldest >= MIN_DRIFT_SPAN_NANOS && denominator > 0) {
+            mDrift = (n * sumXY - sumX * sumY) / denominator;
+            mOffsetNanos = newestOffset + (sumY - mDrift * sumX) / n;
+        } else {
+            mDrift = 0;
+            mOffsetNanos = newestOffset;
+        }
+        double sumSquares = 0;
+        for (int i = 0; i < n; i++) {
+            double error = mFitOffset[i] - offsetAt(mFitTime[i]);
+            sumSquares += error * error;
+        }
+        mResidualNanos = Math.sqrt(sumSquares / n);
+        mSynchronized = true;
+    }
+
+    private double offsetAt(long localNanos) {
+        return mOffsetNanos + mDrift * (localNanos - mOriginNanos);
+    }
+
+    public String getEndpointId() {
+        return mEndpointId;
+    }
+
+    public synchronized boolean isSynchronized() {
+        return mSynchronized;
+    }
+
+    /**
+     * Converts a local {@link SystemClock#elapsedRealtimeNanos()} timestamp to the peer's clock.
+     * Returns the time unchanged until synchronized.
+     */
+    public synchronized long toPeerTime(long localNanos) {
+        return mSynchronized ? localNanos + Math.round(offsetAt(localNanos)) : localNanos;
+    }
+
+    /**
+     * Converts a timestamp from the peer's {@link SystemClock#elapsedRealtimeNanos()} to ours.
+     * Returns the time unchanged until synchronized.
+     */
+    public synchronized long toLocalTime(long peerNanos) {
+        if (!mSynchronized) {
+            return peerNanos;
+        }
+        // The offset barely changes over the difference between the clocks, so one step will do.
+        long local = peerNanos - Math.round(mOffsetNanos);
+        return peerNanos - Math.round(offsetAt(local));
+    }
+
+    /** Returns the peer's clock now. */
+    public long getPeerTimeNanos() {
+        return toPeerTime(SystemClock.elapsedRealtimeNanos());
+    }
+
+    /** Returns how far the peer's clock is ahead of ours now, in nanoseconds. */
+    public synchronized long getOffsetNanos() {
+        return Math.round(offsetAt(SystemClock.elapsedRealtimeNanos()));
+    }
+
+    /** Returns how fast the peer's clock runs relative to ours, in parts per million. */
+    public synchronized double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    public synchronized void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "Clock sync with " + mEndpointId + ": "
+                + (mSynchronized ? "offset=" + Math.round(offsetAt(
+                        SystemClock.elapsedRealtimeNanos()) / 1000.0) + "us"
+                        + " drift=" + String.format("%.2f", mDrift * 1e6) + "ppm"
+                        + " residual=" + Math.round(mResidualNanos / 1000.0) + "us"
+                        : "not synchronized")
+                + " samples=" + mFitCount + " outliers=" + mOutliers + " pings=" + mPingsSent);
+    }
+
+    /** Writes the latency breakdown shared by all connections. */
+    static void dumpLatencies(PrintWriter writer, String prefix) {
+        writer.println(prefix + "Link latency (us):");
+        String innerPrefix = prefix + "  ";
+        ROUND_TRIP.dump(writer, innerPrefix, "round_trip");
+        UPLINK.dump(writer, innerPrefix, "uplink");
+        DOWNLINK.dump(writer, innerPrefix, "downlink");
+        PEER_TURNAROUND.dump(writer, innerPrefix, "peer_turnaround");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared;
+
+import com.example.androidthings.robocar.shared.NearbyConnection.ConnectionState;
+import com.example.androidthings.robocar.shared.metrics.Histogram;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Breaks connection setup latency down by phase. Every {@link NearbyConnection} state transition
+ * records how long the connection spent in the state it is leaving, and connections that fail
+ * or get rejected are tagged with the phase they were in at the time. Each connection that doesn't
+ * make it is counted once, either as a failure or as a rejection. Times are in milliseconds,
+ * measured with a monotonic clock.
+ */
+public class ConnectionSetupStats {
+
+    /** Time spent advertising (Robocar) or discovering (companion) before a connection began. */
+    public static final int PHASE_SEARCHING = 6;
+    /** Total time from leaving NOT_CONNECTED until CONNECTED. */
+    public static final int PHASE_TOTAL = 7;
+    private static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "not_connected", "requesting", "authenticating", "auth_accepted", "auth_rejected",
+            "connected", "searching", "total"
+    };
+
+    private final Histogram[] mHistograms = new Histogram[PHASE_COUNT];
+    private final AtomicLongArray mFailures = new AtomicLongArray(PHASE_COUNT);
+    private final AtomicLongArray mRejections = new AtomicLongArray(PHASE_COUNT);
+
+    public ConnectionSetupStats() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mHistograms[i] = new Histogram("ms", Histogram.LATENCY_MILLIS_BOUNDS);
+        }
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    void onStateChanged(@ConnectionState int oldState, @ConnectionState int newState,
+            long dwellNanos, boolean remotelyRejected) {
+        if (oldState == ConnectionState.NOT_CONNECTED || oldState == ConnectionState.CONNECTED) {
+            // Idle time and session length aren't part of connection setup.
+            return;
+        }
+        mHistograms[oldState].record(dwellNanos / 1000000L);
+        if (newState == ConnectionState.NOT_CONNECTED) {
+            if (remotelyRejected) {
+                mRejections.incrementAndGet(oldState);
+            } else if (oldState != ConnectionState.AUTH_REJECTED) {
+                // Leaving AUTH_REJECTED is how a rejection ends; it was counted on the way in.
+                mFailures.incrementAndGet(oldState);
+            }
+        } else if (newState == ConnectionState.AUTH_REJECTED) {
+            mRejections.incrementAndGet(oldState);
+        }
+    }
+
+    void onConnected(long setupNanos) {
+        mHistograms[PHASE_TOTAL].record(setupNanos / 1000000L);
+    }
+
+    /**
+     * Records the time spent advertising or discovering before a connection was initiated.
+     */
+    public void recordSearching(long nanos) {
+        mHistograms[PHASE_SEARCHING].record(nanos / 1000000L);
+    }
+
+    public Histogram getHistogram(int phase) {
+        return mHistograms[phase];
+    }
+
+    public long getFailureCount(int phase) {
+        return mFailures.get(phase);
+    }
+
+    public long getRejectionCount(int phase) {
+        return mRejections.get(phase);
+    }
+
+    public void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "Connection setup (ms):");
+        String innerPrefix = prefix + "  ";
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            Histogram histogram = mHistograms[i];
+            long failures = mFailures.get(i);
+            long rejections = mRejections.get(i);
+            if (histogram.getCount() == 0 && failures == 0 && rejections == 0) {
+                continue;
+            }
+            histogram.dump(writer, innerPrefix, PHASE_NAMES[i]);
+            if (failures > 0 || rejections > 0) {
+                writer.println(innerPrefix + "  failures=" + failures
+                        + " rejections=" + rejections);
+            }
+        }
+    }
+}
@@ -17,13 +17,33 @@ package com.example.androidthings.robocar.shared;
 
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 
+import com.example.androidthings.robocar.shared.diagnostics.EventRing;
+import com.example.androidthings.robocar.shared.diagnostics.EventRing.EventCode;
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+import com.example.androidthings.robocar.shared.messaging.Capabilities;
+import com.example.androidthings.robocar.shared.messaging.CommandAuthenticator;
+import com.example.androidthings.robocar.shared.messaging.Message;
+import com.google.android.gms.nearby.connection.Payload;
+
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Handle for a Nearby connection. The connection state is a small state machine with an explicit
+ * table of legal transitions; transitions are applied with compare-and-set, so the state can be
+ * driven from Nearby callbacks, result callbacks and UI actions on any thread without locking.
+ * The state and the time it was entered share one word, so each transition swaps both at once.
+ * Observers of {@link #getConnectionStateLiveData()} are notified asynchronously on the main
+ * thread.
+ */
 public class NearbyConnection {
 
+
     @IntDef({ConnectionState.NOT_CONNECTED, ConnectionState.REQUESTING,
             ConnectionState.AUTHENTICATING, ConnectionState.AUTH_ACCEPTED,
             ConnectionState.AUTH_REJECTED, ConnectionState.CONNECTED})
@@ -37,11 +57,62 @@ public class NearbyConnection {
         int CONNECTED = 5;
     }
 
+    private static final String[] STATE_NAMES = {
+            "NOT_CONNECTED", "REQUESTING", "AUTHENTICATING", "AUTH_ACCEPTED", "AUTH_REJECTED",
+            "CONNECTED"
+    };
+
+    private static final int STATE_BITS = 3;
+    private static final long STATE_MASK = (1L << STATE_BITS) - 1;
+
+    // For each state, a bitmask of the states it may move to.
+    private static final int[] LEGAL_TRANSITIONS = new int[STATE_NAMES.length];
+    static {
+        allow(ConnectionState.NOT_CONNECTED, ConnectionState.REQUESTING,
+                ConnectionState.AUTHENTICATING, ConnectionState.AUTH_ACCEPTED);
+        // The user can reject before Nearby reports the connection as initiated.
+        allow(ConnectionState.REQUESTING, ConnectionState.AUTHENTICATING,
+                ConnectionState.AUTH_ACCEPTED, ConnectionState.AUTH_REJECTED,
+                ConnectionState.NOT_CONNECTED);
+        allow(ConnectionState.AUTHENTICATING, ConnectionState.AUTH_ACCEPTED,
+                ConnectionState.AUTH_REJECTED, ConnectionState.NOT_CONNECTED);
+        // Back to AUTHENTICATING if accepting fails.
+        allow(ConnectionState.AUTH_ACCEPTED, ConnectionState.CONNECTED,
+                ConnectionState.AUTHENTICATING, ConnectionState.NOT_CONNECTED);
+        // Back to AUTHENTICATING if rejecting fails.
+        allow(ConnectionState.AUTH_REJECTED, ConnectionState.AUTHENTICATING,
+                ConnectionState.NOT_CONNECTED);
+        allow(ConnectionState.CONNECTED, ConnectionState.NOT_CONNECTED);
+    }
+
+    private static void allow(@ConnectionState int from, @ConnectionState int... to) {
+        for (int state : to) {
+            LEGAL_TRANSITIONS[from] |= 1 << state;
+        }
+    }
+
+    public static boolean isLegalTransition(@ConnectionState int from,
+            @ConnectionState int to) {
+        return (LEGAL_TRANSITIONS[from] & (1 << to)) != 0;
+    }
+
+    public static String stateToString(@ConnectionState int state) {
+        return state >= 0 && state < STATE_NAMES.length ? STATE_NAMES[state] : "UNKNOWN";
+    }
+
     private final String mEndpointId;
 
-    @ConnectionState
-    private int mState;
-    private String mAuthToken;
+    // mState holds the state in the low STATE_BITS bits, and above them the monotonic time it was
+    // entered.
+    private final AtomicLong mState;
+    private volatile String mAuthToken;
+    private volatile Capabilities mPeerCapabilities = Capabilities.LEGACY;
+    private volatile CommandAuthenticator mCommandAuthenticator;
+    private final AtomicInteger mLastSequence = new AtomicInteger(Message.NO_SEQUENCE);
+
+    // Monotonic timestamp used for the connection setup latency breakdown.
+    private volatile long mSetupStartedNanos;
+    private volatile boolean mRemotelyRejected;
 
     private MutableLiveData<Integer> mStateLiveData;
 
@@ -57,8 +128,8 @@ public class NearbyConnection {
         mEndpointId = endpointId;
         mConnectionManager = connectionManager;
         mStateLiveData = new MutableLiveData<>();
-
-        setState(ConnectionState.NOT_CONNECTED);
+        mState = new AtomicLong(pack(ConnectionState.NOT_CONNECTED,
+                SystemClock.elapsedRealtimeNanos()));
     }
 
     public boolean endpointMatches(String endpointId) {
@@ -69,26 +140,135 @@ public class NearbyConnection {
         return mEndpointId;
     }
 
+    private static long pack(@ConnectionState int state, long enteredNanos) {
+        return (enteredNanos << STATE_BITS) | state;
+    }
+
+    @ConnectionState
+    private static int unpackState(long packed) {
+        return (int) (packed & STATE_MASK);
+    }
+
+    private static long unpackEnteredNanos(long packed) {
+        return packed >>> STATE_BITS;
+    }
+
     @ConnectionState
     public int getState() {
-        return mState;
+        return unpackState(mState.get());
+    }
+
+    /**
+     * Moves to the given state from whatever the current state is, if that transition is legal.
+     *
+     * @return true if the state changed
+     */
+    public boolean setState(@ConnectionState int newState) {
+        while (true) {
+            long packed = mState.get();
+            int current = unpackState(packed);
+            if (current == newState) {
+                return false;
+            }
+            if (!isLegalTransition(current, newState)) {
+                EventRing.get().record(EventCode.ILLEGAL_TRANSITION, mEndpointId, current,
+                        newState);
+                return false;
+            }
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (mState.compareAndSet(packed, pack(newState, now))) {
+                onTransition(current, newState, now - unpackEnteredNanos(packed), now);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves from {@code expected} to {@code newState} only if the connection is still in the
+     * expected state, e.g. to revert an optimistic transition after an API call fails.
+     *
+     * @return true if the state changed
+     */
+    public boolean compareAndSetState(@ConnectionState int expected,
+            @ConnectionState int newState) {
+        if (!isLegalTransition(expected, newState)) {
+            EventRing.get().record(EventCode.ILLEGAL_TRANSITION, mEndpointId, expected,
+                    newState);
+            return false;
+        }
+        while (true) {
+            long packed = mState.get();
+            if (unpackState(packed) != expected) {
+                return false;
+            }
+            long now = SystemClock.elapsedRealtimeNanos();
+            if (mState.compareAndSet(packed, pack(newState, now))) {
+                onTransition(expected, newState, now - unpackEnteredNanos(packed), now);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Notes that the other side rejected the connection, so the setup stats count the move to
+     * NOT_CONNECTED that follows as a rejection rather than a failure. Does nothing if we had
+     * already rejected it ourselves.
+     */
+    public void markRemotelyRejected() {
+        if (getState() != ConnectionState.AUTH_REJECTED) {
+            mRemotelyRejected = true;
+        }
     }
 
-    public void setState(@ConnectionState int newState) {
-        if (mState != newState) {
-            mState = newState;
-            mStateLiveData.setValue(mState);
+    private void onTransition(@ConnectionState int oldState, @ConnectionState int newState,
+            long dwellNanos, long now) {
+        EventRing.get().record(EventCode.STATE_CHANGED, mEndpointId, oldState, newState);
+        boolean remotelyRejected = false;
+        if (newState == ConnectionState.NOT_CONNECTED) {
+            remotelyRejected = mRemotelyRejected;
+            mRemotelyRejected = false;
         }
+        ConnectionSetupStats stats = mConnectionManager.getConnectionSetupStats();
+        stats.onStateChanged(oldState, newState, dwellNanos, remotelyRejected);
+        if (oldState == ConnectionState.NOT_CONNECTED) {
+            mSetupStartedNanos = now;
+        } else if (newState == ConnectionState.CONNECTED) {
+            stats.onConnected(now - mSetupStartedNanos);
+        }
+        // Posting keeps observers (UI) off the thread driving the transition.
+        mStateLiveData.postValue(newState);
     }
 
     public boolean isConnected() {
-        return mState == ConnectionState.CONNECTED;
+        return getState() == ConnectionState.CONNECTED;
     }
 
     public LiveData<Integer> getConnectionStateLiveData() {
         return mStateLiveData;
     }
 
+    /**
+     * Returns the clock synchronization with the other side, or null if not connected.
+     */
+    public ClockSync getClockSync() {
+        return mConnectionManager.getClockSync(mEndpointId);
+    }
+
+    /**
+     * Returns what the other side told us it supports, or {@link Capabilities#LEGACY} if it
+     * hasn't (yet).
+     */
+    public Capabilities getPeerCapabilities() {
+        return mPeerCapabilities;
+    }
+
+    public void setPeerCapabilities(Capabilities capabilities) {
+        if (capabilities == null) {
+            throw new IllegalArgumentException("Capabilities cannot be null");
+        }
+        mPeerCapabilities = capabilities;
+    }
+
     public String getAuthToken() {
         return mAuthToken;
     }
@@ -97,9 +277,122 @@ public class NearbyConnection {
         mAuthToken = authToken;
     }
 
-    public void sendCommand(byte command) {
+    /** Returns the key commands on this connection are signed with, or null if not paired yet. */
+    public CommandAuthenticator getCommandAuthenticator() {
+        return mCommandAuthenticator;
+    }
+
+    /** Sets the key the two sides agreed on when pairing, once this side has it. */
+    public void setCommandAuthenticator(CommandAuthenticator authenticator) {
+        mCommandAuthenticator = authenticator;
+    }
+
+    /**
+     * Returns true if commands we send carry a MAC, which takes a fresh sequence number per frame
+     * for the other side's replay check.
+     */
+    public boolean isSigningCommands() {
+        return mCommandAuthenticator != null && mPeerCapabilities.supportsCommandFlags(
+                Message.COMMAND_FLAG_SEQUENCE | Message.COMMAND_FLAG_MAC);
+    }
+
+    public int sendCommand(byte command) {
+        return sendCommand(command, Tracer.NO_TRACE_ID);
+    }
+
+    /**
+     * Sends a command that is part of the given trace; see {@link Tracer}.
+     */
+    public int sendCommand(byte command, long traceId) {
+        return sendCommand(command, traceId, Message.EXECUTE_NOW);
+    }
+
+    /**
+     * Sends a command to be executed at the given time on our clock (an
+     * {@link SystemClock#elapsedRealtimeNanos()} timestamp), or {@link Message#EXECUTE_NOW}. The
+     * receiver maps the time to its own clock with its {@link ClockSync}.
+     *
+     * @return the sequence number the other side will acknowledge the command with (see
+     * {@link com.example.androidthings.robocar.shared.messaging.Ack}), or
+     * {@link Message#NO_SEQUENCE} if it won't or the command wasn't sent
+     */
+    public int sendCommand(byte command, long traceId, long executeAtNanos) {
+        return sendCommand(command, traceId, executeAtNanos, false);
+    }
+
+    /**
+     * Sends a command, optionally marked as held: the Robocar stops unless it is renewed; see
+     * {@link Message#COMMAND_FLAG_HELD}.
+     *
+     * @see #sendCommand(byte, long, long)
+     */
+    public int sendCommand(byte command, long traceId, long executeAtNanos, boolean held) {
+        if (getState() != ConnectionState.CONNECTED) {
+            return Message.NO_SEQUENCE;
+        }
+        return sendCommand(command, traceId, executeAtNanos, held, reserveSequence());
+    }
+
+    /**
+     * Returns the sequence number for the next command, or {@link Message#NO_SEQUENCE} if the
+     * other side doesn't number commands. A command can be numbered before it is sent, e.g. to
+     * tell the caller which ack will confirm a command that has to wait.
+     */
+    protected int reserveSequence() {
+        return mPeerCapabilities.supportsCommandFlags(Message.COMMAND_FLAG_SEQUENCE)
+                ? nextSequence() : Message.NO_SEQUENCE;
+    }
+
+    /**
+     * Sends a command numbered with a sequence number from {@link #reserveSequence()}.
+     *
+     * @return the sequence number, or {@link Message#NO_SEQUENCE} if the command wasn't sent
+     */
+    protected int sendCommand(byte command, long traceId, long executeAtNanos, boolean held,
+            int sequence) {
+        if (getState() != ConnectionState.CONNECTED) {
+            return Message.NO_SEQUENCE;
+        }
+        // Leave out what the other side wouldn't understand.
+        Capabilities peer = mPeerCapabilities;
+        if (!peer.supportsCommandFlags(Message.COMMAND_FLAG_TRACE_ID)) {
+            traceId = Tracer.NO_TRACE_ID;
+        }
+        if (!peer.supportsCommandFlags(Message.COMMAND_FLAG_EXECUTE_AT)) {
+            executeAtNanos = Message.EXECUTE_NOW;
+        }
+        held &= peer.supportsCommandFlags(Message.COMMAND_FLAG_HELD);
+        CommandAuthenticator authenticator = mCommandAuthenticator;
+        if (sequence == Message.NO_SEQUENCE
+                || !peer.supportsCommandFlags(Message.COMMAND_FLAG_MAC)) {
+            authenticator = null;
+        }
+        Tracer.get().beginSection("sendCommand", traceId);
+        try {
+            byte[] frame = Message.encodeCommand(command, traceId, executeAtNanos, sequence,
+                    held, authenticator != null);
+            if (authenticator != null) {
+                authenticator.sign(frame);
+            }
+            mConnectionManager.sendData(getEndpointId(), Payload.fromBytes(frame));
+        } finally {
+            Tracer.get().endSection();
+        }
+        return sequence;
+    }
+
+    /** Sends an already encoded frame, e.g. an ACK. Does nothing if not connected. */
+    public void sendFrame(byte[] frame) {
         if (getState() == ConnectionState.CONNECTED) {
-            mConnectionManager.sendData(getEndpointId(), CarCommands.toPayload(command));
+            mConnectionManager.sendData(getEndpointId(), Payload.fromBytes(frame));
         }
     }
+
+    private int nextSequence() {
+        int sequence;
+        do {
+            sequence = mLastSequence.incrementAndGet();
+        } while (sequence == Message.NO_SEQUENCE);
+        return sequence;
+    }
 }
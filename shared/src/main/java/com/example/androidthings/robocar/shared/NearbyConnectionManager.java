@@ -17,9 +17,22 @@
 package com.example.androidthings.robocar.shared;
 
 import android.content.Context;
-import android.util.Log;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
+import com.example.androidthings.robocar.shared.diagnostics.EventRing;
+import com.example.androidthings.robocar.shared.diagnostics.EventRing.EventCode;
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+import com.example.androidthings.robocar.shared.messaging.Capabilities;
+import com.example.androidthings.robocar.shared.messaging.CommandAuthenticator;
+import com.example.androidthings.robocar.shared.messaging.Message;
+import com.example.androidthings.robocar.shared.messaging.MessageType;
+import com.example.androidthings.robocar.shared.messaging.MessageBus;
+import com.example.androidthings.robocar.shared.metrics.Counter;
+import com.example.androidthings.robocar.shared.metrics.MetricsRegistry;
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.nearby.Nearby;
 import com.google.android.gms.nearby.connection.ConnectionInfo;
 import com.google.android.gms.nearby.connection.ConnectionLifecycleCallback;
@@ -29,6 +42,10 @@ import com.google.android.gms.nearby.connection.PayloadCallback;
 import com.google.android.gms.nearby.connection.PayloadTransferUpdate;
 import com.google.android.gms.nearby.connection.Strategy;
 
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 public abstract class NearbyConnectionManager {
 
     private final static String TAG = "NearbyConnectionManager";
@@ -36,23 +53,77 @@ public abstract class NearbyConnectionManager {
     protected static final String SERVICE_ID = "com.example.androidthings.controllablething";
     protected static final Strategy STRATEGY = Strategy.P2P_STAR;
 
+    private static final Counter PAYLOADS_RECEIVED = MetricsRegistry.getDefault().counter(
+            "robocar_payloads_received_total", "Payloads received over Nearby");
+    private static final Counter PAYLOADS_UNDECODABLE = MetricsRegistry.getDefault().counter(
+            "robocar_payloads_undecodable_total", "Received payloads that weren't valid frames");
+    private static final Counter PAYLOADS_SENT = MetricsRegistry.getDefault().counter(
+            "robocar_payloads_sent_total", "Payloads sent over Nearby");
+    private static final Counter PAYLOADS_NOT_SENT = MetricsRegistry.getDefault().counter(
+            "robocar_payloads_not_sent_total", "Payloads dropped while the API was disconnected");
+    private static final Counter PAYLOADS_FAILED = MetricsRegistry.getDefault().counter(
+            "robocar_payloads_failed_total", "Payload transfers that failed or were cancelled");
+    private static final Counter CONNECTIONS_INITIATED = MetricsRegistry.getDefault().counter(
+            "robocar_connections_initiated_total", "Nearby connections initiated");
+    private static final Counter CONNECTIONS_FAILED = MetricsRegistry.getDefault().counter(
+            "robocar_connections_failed_total", "Nearby connections that were rejected or failed");
+    private static final Counter CONNECTIONS_ESTABLISHED = MetricsRegistry.getDefault().counter(
+            "robocar_connections_established_total", "Nearby connections established");
+    private static final Counter DISCONNECTS = MetricsRegistry.getDefault().counter(
+            "robocar_disconnects_total", "Nearby connections lost");
+
     protected final GoogleApiClient mGoogleApiClient;
 
+    private final ConnectionSetupStats mConnectionSetupStats = new ConnectionSetupStats();
+
     protected ConnectionLifecycleCallback mLifecycleCallback;
-    private PayloadCallback mPayloadListener;
+    private final MessageBus mMessageBus = new MessageBus();
+    private final Handler mClockSyncHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, ClockSync> mClockSyncs = new ConcurrentHashMap<>();
+    private volatile Capabilities mLocalCapabilities = Capabilities.createLocal(0, false);
     protected PayloadCallback mInternalPayloadListener = new PayloadCallback() {
         @Override
         public void onPayloadReceived(String endpointId, Payload payload) {
-            if (mPayloadListener != null) {
-                mPayloadListener.onPayloadReceived(endpointId, payload);
+            // Decode once here; listeners get the message on the executor for its type.
+            PAYLOADS_RECEIVED.increment();
+            Message message = Message.decode(endpointId, payload);
+            if (message != null && message.mType == MessageType.HELLO) {
+                onHello(endpointId, message);
+            } else if (message != null && message.mType == MessageType.PAIRING_KEY) {
+                // Kept off the bus, so a key is never retained or seen by anyone but the owner.
+                byte[] key = CommandAuthenticator.decodeKey(message);
+                if (key != null) {
+                    onPairingKey(endpointId, key);
+                } else {
+                    PAYLOADS_UNDECODABLE.increment();
+                }
+            } else if (message != null && message.mType == MessageType.TIME_SYNC) {
+                // Answered right here rather than on the bus, so pongs don't queue behind
+                // anything and their timestamps stay honest.
+                ClockSync clockSync = mClockSyncs.get(endpointId);
+                if (clockSync != null) {
+                    clockSync.onMessage(message);
+                }
+            } else if (message != null) {
+                Tracer.get().beginSection("onPayloadReceived", message.getTraceId());
+                try {
+                    mMessageBus.dispatch(message);
+                } finally {
+                    Tracer.get().endSection();
+                }
+            } else {
+                PAYLOADS_UNDECODABLE.increment();
             }
         }
 
         @Override
         public void onPayloadTransferUpdate(String endpointId,
                 PayloadTransferUpdate payloadTransferUpdate) {
-            if (mPayloadListener != null) {
-                mPayloadListener.onPayloadTransferUpdate(endpointId, payloadTransferUpdate);
+            int status = payloadTransferUpdate.getStatus();
+            if (status == PayloadTransferUpdate.Status.FAILURE
+                    || status == PayloadTransferUpdate.Status.CANCELED) {
+                PAYLOADS_FAILED.increment();
+                onPayloadFailed(endpointId);
             }
         }
     };
@@ -65,36 +136,117 @@ public abstract class NearbyConnectionManager {
 
     public NearbyConnectionManager(GoogleApiClient client) {
         mGoogleApiClient = client;
+        // Commands run on the calling (main) thread unless configured otherwise. Telemetry and
+        // logs are never latency sensitive, so keep them off the main thread.
+        mMessageBus.setExecutor(MessageType.TELEMETRY, AsyncTask.THREAD_POOL_EXECUTOR);
+        mMessageBus.setExecutor(MessageType.LOG, AsyncTask.THREAD_POOL_EXECUTOR);
         mLifecycleCallback = new ConnectionLifecycleCallback() {
             @Override
             public void onConnectionInitiated(String endpointId, ConnectionInfo connectionInfo) {
-                Log.d(TAG, "onConnectionInitiated: " + endpointId);
+                EventRing.get().record(EventCode.CONNECTION_INITIATED, endpointId);
+                CONNECTIONS_INITIATED.increment();
                 onNearbyConnectionInitiated(endpointId, connectionInfo);
             }
 
             @Override
             public void onConnectionResult(String endpointId,
                     ConnectionResolution connectionResolution) {
-                if (connectionResolution.getStatus().isSuccess()) {
+                Status status = connectionResolution.getStatus();
+                EventRing.get().record(EventCode.CONNECTION_RESULT, endpointId,
+                        status.getStatusCode(), 0);
+                if (status.isSuccess()) {
                     // We're connected! Huzzah!
-                    Log.d(TAG, "onConnectionResult: Connected! " + endpointId);
+                    CONNECTIONS_ESTABLISHED.increment();
+                    // Tell the other side what we can do before anything else.
+                    sendData(endpointId, Payload.fromBytes(mLocalCapabilities.toFrame()));
                     onNearbyConnected(endpointId, connectionResolution);
                 } else {
-                    Log.d(TAG, "onConnectionResult: Not connected :( " + endpointId);
+                    CONNECTIONS_FAILED.increment();
                     onNearbyConnectionRejected(endpointId);
                 }
             }
 
             @Override
             public void onDisconnected(String endpointId) {
-                Log.d(TAG, "Nearby disconnected: " + endpointId);
+                EventRing.get().record(EventCode.DISCONNECTED, endpointId);
+                DISCONNECTS.increment();
+                ClockSync clockSync = mClockSyncs.remove(endpointId);
+                if (clockSync != null) {
+                    clockSync.stop();
+                }
+                // Whatever the endpoint last told us no longer holds.
+                mMessageBus.clearRetained(endpointId);
                 onNearbyDisconnected(endpointId);
             }
         };
     }
 
-    public void setPayloadListener(PayloadCallback listener) {
-        mPayloadListener = listener;
+    /**
+     * Returns the bus that received messages are published on, which is also where the executor
+     * for each type of message is configured.
+     */
+    public MessageBus getMessageBus() {
+        return mMessageBus;
+    }
+
+    /**
+     * Sets the capabilities announced to every endpoint we connect to from now on.
+     */
+    public void setLocalCapabilities(Capabilities capabilities) {
+        if (capabilities == null) {
+            throw new IllegalArgumentException("Capabilities cannot be null");
+        }
+        mLocalCapabilities = capabilities;
+    }
+
+    public Capabilities getLocalCapabilities() {
+        return mLocalCapabilities;
+    }
+
+    private void onHello(String endpointId, Message message) {
+        Capabilities capabilities = Capabilities.decode(message);
+        if (capabilities == null) {
+            PAYLOADS_UNDECODABLE.increment();
+            return;
+        }
+        EventRing.get().record(EventCode.CAPABILITIES_RECEIVED, endpointId,
+                capabilities.mProtocolVersion, capabilities.mMessageTypes);
+        if (capabilities.supportsMessageType(MessageType.TIME_SYNC)) {
+            startClockSync(endpointId);
+        }
+        onPeerCapabilities(endpointId, capabilities);
+    }
+
+    /**
+     * Returns the clock synchronization for a connected endpoint, or null if it isn't connected.
+     */
+    public ClockSync getClockSync(String endpointId) {
+        return mClockSyncs.get(endpointId);
+    }
+
+    private void startClockSync(String endpointId) {
+        ClockSync clockSync = new ClockSync(endpointId, this, mClockSyncHandler);
+        ClockSync previous = mClockSyncs.put(endpointId, clockSync);
+        if (previous != null) {
+            previous.stop();
+        }
+        clockSync.start();
+    }
+
+    public ConnectionSetupStats getConnectionSetupStats() {
+        return mConnectionSetupStats;
+    }
+
+    /**
+     * Writes debugging information, e.g. from an Activity's dump() for {@code adb shell dumpsys}.
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        mConnectionSetupStats.dump(writer, prefix);
+        mMessageBus.dump(writer, prefix);
+        for (ClockSync clockSync : mClockSyncs.values()) {
+            clockSync.dump(writer, prefix);
+        }
+        ClockSync.dumpLatencies(writer, prefix);
     }
 
     // Nearby API connection callbacks
@@ -103,13 +255,25 @@ public abstract class NearbyConnectionManager {
 
     protected void onNearbyConnectionRejected(String endpointId) {}
 
-    protected void onNearbyConnected(String endpointId, ConnectionResolution connectionResolution) {
-        Log.d(TAG, "Connected to " + endpointId);
-    }
+    protected void onNearbyConnected(String endpointId,
+            ConnectionResolution connectionResolution) {}
 
-    protected void onNearbyDisconnected(String endpointId) {
-        Log.d(TAG, "Disconnected from " + endpointId);
-    }
+    protected void onNearbyDisconnected(String endpointId) {}
+
+    /**
+     * Called when a connected endpoint tells us what it supports. Implementations should record
+     * it on their connection for the endpoint.
+     */
+    protected void onPeerCapabilities(String endpointId, Capabilities capabilities) {}
+
+    /**
+     * Called when a connected endpoint hands us the key to check its commands with; see
+     * {@link CommandAuthenticator}.
+     */
+    protected void onPairingKey(String endpointId, byte[] key) {}
+
+    /** Called when a payload transfer with a connected endpoint failed or was cancelled. */
+    protected void onPayloadFailed(String endpointId) {}
 
     // end of callbacks
 
@@ -120,6 +284,9 @@ public abstract class NearbyConnectionManager {
     public void sendData(String endpointId, Payload payload) {
         if (mGoogleApiClient.isConnected()) {
             Nearby.Connections.sendPayload(mGoogleApiClient, endpointId, payload);
+            PAYLOADS_SENT.increment();
+        } else {
+            PAYLOADS_NOT_SENT.increment();
         }
     }
 }
@@ -0,0 +1,535 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.example.androidthings.robocar.shared.model.AdvertisingInfo;
+import com.example.androidthings.robocar.shared.model.AdvertisingInfo.LedColor;
+import com.example.androidthings.robocar.shared.model.DiscovererInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Pairing state kept in one small binary file: our own identity, as a Robocar or a companion, and
+ * every Robocar or companion we have paired with, indexed by ID and ordered by when we last paired.
+ * <p>
+ * Nothing is read until the first call that needs it, and then the file is memory mapped and
+ * decoded in one go. Changes are batched in an {@link Editor}, take effect in memory when applied
+ * and are written in the background as a whole new file that is renamed over the old one, so the
+ * file on disk is always either the old state or the new one. Applies that pile up before the
+ * write gets to run are written once.
+ * <p>
+ * File format, big endian: magic (4 bytes), version (1 byte), record count (2 bytes), then the
+ * records, our own first and then the paired ones, least recent first. A record is its kind
+ * (1 byte), flags (1 byte), ID and pair token (each a 2 byte length and UTF-8 bytes; no token is
+ * length 0), the key commands are signed with (1 byte length and the key; none is length 0; not in
+ * version 1 files), and for a Robocar its LED sequence (1 byte count, then 1 byte per
+ * {@link LedColor#ordinal()}).
+ * <p>
+ * Thread safe.
+ */
+public class PairingStore {
+
+    private static final String TAG = "PairingStore";
+
+    private static final String FILE_NAME = "pairings.bin";
+    private static final int MAGIC = 0x52435053; // "RCPS"
+    private static final int VERSION = 2;
+    // Before keys were stored.
+    private static final int VERSION_WITHOUT_KEYS = 1;
+    private static final int HEADER_SIZE = 7;
+
+    private static final int KIND_ROBOCAR = 0;
+    private static final int KIND_COMPANION = 1;
+    private static final int FLAG_LOCAL = 0x01;
+
+    // Oldest pairings are forgotten beyond this.
+    private static final int MAX_PAIRED = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static PairingStore sInstance;
+
+    private final File mFile;
+    private final Object mWriteLock = new Object();
+
+    // All guarded by this.
+    private boolean mLoaded;
+    private boolean mExists;
+    private AdvertisingInfo mLocalRobocar;
+    private DiscovererInfo mLocalCompanion;
+    // Least recently paired first.
+    private final LinkedHashMap<String, AdvertisingInfo> mRobocars = new LinkedHashMap<>();
+    private final LinkedHashMap<String, DiscovererInfo> mCompanions = new LinkedHashMap<>();
+    // Keys for signing commands, only for pairings we still have.
+    private final HashMap<String, byte[]> mRobocarKeys = new HashMap<>();
+    private final HashMap<String, byte[]> mCompanionKeys = new HashMap<>();
+    // Counts applies, so snapshots can be told apart once they leave the lock.
+    private long mGeneration;
+
+    // The latest state not yet written and its generation, guarded by mWriteLock.
+    private byte[] mPendingWrite;
+    private long mPendingGeneration;
+
+    public static synchronized PairingStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = new PairingStore(new File(context.getFilesDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    PairingStore(File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("File cannot be null");
+        }
+        mFile = file;
+    }
+
+    /** Returns false until something has been saved, e.g. to tell when to migrate. */
+    public synchronized boolean exists() {
+        load();
+        return mExists;
+    }
+
+    /** Returns our own identity, if we are a Robocar. */
+    public synchronized @Nullable AdvertisingInfo getLocalRobocar() {
+        load();
+        return mLocalRobocar;
+    }
+
+    /** Returns our own identity, if we are a companion. */
+    public synchronized @Nullable DiscovererInfo getLocalCompanion() {
+        load();
+        return mLocalCompanion;
+    }
+
+    public synchronized @Nullable AdvertisingInfo getPairedRobocar(String robocarId) {
+        load();
+        return mRobocars.get(robocarId);
+    }
+
+    public synchronized @Nullable DiscovererInfo getPairedCompanion(String companionId) {
+        load();
+        return mCompanions.get(companionId);
+    }
+
+    /** Returns the key commands to a paired Robocar are signed with, or null if there is none. */
+    public synchronized @Nullable byte[] getRobocarKey(String robocarId) {
+        load();
+        byte[] key = mRobocarKeys.get(robocarId);
+        return key == null ? null : key.clone();
+    }
+
+    /** Returns the key commands from a paired companion are signed with, or null if none. */
+    public synchronized @Nullable byte[] getCompanionKey(String companionId) {
+        load();
+        byte[] key = mCompanionKeys.get(companionId);
+        return key == null ? null : key.clone();
+    }
+
+    /** Returns the Robocars we have paired with, most recent first. */
+    public synchronized List<AdvertisingInfo> getPairedRobocars() {
+        load();
+        List<AdvertisingInfo> robocars = new ArrayList<>(mRobocars.values());
+        Collections.reverse(robocars);
+        return robocars;
+    }
+
+    /** Returns the companions we have paired with, most recent first. */
+    public synchronized List<DiscovererInfo> getPairedCompanions() {
+        load();
+        List<DiscovererInfo> companions = new ArrayList<>(mCompanions.values());
+        Collections.reverse(companions);
+        return companions;
+    }
+
+    public synchronized @Nullable AdvertisingInfo getLastPairedRobocar() {
+        load();
+        return last(mRobocars);
+    }
+
+    public synchronized @Nullable DiscovererInfo getLastPairedCompanion() {
+        load();
+        return last(mCompanions);
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    /**
+     * A batch of changes, applied together with a single write. Not thread safe.
+     */
+    public class Editor {
+
+        private boolean mSetLocal;
+        private AdvertisingInfo mNewLocalRobocar;
+        private DiscovererInfo mNewLocalCompanion;
+        private boolean mClearPaired;
+        private final List<AdvertisingInfo> mNewRobocars = new ArrayList<>();
+        private final List<DiscovererInfo> mNewCompanions = new ArrayList<>();
+        private final HashMap<String, byte[]> mNewRobocarKeys = new HashMap<>();
+        private final HashMap<String, byte[]> mNewCompanionKeys = new HashMap<>();
+
+        private Editor() {}
+
+        /** Makes us the given Robocar. */
+        public Editor setLocal(AdvertisingInfo info) {
+            if (info == null) {
+                throw new IllegalArgumentException("AdvertisingInfo cannot be null");
+            }
+            mSetLocal = true;
+            mNewLocalRobocar = info;
+            mNewLocalCompanion = null;
+            return this;
+        }
+
+        /** Makes us the given companion. */
+        public Editor setLocal(DiscovererInfo info) {
+            if (info == null) {
+                throw new IllegalArgumentException("DiscovererInfo cannot be null");
+            }
+            mSetLocal = true;
+            mNewLocalRobocar = null;
+            mNewLocalCompanion = info;
+            return this;
+        }
+
+        /** Records pairing with a Robocar, replacing what we knew about it under its ID. */
+        public Editor putPaired(AdvertisingInfo info) {
+            if (info == null) {
+                throw new IllegalArgumentException("AdvertisingInfo cannot be null");
+            }
+            mNewRobocars.add(info);
+            return this;
+        }
+
+        /** Records pairing with a companion, replacing what we knew about it under its ID. */
+        public Editor putPaired(DiscovererInfo info) {
+            if (info == null) {
+                throw new IllegalArgumentException("DiscovererInfo cannot be null");
+            }
+            mNewCompanions.add(info);
+            return this;
+        }
+
+        /**
+         * Sets the key commands to a Robocar are signed with. Ignored unless we are paired with
+         * it once this batch is applied, and forgotten together with the pairing.
+         */
+        public Editor putRobocarKey(String robocarId, byte[] key) {
+            if (robocarId == null || key == null) {
+                throw new IllegalArgumentException("Robocar ID and key cannot be null");
+            }
+            mNewRobocarKeys.put(robocarId, key.clone());
+            return this;
+        }
+
+        /**
+         * Sets the key commands from a companion are signed with. Ignored unless we are paired
+         * with it once this batch is applied, and forgotten together with the pairing.
+         */
+        public Editor putCompanionKey(String companionId, byte[] key) {
+            if (companionId == null || key == null) {
+                throw new IllegalArgumentException("Companion ID and key cannot be null");
+            }
+            mNewCompanionKeys.put(companionId, key.clone());
+            return this;
+        }
+
+        /** Forgets every pairing, before any added in this batch. */
+        public Editor clearPaired() {
+            mClearPaired = true;
+            mNewRobocars.clear();
+            mNewCompanions.clear();
+            mNewRobocarKeys.clear();
+            mNewCompanionKeys.clear();
+            return this;
+        }
+
+        /** Applies the changes in memory now, and writes them out in the background. */
+        public void apply() {
+            final byte[] data;
+            final long generation;
+            synchronized (PairingStore.this) {
+                load();
+                if (mSetLocal) {
+                    mLocalRobocar = mNewLocalRobocar;
+                    mLocalCompanion = mNewLocalCompanion;
+                }
+                if (mClearPaired) {
+                    mRobocars.clear();
+                    mCompanions.clear();
+                }
+                for (AdvertisingInfo info : mNewRobocars) {
+                    putLast(mRobocars, info.mRobocarId, info);
+                }
+                for (DiscovererInfo info : mNewCompanions) {
+                    putLast(mCompanions, info.mCompanionId, info);
+                }
+                mRobocarKeys.putAll(mNewRobocarKeys);
+                mCompanionKeys.putAll(mNewCompanionKeys);
+                // Drop the keys of pairings that were cleared or pushed out.
+                mRobocarKeys.keySet().retainAll(mRobocars.keySet());
+                mCompanionKeys.keySet().retainAll(mCompanions.keySet());
+                mExists = true;
+                data = encode();
+                generation = ++mGeneration;
+            }
+            synchronized (mWriteLock) {
+                // A concurrent apply may have got here first with a newer snapshot, which may
+                // even be written already; never go back to an older one.
+                if (generation > mPendingGeneration) {
+                    mPendingWrite = data;
+                    mPendingGeneration = generation;
+                }
+            }
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mWriteRunnable);
+        }
+    }
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mWriteLock) {
+                if (mPendingWrite == null) {
+                    // A write that ran in the meantime took care of it.
+                    return;
+                }
+                byte[] data = mPendingWrite;
+                mPendingWrite = null;
+                File temp = new File(mFile.getPath() + ".tmp");
+                try {
+                    FileOutputStream out = new FileOutputStream(temp);
+                    try {
+                        out.write(data);
+                        // Make sure the data is on disk before the rename makes it current.
+                        out.getFD().sync();
+                    } finally {
+                        out.close();
+                    }
+                    if (!temp.renameTo(mFile)) {
+                        throw new IOException("Failed to rename " + temp);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to save pairings", e);
+                }
+            }
+        }
+    };
+
+    private static <T> void putLast(LinkedHashMap<String, T> map, String id, T value) {
+        // Removing first moves an entry that is already there to the end.
+        map.remove(id);
+        map.put(id, value);
+        Iterator<String> oldest = map.keySet().iterator();
+        while (map.size() > MAX_PAIRED) {
+            oldest.next();
+            oldest.remove();
+        }
+    }
+
+    private static <T> T last(LinkedHashMap<String, T> map) {
+        T last = null;
+        for (T value : map.values()) {
+            last = value;
+        }
+        return last;
+    }
+
+    // Must hold the lock on this.
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        mExists = mFile.exists();
+        if (!mExists) {
+            return;
+        }
+        try {
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                FileChannel channel = in.getChannel();
+                decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            } finally {
+                in.close();
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            // Start over rather than keep failing; pairing again fixes it.
+            Log.e(TAG, "Failed to load pairings from " + mFile, e);
+            mLocalRobocar = null;
+            mLocalCompanion = null;
+            mRobocars.clear();
+            mCompanions.clear();
+            mRobocarKeys.clear();
+            mCompanionKeys.clear();
+        }
+    }
+
+    private void decode(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a pairing store");
+        }
+        int version = buffer.get() & 0xFF;
+        if (version != VERSION && version != VERSION_WITHOUT_KEYS) {
+            throw new IOException("Unsupported pairing store version " + version);
+        }
+        int count = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            int kind = buffer.get() & 0xFF;
+            boolean local = (buffer.get() & FLAG_LOCAL) != 0;
+            String id = getString(buffer);
+            String pairToken = getString(buffer);
+            byte[] key = version == VERSION_WITHOUT_KEYS ? null : getKey(buffer);
+            if (kind == KIND_ROBOCAR) {
+                LedColor[] colors = LedColor.values();
+                List<LedColor> leds = new ArrayList<>();
+                for (int led = buffer.get() & 0xFF; led > 0; led--) {
+                    int ordinal = buffer.get() & 0xFF;
+                    if (ordinal >= colors.length) {
+                        throw new IOException("Unknown LED color " + ordinal);
+                    }
+                    leds.add(colors[ordinal]);
+                }
+                AdvertisingInfo info = new AdvertisingInfo(id, leds, pairToken);
+                if (local) {
+                    mLocalRobocar = info;
+                } else {
+                    mRobocars.put(id, info);
+                    putKey(mRobocarKeys, id, key);
+                }
+            } else if (kind == KIND_COMPANION) {
+                DiscovererInfo info = new DiscovererInfo(id, pairToken);
+                if (local) {
+                    mLocalCompanion = info;
+                } else {
+                    mCompanions.put(id, info);
+                    putKey(mCompanionKeys, id, key);
+                }
+            } else {
+                throw new IOException("Unknown record kind " + kind);
+            }
+        }
+    }
+
+    // Must hold the lock on this.
+    private byte[] encode() {
+        List<byte[]> records = new ArrayList<>();
+        if (mLocalRobocar != null) {
+            records.add(encode(mLocalRobocar, FLAG_LOCAL, null));
+        }
+        if (mLocalCompanion != null) {
+            records.add(encode(mLocalCompanion, FLAG_LOCAL, null));
+        }
+        for (AdvertisingInfo info : mRobocars.values()) {
+            records.add(encode(info, 0, mRobocarKeys.get(info.mRobocarId)));
+        }
+        for (DiscovererInfo info : mCompanions.values()) {
+            records.add(encode(info, 0, mCompanionKeys.get(info.mCompanionId)));
+        }
+        int size = HEADER_SIZE;
+        for (byte[] record : records) {
+            size += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size)
+                .putInt(MAGIC)
+                .put((byte) VERSION)
+                .putShort((short) records.size());
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] encode(AdvertisingInfo info, int flags, @Nullable byte[] key) {
+        byte[] id = info.mRobocarId.getBytes(UTF_8);
+        byte[] token = info.mPairToken == null ? new byte[0] : info.mPairToken.getBytes(UTF_8);
+        if (key == null) {
+            key = new byte[0];
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(2 + 2 + id.length + 2 + token.length
+                + 1 + key.length + 1 + info.mLedSequence.size())
+                .put((byte) KIND_ROBOCAR)
+                .put((byte) flags)
+                .putShort((short) id.length)
+                .put(id)
+                .putShort((short) token.length)
+                .put(token)
+                .put((byte) key.length)
+                .put(key)
+                .put((byte) info.mLedSequence.size());
+        for (LedColor color : info.mLedSequence) {
+            buffer.put((byte) color.ordinal());
+        }
+        return buffer.array();
+    }
+
+    private static byte[] encode(DiscovererInfo info, int flags, @Nullable byte[] key) {
+        byte[] id = info.mCompanionId.getBytes(UTF_8);
+        byte[] token = info.mPairToken == null ? new byte[0] : info.mPairToken.getBytes(UTF_8);
+        if (key == null) {
+            key = new byte[0];
+        }
+        return ByteBuffer.allocate(2 + 2 + id.length + 2 + token.length + 1 + key.length)
+                .put((byte) KIND_COMPANION)
+                .put((byte) flags)
+                .putShort((short) id.length)
+                .put(id)
+                .putShort((short) token.length)
+                .put(token)
+                .put((byte) key.length)
+                .put(key)
+                .array();
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return bytes.length == 0 ? null : new String(bytes, UTF_8);
+    }
+
+    private static byte[] getKey(ByteBuffer buffer) {
+        byte[] key = new byte[buffer.get() & 0xFF];
+        buffer.get(key);
+        return key.length == 0 ? null : key;
+    }
+
+    private static void putKey(HashMap<String, byte[]> keys, String id, @Nullable byte[] key) {
+        if (key != null) {
+            keys.put(id, key);
+        } else {
+            keys.remove(id);
+        }
+    }
+}
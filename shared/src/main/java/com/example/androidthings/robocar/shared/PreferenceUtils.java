@@ -24,6 +24,9 @@ import com.example.androidthings.robocar.shared.model.DiscovererInfo;
 
 import java.util.List;
 
+/**
+ * Reads the pairing state that older builds kept in SharedPreferences; see {@link PairingStore}.
+ */
 public class PreferenceUtils {
 
     private static final String KEY_ROBOCAR_ID = "robocar_id";
@@ -33,23 +36,47 @@ public class PreferenceUtils {
     private static final String KEY_COMPANION_ID = "companion_id";
     private static final String KEY_COMPANION_PAIR_TOKEN = "companion_pair_token";
 
-    public static void saveAdvertisingInfo(SharedPreferences prefs, AdvertisingInfo info) {
-        if (info == null) {
+    /**
+     * Moves pairing state saved by builds from before {@link PairingStore} into the store, and
+     * removes it from the preferences. Only call this while the store is empty; reading the
+     * preferences is what the store is there to avoid.
+     *
+     * @param robocar true if we are a Robocar, false if a companion
+     */
+    public static void migrateToPairingStore(SharedPreferences prefs, PairingStore store,
+            boolean robocar) {
+        AdvertisingInfo robocarInfo = loadAdvertisingInfo(prefs);
+        DiscovererInfo companionInfo = loadDiscovererInfo(prefs);
+        if (robocarInfo == null && companionInfo == null) {
             return;
         }
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString(KEY_ROBOCAR_ID, info.mRobocarId)
-                .putString(KEY_ROBOCAR_LED_SEQUENCE,
-                        AdvertisingInfo.ledColorsToString(info.mLedSequence));
-        if (info.mIsPaired) {
-            editor.putString(KEY_ROBOCAR_PAIR_TOKEN, info.mPairToken);
+        PairingStore.Editor editor = store.edit();
+        if (robocar) {
+            if (robocarInfo != null) {
+                editor.setLocal(robocarInfo);
+            }
+            if (companionInfo != null && companionInfo.mIsPaired) {
+                editor.putPaired(companionInfo);
+            }
         } else {
-            editor.remove(KEY_ROBOCAR_PAIR_TOKEN);
+            if (companionInfo != null) {
+                editor.setLocal(companionInfo);
+            }
+            if (robocarInfo != null && robocarInfo.mIsPaired) {
+                editor.putPaired(robocarInfo);
+            }
         }
         editor.apply();
+        prefs.edit()
+                .remove(KEY_ROBOCAR_ID)
+                .remove(KEY_ROBOCAR_LED_SEQUENCE)
+                .remove(KEY_ROBOCAR_PAIR_TOKEN)
+                .remove(KEY_COMPANION_ID)
+                .remove(KEY_COMPANION_PAIR_TOKEN)
+                .apply();
     }
 
-    public static @Nullable AdvertisingInfo loadAdvertisingInfo(SharedPreferences prefs) {
+    private static @Nullable AdvertisingInfo loadAdvertisingInfo(SharedPreferences prefs) {
         String id = prefs.getString(KEY_ROBOCAR_ID, null);
         List<LedColor> leds = AdvertisingInfo.stringToLedColors(
                 prefs.getString(KEY_ROBOCAR_LED_SEQUENCE, null));
@@ -61,21 +88,7 @@ public class PreferenceUtils {
         return new AdvertisingInfo(id, leds, pairToken);
     }
 
-    public static void saveDiscovererInfo(SharedPreferences prefs, DiscovererInfo info) {
-        if (info == null) {
-            return;
-        }
-        SharedPreferences.Editor editor = prefs.edit()
-                .putString(KEY_COMPANION_ID, info.mCompanionId);
-        if (info.mIsPaired) {
-            editor.putString(KEY_COMPANION_PAIR_TOKEN, info.mPairToken);
-        } else {
-            editor.remove(KEY_COMPANION_PAIR_TOKEN);
-        }
-        editor.apply();
-    }
-
-    public static @Nullable DiscovererInfo loadDiscovererInfo(SharedPreferences prefs) {
+    private static @Nullable DiscovererInfo loadDiscovererInfo(SharedPreferences prefs) {
         String id = prefs.getString(KEY_COMPANION_ID, null);
         if (id == null) {
             return null;
@@ -83,8 +96,4 @@ public class PreferenceUtils {
         String pairToken = prefs.getString(KEY_COMPANION_PAIR_TOKEN, null);
         return new DiscovererInfo(id, pairToken);
     }
-
-    public static void clearDicovererInfo(SharedPreferences prefs) {
-        prefs.edit().remove(KEY_COMPANION_ID).remove(KEY_COMPANION_PAIR_TOKEN).apply();
-    }
 }
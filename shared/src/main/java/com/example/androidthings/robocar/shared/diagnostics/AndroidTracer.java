@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.diagnostics;
+
+import android.os.Trace;
+
+/**
+ * Emits sections to {@link Trace}. Async sections and counters aren't available on the API levels
+ * we support, so the trace ID is appended to the section name to let sections from one command be
+ * found on both devices.
+ */
+class AndroidTracer extends Tracer {
+
+    // Trace refuses section names longer than this.
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    @Override
+    protected void onBeginSection(String name, long traceId, boolean startsTrace) {
+        if (traceId != NO_TRACE_ID) {
+            name = name + " #" + Long.toHexString(traceId);
+        }
+        if (name.length() > MAX_SECTION_NAME_LENGTH) {
+            name = name.substring(0, MAX_SECTION_NAME_LENGTH);
+        }
+        Trace.beginSection(name);
+    }
+
+    @Override
+    public void endSection() {
+        Trace.endSection();
+    }
+}
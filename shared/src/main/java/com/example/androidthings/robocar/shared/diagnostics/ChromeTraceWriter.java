@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.diagnostics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes sections as Chrome trace-event JSON, for loading in chrome://tracing or Perfetto.
+ * Sections become duration events on the calling thread. Sections that belong to a trace also
+ * carry a flow event with the trace ID, so when the files from the Robocar and the companion are
+ * concatenated into one array the viewer draws each command's path across both processes.
+ * <p>
+ * Events are appended as they happen. The closing bracket is written by {@link #close()}, but the
+ * viewers also accept a file that was cut off without it.
+ */
+public class ChromeTraceWriter extends Tracer {
+
+    private static final String CATEGORY = "robocar";
+
+    private final Writer mWriter;
+    private final int mPid;
+    private final long mStartNanos = System.nanoTime();
+    // Threads that have had their name written.
+    private final Set<Long> mNamedThreads = new HashSet<>();
+    private boolean mClosed;
+    private boolean mWroteEvent;
+
+    /**
+     * @param pid process ID to put in events; give each process a different one if their traces
+     *            will be merged
+     * @param processName shown in the viewer for this process
+     */
+    public ChromeTraceWriter(File file, int pid, String processName) throws IOException {
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                Charset.forName("UTF-8")));
+        mPid = pid;
+        mWriter.write("[");
+        writeEvent("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + mPid
+                + ",\"args\":{\"name\":\"" + escape(processName) + "\"}}");
+    }
+
+    @Override
+    protected synchronized void onBeginSection(String name, long traceId, boolean startsTrace) {
+        long tid = Thread.currentThread().getId();
+        String common = ",\"pid\":" + mPid + ",\"tid\":" + tid + ",\"ts\":" + nowMicros();
+        nameThread(tid);
+        if (traceId == NO_TRACE_ID) {
+            writeEvent("{\"name\":\"" + escape(name) + "\",\"ph\":\"B\"" + common + "}");
+            return;
+        }
+        String id = "\"0x" + Long.toHexString(traceId) + "\"";
+        writeEvent("{\"name\":\"" + escape(name) + "\",\"ph\":\"B\"" + common
+                + ",\"args\":{\"trace_id\":" + id + "}}");
+        // Flow events bind to the slice that encloses them, i.e. the one just opened.
+        writeEvent("{\"name\":\"command\",\"cat\":\"" + CATEGORY + "\",\"ph\":\""
+                + (startsTrace ? "s" : "t") + "\",\"id\":" + id + common + "}");
+    }
+
+    @Override
+    public synchronized void endSection() {
+        writeEvent("{\"ph\":\"E\",\"pid\":" + mPid + ",\"tid\":" + Thread.currentThread().getId()
+                + ",\"ts\":" + nowMicros() + "}");
+    }
+
+    public synchronized void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mWriter.write("\n]\n");
+            mWriter.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close trace: " + e);
+        }
+    }
+
+    private void nameThread(long tid) {
+        if (mNamedThreads.add(tid)) {
+            writeEvent("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + mPid + ",\"tid\":"
+                    + tid + ",\"args\":{\"name\":\""
+                    + escape(Thread.currentThread().getName()) + "\"}}");
+        }
+    }
+
+    private long nowMicros() {
+        return (System.nanoTime() - mStartNanos) / 1000L;
+    }
+
+    private void writeEvent(String json) {
+        if (mClosed) {
+            return;
+        }
+        try {
+            // Separators go first, so a file that was cut off ends with a whole event.
+            mWriter.write(mWroteEvent ? ",\n" : "\n");
+            mWriter.write(json);
+            mWroteEvent = true;
+        } catch (IOException e) {
+            // Tracing must never take the car down; stop tracing instead.
+            System.err.println("Failed to write trace: " + e);
+            mClosed = true;
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
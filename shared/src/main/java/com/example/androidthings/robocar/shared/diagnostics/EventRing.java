@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.diagnostics;
+
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on black box of connection events. Each event is a fixed-size record of primitives
+ * (event code, endpoint hash and two arguments) written into a preallocated ring, so recording
+ * one from any thread is a few atomic stores with no locking, allocation or formatting. The ring
+ * can be printed with {@code adb shell dumpsys activity}, and is written to a file if the app
+ * crashes.
+ */
+public final class EventRing {
+
+    private static final String TAG = "EventRing";
+
+    @IntDef({EventCode.STATE_CHANGED, EventCode.ILLEGAL_TRANSITION,
+            EventCode.ADVERTISING_STARTED, EventCode.ADVERTISING_FAILED,
+            EventCode.ADVERTISING_STOPPED, EventCode.DISCOVERY_STARTED,
+            EventCode.DISCOVERY_FAILED, EventCode.DISCOVERY_STOPPED, EventCode.ENDPOINT_FOUND,
+            EventCode.ENDPOINT_REPLACED, EventCode.ENDPOINT_EXPIRED,
+            EventCode.CONNECTION_REQUESTED, EventCode.CONNECTION_INITIATED,
+            EventCode.CONNECTION_ACCEPTED, EventCode.CONNECTION_REJECTED,
+            EventCode.CONNECTION_RESULT, EventCode.DISCONNECTED,
+            EventCode.CAPABILITIES_RECEIVED})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface EventCode {
+        /** a = old state, b = new state */
+        int STATE_CHANGED = 0;
+        /** a = current state, b = requested state */
+        int ILLEGAL_TRANSITION = 1;
+        int ADVERTISING_STARTED = 2;
+        /** a = status code */
+        int ADVERTISING_FAILED = 3;
+        int ADVERTISING_STOPPED = 4;
+        int DISCOVERY_STARTED = 5;
+        /** a = status code */
+        int DISCOVERY_FAILED = 6;
+        int DISCOVERY_STOPPED = 7;
+        int ENDPOINT_FOUND = 8;
+        /** a = hash of the replaced endpoint ID */
+        int ENDPOINT_REPLACED = 9;
+        int ENDPOINT_EXPIRED = 10;
+        /** a = status code */
+        int CONNECTION_REQUESTED = 11;
+        int CONNECTION_INITIATED = 12;
+        /** a = status code */
+        int CONNECTION_ACCEPTED = 13;
+        /** a = status code */
+        int CONNECTION_REJECTED = 14;
+        /** a = status code */
+        int CONNECTION_RESULT = 15;
+        int DISCONNECTED = 16;
+        /** a = protocol version, b = supported message types */
+        int CAPABILITIES_RECEIVED = 17;
+    }
+
+    private static final String[] EVENT_NAMES = {
+            "state_changed", "illegal_transition", "advertising_started", "advertising_failed",
+            "advertising_stopped", "discovery_started", "discovery_failed", "discovery_stopped",
+            "endpoint_found", "endpoint_replaced", "endpoint_expired", "connection_requested",
+            "connection_initiated", "connection_accepted", "connection_rejected",
+            "connection_result", "disconnected", "capabilities_received"
+    };
+
+    private static final int CAPACITY = 4096; // must be a power of two
+    // stamp, elapsedRealtimeNanos, code << 32 | endpoint hash, a, b
+    private static final int SLOT_SIZE = 5;
+
+    private static final EventRing sInstance = new EventRing();
+
+    private final AtomicLongArray mSlots = new AtomicLongArray(CAPACITY * SLOT_SIZE);
+    private final AtomicLong mNext = new AtomicLong();
+    private final AtomicBoolean mCrashHandlerInstalled = new AtomicBoolean();
+
+    public static EventRing get() {
+        return sInstance;
+    }
+
+    private EventRing() {}
+
+    public void record(@EventCode int code, String endpointId) {
+        record(code, endpointId, 0, 0);
+    }
+
+    public void record(@EventCode int code, String endpointId, long a, long b) {
+        long sequence = mNext.getAndIncrement();
+        int base = (int) (sequence & (CAPACITY - 1)) * SLOT_SIZE;
+        // The stamp tells readers which event the slot holds; 0 while it's being written.
+        mSlots.set(base, 0);
+        mSlots.lazySet(base + 1, SystemClock.elapsedRealtimeNanos());
+        mSlots.lazySet(base + 2, ((long) code << 32)
+                | ((endpointId == null ? 0 : endpointId.hashCode()) & 0xFFFFFFFFL));
+        mSlots.lazySet(base + 3, a);
+        mSlots.lazySet(base + 4, b);
+        mSlots.set(base, sequence + 1);
+    }
+
+    /**
+     * Prints the events still in the ring, oldest first, with times relative to now.
+     */
+    public void dump(PrintWriter writer, String prefix) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        long end = mNext.get();
+        long start = Math.max(0, end - CAPACITY);
+        writer.println(prefix + "Events (" + (end - start) + " of " + end + "):");
+        for (long sequence = start; sequence < end; sequence++) {
+            int base = (int) (sequence & (CAPACITY - 1)) * SLOT_SIZE;
+            long stamp = mSlots.get(base);
+            long time = mSlots.get(base + 1);
+            long codeAndHash = mSlots.get(base + 2);
+            long a = mSlots.get(base + 3);
+            long b = mSlots.get(base + 4);
+            if (stamp != sequence + 1 || mSlots.get(base) != stamp) {
+                continue; // being written or already overwritten
+            }
+            int code = (int) (codeAndHash >>> 32);
+            writer.println(String.format("%s  %+.3fms %s endpoint=%08x %d %d", prefix,
+                    (time - now) / 1e6, code < EVENT_NAMES.length ? EVENT_NAMES[code] : code,
+                    (int) codeAndHash, a, b));
+        }
+    }
+
+    /**
+     * Dumps the ring for {@code adb shell dumpsys activity <activity> [save-events]}. With the
+     * {@code save-events} argument the ring is also saved into the given directory.
+     */
+    public void dump(PrintWriter writer, String prefix, String[] args, File saveDirectory) {
+        dump(writer, prefix);
+        if (args != null && Arrays.asList(args).contains("save-events")) {
+            try {
+                writer.println(prefix + "Saved to " + dumpToDirectory(saveDirectory));
+            } catch (IOException e) {
+                writer.println(prefix + "Failed to save events: " + e);
+            }
+        }
+    }
+
+    /**
+     * Writes the ring to a new, timestamped file in the given directory.
+     *
+     * @return the file written
+     */
+    public File dumpToDirectory(File directory) throws IOException {
+        File file = new File(directory, "events-" + System.currentTimeMillis() + ".txt");
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            dump(writer, "");
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Dumps the ring into a new file in the given directory if the process dies from an
+     * uncaught exception. Safe to call more than once.
+     */
+    public void installCrashHandler(final File directory) {
+        if (!mCrashHandlerInstalled.compareAndSet(false, true)) {
+            return;
+        }
+        final Thread.UncaughtExceptionHandler previous =
+                Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                try {
+                    dumpToDirectory(directory);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to write events to " + directory, e);
+                }
+                if (previous != null) {
+                    previous.uncaughtException(thread, throwable);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.diagnostics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracing facade for the command path. On a device, sections go to {@link android.os.Trace} and
+ * show up in systrace. On the JVM (running with fake drivers), sections are written as Chrome
+ * trace-event JSON if the {@code robocar.trace} system property names an output file; otherwise
+ * tracing is a no-op.
+ * <p>
+ * A trace ID follows one command across both devices: the companion starts it with
+ * {@link #beginTrace(String)}, sends it in the command frame, and the Robocar passes it to every
+ * section it opens while handling that command and echoing it back.
+ * <p>
+ * Sections must be closed with {@link #endSection()} on the thread that opened them.
+ */
+public abstract class Tracer {
+
+    public static final long NO_TRACE_ID = 0L;
+
+    private static final String TRACE_FILE_PROPERTY = "robocar.trace";
+
+    // IDs are unique per process in the low bits and, with high probability, across processes in
+    // the high bits, so traces from the Robocar and the companion can be merged.
+    private static final long ID_PREFIX = (long) new Random().nextInt() << 32;
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    private static volatile Tracer sInstance;
+
+    public static Tracer get() {
+        Tracer tracer = sInstance;
+        if (tracer == null) {
+            synchronized (Tracer.class) {
+                tracer = sInstance;
+                if (tracer == null) {
+                    tracer = sInstance = createDefault();
+                }
+            }
+        }
+        return tracer;
+    }
+
+    /**
+     * Replaces the tracer returned by {@link #get()}, e.g. with a {@link ChromeTraceWriter} from
+     * a JVM harness. Install before any section is opened.
+     */
+    public static void install(Tracer tracer) {
+        if (tracer == null) {
+            throw new IllegalArgumentException("Tracer cannot be null");
+        }
+        sInstance = tracer;
+    }
+
+    private static Tracer createDefault() {
+        if ("Dalvik".equals(System.getProperty("java.vm.name"))) {
+            return new AndroidTracer();
+        }
+        String path = System.getProperty(TRACE_FILE_PROPERTY);
+        if (path != null) {
+            try {
+                final ChromeTraceWriter writer = new ChromeTraceWriter(new File(path), 1,
+                        System.getProperty("sun.java.command", "robocar"));
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    @Override
+                    public void run() {
+                        writer.close();
+                    }
+                });
+                return writer;
+            } catch (IOException e) {
+                System.err.println("Failed to open trace file " + path + ": " + e);
+            }
+        }
+        return new Tracer() {
+            @Override
+            protected void onBeginSection(String name, long traceId, boolean startsTrace) {}
+
+            @Override
+            public void endSection() {}
+        };
+    }
+
+    public static long newTraceId() {
+        long id;
+        do {
+            id = ID_PREFIX | (sNextId.incrementAndGet() & 0xFFFFFFFFL);
+        } while (id == NO_TRACE_ID);
+        return id;
+    }
+
+    public void beginSection(String name) {
+        onBeginSection(name, NO_TRACE_ID, false);
+    }
+
+    /**
+     * Opens a section that is part of the given trace, or of no trace if it is
+     * {@link #NO_TRACE_ID}.
+     */
+    public void beginSection(String name, long traceId) {
+        onBeginSection(name, traceId, false);
+    }
+
+    /**
+     * Opens a section that starts a new trace.
+     *
+     * @return the new trace ID, to be carried along with the work being traced
+     */
+    public long beginTrace(String name) {
+        long traceId = newTraceId();
+        onBeginSection(name, traceId, true);
+        return traceId;
+    }
+
+    protected abstract void onBeginSection(String name, long traceId, boolean startsTrace);
+
+    public abstract void endSection();
+}
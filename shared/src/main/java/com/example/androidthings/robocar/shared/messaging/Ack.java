@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.messaging;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A cumulative acknowledgement of numbered commands (see {@link Message#COMMAND_FLAG_SEQUENCE}),
+ * which the Robocar sends instead of echoing every command back. One ACK covers every command up
+ * to {@link #mSequence}; Nearby delivers payloads in order, so anything below it has either been
+ * processed or was never delivered. Commands that failed within the last {@link #WINDOW} are
+ * flagged in {@link #mErrors}.
+ * <p>
+ * ACK body: highest sequence number processed (4 bytes), error bitmap (4 bytes, bit i set if
+ * command mSequence - i failed), the command the car is currently carrying out (1 byte,
+ * {@link com.example.androidthings.robocar.shared.CarCommands#ERROR} if the last one failed) and
+ * the trace ID of the last command processed (8 bytes), all big endian.
+ */
+public final class Ack {
+
+    /** How many commands back the error bitmap reaches. */
+    public static final int WINDOW = 32;
+
+    private static final int FRAME_SIZE = 18;
+
+    /** The highest sequence number processed, or {@link Message#NO_SEQUENCE} if none yet. */
+    public final int mSequence;
+    public final int mErrors;
+    public final byte mCommand;
+    public final long mTraceId;
+
+    public Ack(int sequence, int errors, byte command, long traceId) {
+        mSequence = sequence;
+        mErrors = errors;
+        mCommand = command;
+        mTraceId = traceId;
+    }
+
+    /** Returns true if this acknowledges the command with the given sequence number. */
+    public boolean covers(int sequence) {
+        // Compared by difference, so wrapping around is harmless.
+        return sequence != Message.NO_SEQUENCE && mSequence != Message.NO_SEQUENCE
+                && mSequence - sequence >= 0;
+    }
+
+    /**
+     * Returns true if the command with the given sequence number is known to have failed. Only
+     * the last {@link #WINDOW} commands are tracked; older ones read as succeeded.
+     */
+    public boolean isFailed(int sequence) {
+        if (!covers(sequence)) {
+            return false;
+        }
+        int distance = mSequence - sequence;
+        return distance < WINDOW && (mErrors & (1 << distance)) != 0;
+    }
+
+    /** Encodes this acknowledgement as an ACK frame. */
+    public byte[] toFrame() {
+        return ByteBuffer.allocate(FRAME_SIZE)
+                .put(Message.toWireType(MessageType.ACK))
+                .putInt(mSequence)
+                .putInt(mErrors)
+                .put(mCommand)
+                .putLong(mTraceId)
+                .array();
+    }
+
+    /** Decodes an ACK message, or returns null if it is malformed. */
+    public static Ack decode(Message message) {
+        if (message.mType != MessageType.ACK) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.wrap(message.mData, message.mBodyOffset,
+                message.getBodyLength());
+        try {
+            int sequence = body.getInt();
+            int errors = body.getInt();
+            byte command = body.get();
+            long traceId = body.getLong();
+            return new Ack(sequence, errors, command, traceId);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ack " + mSequence + " errors=0x" + Integer.toHexString(mErrors)
+                + " command=" + mCommand;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.messaging;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * What one side of a connection supports, exchanged in a HELLO message right after connecting.
+ * Until the peer's HELLO arrives, assume it is {@link #LEGACY}: a build from before HELLO existed,
+ * which only understands single byte commands.
+ * <p>
+ * HELLO body: protocol version (1 byte), supported message types (4 byte bitmask indexed by
+ * {@link MessageType}), supported command flags (1 byte, see {@link Message}), maximum command
+ * rate per second (2 bytes, 0 for no limit), feature bits (1 byte), maximum commands per batch
+ * (1 byte) and maximum payload size (2 bytes), all big endian. New fields are only ever appended,
+ * and a receiver reads the fields it knows and ignores the rest.
+ */
+public final class Capabilities {
+
+    /** Version of the protocol implemented by this build. 0 is the original single byte one. */
+    public static final int PROTOCOL_VERSION = 1;
+
+    public static final int FEATURE_TELEMETRY = 0x01;
+
+    // What Nearby allows in a BYTES payload.
+    private static final int MAX_PAYLOAD_BYTES = 32768;
+
+    public static final Capabilities LEGACY = new Capabilities(0, 1 << MessageType.COMMAND, 0, 0,
+            0, 1, 1);
+
+    public final int mProtocolVersion;
+    public final int mMessageTypes;
+    public final int mCommandFlags;
+    /** Commands per second the receiver accepts before throttling; 0 if it doesn't limit. */
+    public final int mMaxCommandRate;
+    public final int mFeatures;
+    public final int mMaxBatchCommands;
+    public final int mMaxPayloadBytes;
+
+    public Capabilities(int protocolVersion, int messageTypes, int commandFlags,
+            int maxCommandRate, int features, int maxBatchCommands, int maxPayloadBytes) {
+        mProtocolVersion = protocolVersion;
+        mMessageTypes = messageTypes;
+        mCommandFlags = commandFlags;
+        mMaxCommandRate = maxCommandRate;
+        mFeatures = features;
+        mMaxBatchCommands = maxBatchCommands;
+        mMaxPayloadBytes = maxPayloadBytes;
+    }
+
+    /**
+     * Returns what this build supports, with the given command rate limit (0 for none) and
+     * telemetry support.
+     */
+    public static Capabilities createLocal(int maxCommandRate, boolean telemetry) {
+        return new Capabilities(PROTOCOL_VERSION, (1 << MessageType.COUNT) - 1,
+                Message.COMMAND_FLAG_TRACE_ID | Message.COMMAND_FLAG_EXECUTE_AT
+                        | Message.COMMAND_FLAG_SEQUENCE | Message.COMMAND_FLAG_MAC
+                        | Message.COMMAND_FLAG_HELD,
+                maxCommandRate,
+                telemetry ? FEATURE_TELEMETRY : 0, 1, MAX_PAYLOAD_BYTES);
+    }
+
+    public boolean supportsMessageType(@MessageType int type) {
+        return (mMessageTypes & (1 << type)) != 0;
+    }
+
+    public boolean supportsCommandFlags(int flags) {
+        return (mCommandFlags & flags) == flags;
+    }
+
+    public boolean supportsTelemetry() {
+        return (mFeatures & FEATURE_TELEMETRY) != 0;
+    }
+
+    /** Encodes these capabilities as a HELLO frame. */
+    public byte[] toFrame() {
+        return ByteBuffer.allocate(13)
+                .put(Message.toWireType(MessageType.HELLO))
+                .put((byte) mProtocolVersion)
+                .putInt(mMessageTypes)
+                .put((byte) mCommandFlags)
+                .putShort((short) mMaxCommandRate)
+                .put((byte) mFeatures)
+                .put((byte) mMaxBatchCommands)
+                .putShort((short) mMaxPayloadBytes)
+                .array();
+    }
+
+    /** Decodes a HELLO message, or returns null if it is malformed. */
+    public static Capabilities decode(Message message) {
+        if (message.mType != MessageType.HELLO) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.wrap(message.mData, message.mBodyOffset,
+                message.getBodyLength());
+        try {
+            int version = body.get() & 0xFF;
+            int types = body.getInt();
+            int flags = body.get() & 0xFF;
+            int rate = body.getShort() & 0xFFFF;
+            int features = body.get() & 0xFF;
+            int batch = body.get() & 0xFF;
+            int payload = body.getShort() & 0xFFFF;
+            return new Capabilities(version, types, flags, rate, features, batch, payload);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "v" + mProtocolVersion + " types=0x" + Integer.toHexString(mMessageTypes)
+                + " flags=0x" + Integer.toHexString(mCommandFlags)
+                + " rate=" + mMaxCommandRate + "/s telemetry=" + supportsTelemetry()
+                + " batch=" + mMaxBatchCommands + " payload=" + mMaxPayloadBytes;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.messaging;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+
+import java.io.PrintWriter;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Signs and checks the MAC on COMMAND frames (see {@link Message#COMMAND_FLAG_MAC}) and PROGRAM
+ * frames, so a Robocar only obeys the companion it paired with. The MAC is a {@link SipHash} of
+ * the frame up to the MAC field, keyed with a random key that is never advertised: the companion
+ * generates it the first time the user confirms pairing with a Robocar and hands it over in a
+ * PAIRING_KEY message on the (encrypted) connection, and both sides keep it in their
+ * PairingStore. A Robocar takes the first key it is handed for a companion and refuses any other
+ * until it is reset, so like pairing itself this trusts the first companion to connect. A MAC
+ * says nothing about freshness; receivers pair it with a sequence number to reject replays.
+ * <p>
+ * PAIRING_KEY body: the {@link #KEY_SIZE} byte key.
+ * <p>
+ * Immutable and thread safe.
+ */
+public final class CommandAuthenticator {
+
+    public static final int MAC_SIZE = 8;
+    public static final int KEY_SIZE = 16;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final long mKey0;
+    private final long mKey1;
+
+    public CommandAuthenticator(long key0, long key1) {
+        mKey0 = key0;
+        mKey1 = key1;
+    }
+
+    /** Returns an authenticator for a {@link #KEY_SIZE} byte key, read as SipHash reads keys. */
+    public static CommandAuthenticator fromKey(byte[] key) {
+        if (key == null || key.length != KEY_SIZE) {
+            throw new IllegalArgumentException("Key must be " + KEY_SIZE + " bytes");
+        }
+        return new CommandAuthenticator(readLittleEndian(key, 0), readLittleEndian(key, 8));
+    }
+
+    /** Generates a new random key, for the companion to hand a Robocar it pairs with. */
+    public static byte[] generateKey() {
+        byte[] key = new byte[KEY_SIZE];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    /** Encodes a PAIRING_KEY frame handing the other side a key. */
+    public static byte[] encodeKey(byte[] key) {
+        if (key == null || key.length != KEY_SIZE) {
+            throw new IllegalArgumentException("Key must be " + KEY_SIZE + " bytes");
+        }
+        byte[] frame = new byte[1 + KEY_SIZE];
+        frame[0] = Message.toWireType(MessageType.PAIRING_KEY);
+        System.arraycopy(key, 0, frame, 1, KEY_SIZE);
+        return frame;
+    }
+
+    /** Decodes a PAIRING_KEY message, or returns null if it is malformed. */
+    public static byte[] decodeKey(Message message) {
+        if (message.mType != MessageType.PAIRING_KEY || message.getBodyLength() != KEY_SIZE) {
+            return null;
+        }
+        return Arrays.copyOfRange(message.mData, message.mBodyOffset, message.mData.length);
+    }
+
+    /**
+     * Fills in the MAC of a frame encoded with room for one, i.e. whose last {@link #MAC_SIZE}
+     * bytes are the MAC field.
+     */
+    public void sign(byte[] frame) {
+        int offset = frame.length - MAC_SIZE;
+        long mac = SipHash.hash(mKey0, mKey1, frame, 0, offset);
+        for (int i = MAC_SIZE - 1; i >= 0; i--) {
+            frame[offset + i] = (byte) mac;
+            mac >>>= 8;
+        }
+    }
+
+    /**
+     * Returns true if the message is a COMMAND or PROGRAM whose MAC is present, last and correct.
+     */
+    public boolean verify(Message message) {
+        int offset = message.getMacOffset();
+        if (offset < 0 || offset + MAC_SIZE != message.mData.length) {
+            return false;
+        }
+        long mac = SipHash.hash(mKey0, mKey1, message.mData, 0, offset);
+        // Compare every byte, so how long this takes doesn't say how much of a forgery was right.
+        int difference = 0;
+        for (int i = MAC_SIZE - 1; i >= 0; i--) {
+            difference |= (message.mData[offset + i] ^ (byte) mac) & 0xFF;
+            mac >>>= 8;
+        }
+        return difference == 0;
+    }
+
+    /**
+     * Times signing and checking a typical numbered, traced command, e.g. to see what
+     * authentication costs on the device at hand.
+     */
+    public static void benchmark(PrintWriter writer, String prefix, int iterations) {
+        CommandAuthenticator authenticator = fromKey(generateKey());
+        byte[] frame = Message.encodeCommand(CarCommands.GO_FORWARD, 0x0123456789abcdefL,
+                Message.EXECUTE_NOW, 1, true);
+        Message message = Message.decode(null, frame, 0L);
+        // The first round is to let the runtime compile the code being measured.
+        for (int round = 0; round < 2; round++) {
+            int valid = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                frame[frame.length - MAC_SIZE - 1] = (byte) i;
+                authenticator.sign(frame);
+            }
+            long signed = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (authenticator.verify(Message.decode(null, frame, 0L))) {
+                    valid++;
+                }
+            }
+            long verified = System.nanoTime();
+            if (round == 1) {
+                writer.println(prefix + "Command MAC over " + message.getMacOffset()
+                        + " bytes: sign " + (signed - start) / iterations
+                        + " ns, decode and verify " + (verified - signed) / iterations
+                        + " ns (" + iterations
+                        + " iterations, " + valid + " valid)");
+            }
+        }
+    }
+
+    private static long readLittleEndian(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
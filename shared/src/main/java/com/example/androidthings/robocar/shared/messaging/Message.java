@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.messaging;
+
+import android.os.SystemClock;
+
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+import com.google.android.gms.nearby.connection.Payload;
+
+import java.util.Arrays;
+
+/**
+ * A decoded payload.
+ * <p>
+ * Frame format: a single byte is a bare command, as sent by the original protocol. Longer frames
+ * start with a header byte of {@link #WIRE_TYPE_BASE} + {@link MessageType}, followed by the
+ * body. Header values are chosen so they never collide with a command byte; an older Robocar
+ * treats them as an unknown command and answers with an error.
+ * <p>
+ * A COMMAND body is the command byte, optionally followed by a flags byte and then, in flag bit
+ * order, the field each set flag announces, big endian: {@link #COMMAND_FLAG_TRACE_ID} announces
+ * an 8 byte trace ID, {@link #COMMAND_FLAG_EXECUTE_AT} the 8 byte time at which to execute the
+ * command, in the sender's {@link SystemClock#elapsedRealtimeNanos()}, and
+ * {@link #COMMAND_FLAG_SEQUENCE} a 4 byte sequence number that the receiver acknowledges with an
+ * {@link Ack}, and {@link #COMMAND_FLAG_MAC} an 8 byte {@link CommandAuthenticator MAC} of
+ * everything before it. {@link #COMMAND_FLAG_HELD} announces no field, so the MAC is always last.
+ * <p>
+ * A held command is one the sender repeats at least every {@link #HELD_RENEWAL_INTERVAL_MS} for
+ * as long as a control is held down. The receiver stops when the renewals stop.
+ * <p>
+ * A PROGRAM body is a version byte, a 4 byte sequence number from the same series as commands',
+ * the program (see {@link com.example.androidthings.robocar.shared.program.MotionProgram}) and a
+ * MAC of everything before it, so a program is checked just like a signed command.
+ */
+public final class Message {
+
+    public static final int WIRE_TYPE_BASE = 0x20;
+
+    public static final int COMMAND_FLAG_TRACE_ID = 0x01;
+    public static final int COMMAND_FLAG_EXECUTE_AT = 0x02;
+    public static final int COMMAND_FLAG_SEQUENCE = 0x04;
+    public static final int COMMAND_FLAG_MAC = 0x08;
+    public static final int COMMAND_FLAG_HELD = 0x10;
+
+    /** Longest a sender waits between renewals of a held command. */
+    public static final long HELD_RENEWAL_INTERVAL_MS = 200L;
+
+    /** Execute-at time meaning the command runs as soon as it arrives. */
+    public static final long EXECUTE_NOW = 0L;
+
+    /** Sequence number of a command that isn't acknowledged. Real ones skip it when they wrap. */
+    public static final int NO_SEQUENCE = 0;
+
+    // Where the code starts in a PROGRAM body, after the version and sequence number.
+    private static final int PROGRAM_CODE_OFFSET = 5;
+
+    public final String mEndpointId;
+    @MessageType
+    public final int mType;
+    /** The whole frame, including the header byte if there is one. */
+    public final byte[] mData;
+    public final int mBodyOffset;
+    /** {@link SystemClock#elapsedRealtimeNanos()} when the payload was received. */
+    public final long mReceivedNanos;
+
+    private Message(String endpointId, @MessageType int type, byte[] data, int bodyOffset,
+            long receivedNanos) {
+        mEndpointId = endpointId;
+        mType = type;
+        mData = data;
+        mBodyOffset = bodyOffset;
+        mReceivedNanos = receivedNanos;
+    }
+
+    /**
+     * Decodes a payload, or returns null if it isn't a well-formed frame.
+     */
+    public static Message decode(String endpointId, Payload payload) {
+        if (payload.getType() != Payload.Type.BYTES) {
+            return null;
+        }
+        return decode(endpointId, payload.asBytes(), SystemClock.elapsedRealtimeNanos());
+    }
+
+    public static Message decode(String endpointId, byte[] data, long receivedNanos) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        if (data.length == 1) {
+            return new Message(endpointId, MessageType.COMMAND, data, 0, receivedNanos);
+        }
+        int type = (data[0] & 0xFF) - WIRE_TYPE_BASE;
+        if (type < 0 || type >= MessageType.COUNT) {
+            return null;
+        }
+        return new Message(endpointId, type, data, 1, receivedNanos);
+    }
+
+    public static byte toWireType(@MessageType int type) {
+        return (byte) (WIRE_TYPE_BASE + type);
+    }
+
+    /**
+     * Encodes a COMMAND frame. Without a trace ID, execute-at time or sequence number this is the
+     * single byte frame that every Robocar understands.
+     */
+    public static byte[] encodeCommand(byte command, long traceId, long executeAtNanos,
+            int sequence) {
+        return encodeCommand(command, traceId, executeAtNanos, sequence, false);
+    }
+
+    /**
+     * Encodes a COMMAND frame, optionally leaving room at the end for a MAC, to be filled in with
+     * {@link CommandAuthenticator#sign(byte[])}.
+     */
+    public static byte[] encodeCommand(byte command, long traceId, long executeAtNanos,
+            int sequence, boolean mac) {
+        return encodeCommand(command, traceId, executeAtNanos, sequence, false, mac);
+    }
+
+    /**
+     * Encodes a COMMAND frame, optionally marked as held (see {@link #COMMAND_FLAG_HELD}) and with
+     * room for a MAC.
+     */
+    public static byte[] encodeCommand(byte command, long traceId, long executeAtNanos,
+            int sequence, boolean held, boolean mac) {
+        int flags = mac ? COMMAND_FLAG_MAC : 0;
+        if (held) {
+            flags |= COMMAND_FLAG_HELD;
+        }
+        if (traceId != Tracer.NO_TRACE_ID) {
+            flags |= COMMAND_FLAG_TRACE_ID;
+        }
+        if (executeAtNanos != EXECUTE_NOW) {
+            flags |= COMMAND_FLAG_EXECUTE_AT;
+        }
+        if (sequence != NO_SEQUENCE) {
+            flags |= COMMAND_FLAG_SEQUENCE;
+        }
+        if (flags == 0) {
+            return new byte[]{command};
+        }
+        int length = 3;
+        for (int bit = 1; bit <= flags; bit <<= 1) {
+            if ((flags & bit) != 0) {
+                length += getCommandFieldSize(bit);
+            }
+        }
+        byte[] frame = new byte[length];
+        frame[0] = toWireType(MessageType.COMMAND);
+        frame[1] = command;
+        frame[2] = (byte) flags;
+        int offset = 3;
+        if (traceId != Tracer.NO_TRACE_ID) {
+            putLong(frame, offset, traceId);
+            offset += getCommandFieldSize(COMMAND_FLAG_TRACE_ID);
+        }
+        if (executeAtNanos != EXECUTE_NOW) {
+            putLong(frame, offset, executeAtNanos);
+            offset += getCommandFieldSize(COMMAND_FLAG_EXECUTE_AT);
+        }
+        if (sequence != NO_SEQUENCE) {
+            putInt(frame, offset, sequence);
+        }
+        return frame;
+    }
+
+    /**
+     * Replaces the sequence number of an encoded COMMAND frame that has one, e.g. to send the
+     * same command again without encoding a new frame. A MAC has to be signed again afterwards.
+     */
+    public static void setSequence(byte[] frame, int sequence) {
+        int offset = getCommandFieldOffset(frame, 1, COMMAND_FLAG_SEQUENCE);
+        if (frame[0] != toWireType(MessageType.COMMAND) || offset < 0) {
+            throw new IllegalArgumentException("Not a numbered command frame");
+        }
+        putInt(frame, offset, sequence);
+    }
+
+    /**
+     * Encodes a PROGRAM frame, leaving room at the end for a MAC, to be filled in with
+     * {@link CommandAuthenticator#sign(byte[])}.
+     */
+    public static byte[] encodeProgram(int version, byte[] code, int sequence) {
+        byte[] frame = new byte[1 + PROGRAM_CODE_OFFSET + code.length
+                + CommandAuthenticator.MAC_SIZE];
+        frame[0] = toWireType(MessageType.PROGRAM);
+        frame[1] = (byte) version;
+        putInt(frame, 2, sequence);
+        System.arraycopy(code, 0, frame, 1 + PROGRAM_CODE_OFFSET, code.length);
+        return frame;
+    }
+
+    public int getBodyLength() {
+        return mData.length - mBodyOffset;
+    }
+
+    /** Returns the first byte of the body, which for COMMAND messages is the command. */
+    public byte getCommand() {
+        return mData[mBodyOffset];
+    }
+
+    /**
+     * Returns the trace ID carried by a COMMAND message, or {@link Tracer#NO_TRACE_ID}.
+     */
+    public long getTraceId() {
+        int offset = getCommandFieldOffset(COMMAND_FLAG_TRACE_ID);
+        return offset < 0 ? Tracer.NO_TRACE_ID : getLong(mData, offset);
+    }
+
+    /**
+     * Returns when a COMMAND message should be executed, in the sender's
+     * {@link SystemClock#elapsedRealtimeNanos()}, or {@link #EXECUTE_NOW}.
+     */
+    public long getExecuteAtNanos() {
+        int offset = getCommandFieldOffset(COMMAND_FLAG_EXECUTE_AT);
+        return offset < 0 ? EXECUTE_NOW : getLong(mData, offset);
+    }
+
+    /**
+     * Returns the sequence number of a COMMAND or PROGRAM message, or {@link #NO_SEQUENCE} if the
+     * sender doesn't want it acknowledged.
+     */
+    public int getSequence() {
+        if (mType == MessageType.PROGRAM) {
+            return isWholeProgram() ? getInt(mData, mBodyOffset + 1) : NO_SEQUENCE;
+        }
+        int offset = getCommandFieldOffset(COMMAND_FLAG_SEQUENCE);
+        return offset < 0 ? NO_SEQUENCE : getInt(mData, offset);
+    }
+
+    /** Returns true if this is a held COMMAND; see {@link #COMMAND_FLAG_HELD}. */
+    public boolean isHeld() {
+        return mType == MessageType.COMMAND && getBodyLength() >= 2
+                && (mData[mBodyOffset + 1] & COMMAND_FLAG_HELD) != 0;
+    }
+
+    /** Returns the code carried by a PROGRAM message, or null if it is too short to carry any. */
+    public byte[] getProgramCode() {
+        if (mType != MessageType.PROGRAM || !isWholeProgram()) {
+            return null;
+        }
+        return Arrays.copyOfRange(mData, mBodyOffset + PROGRAM_CODE_OFFSET,
+                mData.length - CommandAuthenticator.MAC_SIZE);
+    }
+
+    /**
+     * Returns where the MAC of a COMMAND or PROGRAM message starts, or -1 if it has none.
+     * Everything before it is covered.
+     */
+    public int getMacOffset() {
+        if (mType == MessageType.PROGRAM) {
+            return isWholeProgram() ? mData.length - CommandAuthenticator.MAC_SIZE : -1;
+        }
+        return getCommandFieldOffset(COMMAND_FLAG_MAC);
+    }
+
+    private boolean isWholeProgram() {
+        return getBodyLength() >= PROGRAM_CODE_OFFSET + CommandAuthenticator.MAC_SIZE;
+    }
+
+    private static int getCommandFieldSize(int flag) {
+        switch (flag) {
+            case COMMAND_FLAG_SEQUENCE:
+                return 4;
+            case COMMAND_FLAG_HELD:
+                return 0;
+            default:
+                return 8;
+        }
+    }
+
+    /** Returns where the field announced by a command flag starts, or -1 if it isn't there. */
+    private int getCommandFieldOffset(int flag) {
+        if (mType != MessageType.COMMAND) {
+            return -1;
+        }
+        return getCommandFieldOffset(mData, mBodyOffset, flag);
+    }
+
+    private static int getCommandFieldOffset(byte[] data, int bodyOffset, int flag) {
+        if (data.length - bodyOffset < 2) {
+            return -1;
+        }
+        int flags = data[bodyOffset + 1];
+        if ((flags & flag) == 0) {
+            return -1;
+        }
+        int offset = bodyOffset + 2;
+        for (int bit = 1; bit < flag; bit <<= 1) {
+            if ((flags & bit) != 0) {
+                offset += getCommandFieldSize(bit);
+            }
+        }
+        return offset + getCommandFieldSize(flag) <= data.length ? offset : -1;
+    }
+
+    private static void putLong(byte[] data, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void putInt(byte[] data, int offset, int value) {
+        for (int i = 3; i >= 0; i--) {
+            data[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static int getInt(byte[] data, int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.messaging;
+
+import android.arch.lifecycle.Lifecycle.Event;
+import android.arch.lifecycle.LifecycleObserver;
+import android.arch.lifecycle.LifecycleOwner;
+import android.arch.lifecycle.OnLifecycleEvent;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.androidthings.robocar.shared.metrics.Histogram;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers decoded messages to any number of subscribers per {@link MessageType}. Each type is a
+ * separate stage, looked up by index, with its own subscribers and its own executor, e.g. motor
+ * commands on a high priority thread, UI updates on the main looper and telemetry on a background
+ * pool, so that slow work for one type of message can't delay another. Stages track their queue
+ * depth and how long messages wait before being handled.
+ * <p>
+ * A stage can optionally keep its most recent messages and replay them to new subscribers, so a
+ * screen that starts after a message arrived still sees the latest state.
+ */
+public class MessageBus {
+
+    private static final String TAG = "MessageBus";
+
+    /** Runs tasks on the thread that dispatched them. */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final String[] TYPE_NAMES = {"command", "telemetry", "log", "time_sync",
+            "program", "hello", "ack", "pairing_key"};
+
+    private static final MessageListener[] NO_SUBSCRIBERS = new MessageListener[0];
+
+    public interface MessageListener {
+        void onMessageReceived(Message message);
+    }
+
+    public interface Subscription {
+        void unsubscribe();
+    }
+
+    private final Stage[] mStages = new Stage[MessageType.COUNT];
+
+    public MessageBus() {
+        for (int i = 0; i < mStages.length; i++) {
+            mStages[i] = new Stage();
+        }
+    }
+
+    public void setExecutor(@MessageType int type, Executor executor) {
+        mStages[type].mExecutor = executor == null ? DIRECT_EXECUTOR : executor;
+    }
+
+    /**
+     * Keeps up to {@code count} of the most recent messages of the given type and replays them to
+     * every new subscriber. Pass 0 (the default) to disable replay.
+     */
+    public void setReplayCount(@MessageType int type, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Replay count cannot be negative");
+        }
+        Stage stage = mStages[type];
+        synchronized (stage) {
+            stage.mReplay = count == 0 ? null : new Message[count];
+            stage.mReplayNext = 0;
+            stage.mReplaySize = 0;
+        }
+    }
+
+    /**
+     * Subscribes to messages of the given type until {@link Subscription#unsubscribe()} is
+     * called. Retained messages, if any, are replayed first.
+     */
+    public Subscription subscribe(@MessageType final int type, final MessageListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener cannot be null");
+        }
+        add(type, listener);
+        return new Subscription() {
+            @Override
+            public void unsubscribe() {
+                remove(type, listener);
+            }
+        };
+    }
+
+    /**
+     * Subscribes to messages of the given type while the owner is started. The subscription is
+     * removed for good when the owner is destroyed. Retained messages, if any, are replayed every
+     * time the owner starts.
+     */
+    public Subscription subscribe(LifecycleOwner owner, @MessageType int type,
+            MessageListener listener) {
+        if (owner == null || listener == null) {
+            throw new IllegalArgumentException("Owner and listener cannot be null");
+        }
+        LifecycleSubscription subscription = new LifecycleSubscription(owner, type, listener);
+        owner.getLifecycle().addObserver(subscription);
+        return subscription;
+    }
+
+    private void add(@MessageType int type, MessageListener listener) {
+        Stage stage = mStages[type];
+        Message[] retained;
+        synchronized (stage) {
+            MessageListener[] subscribers = stage.mSubscribers;
+            for (MessageListener subscriber : subscribers) {
+                if (subscriber == listener) {
+                    return;
+                }
+            }
+            MessageListener[] updated = Arrays.copyOf(subscribers, subscribers.length + 1);
+            updated[subscribers.length] = listener;
+            stage.mSubscribers = updated;
+            retained = stage.getRetained();
+        }
+        // Outside the lock, since a direct executor runs the listener right here. Messages are
+        // normally dispatched and subscribed to on the same thread, so nothing newer can get
+        // ahead of the replayed ones.
+        MessageListener[] single = {listener};
+        for (Message message : retained) {
+            deliver(stage, single, message);
+        }
+    }
+
+    /**
+     * Discards retained messages from the given endpoint so they aren't replayed anymore.
+     */
+    public void clearRetained(String endpointId) {
+        for (Stage stage : mStages) {
+            synchronized (stage) {
+                Message[] replay = stage.mReplay;
+                if (replay == null) {
+                    continue;
+                }
+                // Compact the survivors, oldest first, into a fresh ring.
+                Message[] kept = new Message[replay.length];
+                int size = 0;
+                for (int i = stage.mReplaySize; i > 0; i--) {
+                    Message message = replay[(stage.mReplayNext - i + replay.length)
+                            % replay.length];
+                    if (!message.mEndpointId.equals(endpointId)) {
+                        kept[size++] = message;
+                    }
+                }
+                stage.mReplay = kept;
+                stage.mReplaySize = size;
+                stage.mReplayNext = size % kept.length;
+            }
+        }
+    }
+
+    private void remove(@MessageType int type, MessageListener listener) {
+        Stage stage = mStages[type];
+        synchronized (stage) {
+            MessageListener[] subscribers = stage.mSubscribers;
+            for (int i = 0; i < subscribers.length; i++) {
+                if (subscribers[i] == listener) {
+                    MessageListener[] updated = new MessageListener[subscribers.length - 1];
+                    System.arraycopy(subscribers, 0, updated, 0, i);
+                    System.arraycopy(subscribers, i + 1, updated, i, updated.length - i);
+                    stage.mSubscribers = updated.length == 0 ? NO_SUBSCRIBERS : updated;
+                    return;
+                }
+            }
+        }
+    }
+
+    public void dispatch(Message message) {
+        Stage stage = mStages[message.mType];
+        MessageListener[] subscribers;
+        synchronized (stage) {
+            Message[] replay = stage.mReplay;
+            if (replay != null) {
+                replay[stage.mReplayNext] = message;
+                stage.mReplayNext = (stage.mReplayNext + 1) % replay.length;
+                stage.mReplaySize = Math.min(stage.mReplaySize + 1, replay.length);
+            }
+            subscribers = stage.mSubscribers;
+        }
+        if (subscribers.length == 0) {
+            stage.mDropped.incrementAndGet();
+            return;
+        }
+        // Outside the lock, so listeners run by a direct executor can't hold up other threads or
+        // deadlock by calling back into the bus.
+        deliver(stage, subscribers, message);
+    }
+
+    private void deliver(final Stage stage, final MessageListener[] subscribers,
+            final Message message) {
+        final long enqueuedNanos = SystemClock.elapsedRealtimeNanos();
+        int depth = stage.mQueueDepth.incrementAndGet();
+        int maxDepth = stage.mMaxQueueDepth.get();
+        while (depth > maxDepth && !stage.mMaxQueueDepth.compareAndSet(maxDepth, depth)) {
+            maxDepth = stage.mMaxQueueDepth.get();
+        }
+        try {
+            stage.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    stage.mQueueDepth.decrementAndGet();
+                    stage.mDwellMicros.record(
+                            (SystemClock.elapsedRealtimeNanos() - enqueuedNanos) / 1000L);
+                    for (MessageListener listener : subscribers) {
+                        // Skip anyone who unsubscribed while we were queued.
+                        if (stage.isSubscribed(listener)) {
+                            listener.onMessageReceived(message);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Executor rejected " + TYPE_NAMES[message.mType] + " message", e);
+            stage.mQueueDepth.decrementAndGet();
+            stage.mDropped.incrementAndGet();
+        }
+    }
+
+    public int getSubscriberCount(@MessageType int type) {
+        return mStages[type].mSubscribers.length;
+    }
+
+    public int getQueueDepth(@MessageType int type) {
+        return mStages[type].mQueueDepth.get();
+    }
+
+    public Histogram getDwellHistogram(@MessageType int type) {
+        return mStages[type].mDwellMicros;
+    }
+
+    public void dump(PrintWriter writer, String prefix) {
+        writer.println(prefix + "Message bus (dwell in us):");
+        String innerPrefix = prefix + "  ";
+        for (int i = 0; i < mStages.length; i++) {
+            Stage stage = mStages[i];
+            stage.mDwellMicros.dump(writer, innerPrefix, TYPE_NAMES[i]);
+            writer.println(innerPrefix + "  subscribers=" + stage.mSubscribers.length
+                    + " depth=" + stage.mQueueDepth.get()
+                    + " maxDepth=" + stage.mMaxQueueDepth.get()
+                    + " dropped=" + stage.mDropped.get());
+        }
+    }
+
+    private static class Stage {
+        volatile Executor mExecutor = DIRECT_EXECUTOR;
+        // Copy-on-write; replaced while holding the stage lock, read freely.
+        volatile MessageListener[] mSubscribers = NO_SUBSCRIBERS;
+        // Guarded by the stage lock.
+        Message[] mReplay;
+        int mReplayNext;
+        int mReplaySize;
+        final AtomicInteger mQueueDepth = new AtomicInteger();
+        final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+        final AtomicLong mDropped = new AtomicLong();
+        final Histogram mDwellMicros = new Histogram("us", Histogram.LATENCY_MICROS_BOUNDS);
+
+        /** Returns the retained messages, oldest first. Must hold the stage lock. */
+        Message[] getRetained() {
+            Message[] retained = new Message[mReplaySize];
+            for (int i = 0; i < retained.length; i++) {
+                retained[i] = mReplay[(mReplayNext - mReplaySize + i + mReplay.length)
+                        % mReplay.length];
+            }
+            return retained;
+        }
+
+        boolean isSubscribed(MessageListener listener) {
+            for (MessageListener subscriber : mSubscribers) {
+                if (subscriber == listener) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private class LifecycleSubscription implements LifecycleObserver, Subscription {
+
+        private final LifecycleOwner mOwner;
+        @MessageType
+        private final int mType;
+        private final MessageListener mListener;
+
+        LifecycleSubscription(LifecycleOwner owner, @MessageType int type,
+                MessageListener listener) {
+            mOwner = owner;
+            mType = type;
+            mListener = listener;
+        }
+
+        @OnLifecycleEvent(Event.ON_START)
+        public void onStart() {
+            add(mType, mListener);
+        }
+
+        @OnLifecycleEvent(Event.ON_STOP)
+        public void onStop() {
+            remove(mType, mListener);
+        }
+
+        @OnLifecycleEvent(Event.ON_DESTROY)
+        public void onDestroy() {
+            mOwner.getLifecycle().removeObserver(this);
+        }
+
+        @Override
+        public void unsubscribe() {
+            remove(mType, mListener);
+            mOwner.getLifecycle().removeObserver(this);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.messaging;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Types of messages exchanged between a Robocar and its companion. Values are dense so they can
+ * index arrays directly; {@link #COUNT} is the number of types.
+ */
+@IntDef({MessageType.COMMAND, MessageType.TELEMETRY, MessageType.LOG, MessageType.TIME_SYNC,
+        MessageType.PROGRAM, MessageType.HELLO, MessageType.ACK, MessageType.PAIRING_KEY})
+@Retention(RetentionPolicy.SOURCE)
+public @interface MessageType {
+    /** A car command (see CarCommands), or the Robocar's response to one. */
+    int COMMAND = 0;
+    int TELEMETRY = 1;
+    int LOG = 2;
+    /** Clock synchronization ping or pong, handled by the connection manager itself. */
+    int TIME_SYNC = 3;
+    /** A motion program for the Robocar to run on its own; see MotionProgram. */
+    int PROGRAM = 4;
+    /** Capabilities, sent by both sides right after connecting; see Capabilities. */
+    int HELLO = 5;
+    /** The Robocar acknowledging numbered commands; see Ack. */
+    int ACK = 6;
+    /**
+     * The companion handing a Robocar the key for signing commands, handled by the connection
+     * manager itself; see CommandAuthenticator.
+     */
+    int PAIRING_KEY = 7;
+
+    int COUNT = 8;
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Monotonic counter. Increments are striped across cells, so hot counters shared by several
+ * threads don't contend on a single cache line.
+ */
+public class Counter {
+
+    private final LongAdder mValue = new LongAdder();
+
+    public void increment() {
+        mValue.increment();
+    }
+
+    public void add(long delta) {
+        mValue.add(delta);
+    }
+
+    public long get() {
+        return mValue.sum();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.metrics;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket histogram. Recording is lock-free and allocation-free, so it can be used from any
+ * thread, including hot paths.
+ */
+public class Histogram {
+
+    /** Bucket bounds suited to latencies measured in milliseconds. */
+    public static final long[] LATENCY_MILLIS_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000
+    };
+
+    /** Bucket bounds suited to latencies measured in microseconds. */
+    public static final long[] LATENCY_MICROS_BOUNDS = {
+            10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000,
+            500000, 1000000
+    };
+
+    private final String mUnit;
+    private final long[] mBounds;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * @param unit suffix used when printing values, e.g. "ms"
+     * @param bounds inclusive upper bounds of each bucket, in ascending order. Values above the
+     *               last bound are counted in an overflow bucket.
+     */
+    public Histogram(String unit, long... bounds) {
+        if (bounds == null || bounds.length == 0) {
+            throw new IllegalArgumentException("Histogram needs at least one bucket bound");
+        }
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Bucket bounds must be ascending");
+            }
+        }
+        mUnit = unit == null ? "" : unit;
+        mBounds = bounds.clone();
+        mCounts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        mCounts.incrementAndGet(bucketFor(value));
+        mSum.addAndGet(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    private int bucketFor(long value) {
+        int i = Arrays.binarySearch(mBounds, value);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    public String getUnit() {
+        return mUnit;
+    }
+
+    public int getBucketCount() {
+        return mCounts.length();
+    }
+
+    /**
+     * Returns the inclusive upper bound of the given bucket, or {@link Long#MAX_VALUE} for the
+     * overflow bucket.
+     */
+    public long getBucketBound(int bucket) {
+        return bucket < mBounds.length ? mBounds[bucket] : Long.MAX_VALUE;
+    }
+
+    public long getBucketValue(int bucket) {
+        return mCounts.get(bucket);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            count += mCounts.get(i);
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        long max = mMax.get();
+        return max == Long.MIN_VALUE ? 0 : max;
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the given percentile (0-100), or the max
+     * recorded value if that falls in the overflow bucket.
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100d);
+        long seen = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return i < mBounds.length ? Math.min(mBounds[i], getMax()) : getMax();
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) {
+            mCounts.set(i, 0);
+        }
+        mSum.set(0);
+        mMax.set(Long.MIN_VALUE);
+    }
+
+    public void dump(PrintWriter writer, String prefix, String name) {
+        long count = getCount();
+        writer.print(prefix);
+        writer.print(name);
+        writer.print(": count=");
+        writer.print(count);
+        if (count > 0) {
+            writer.print(" mean=" + (getSum() / count) + mUnit);
+            writer.print(" p50<=" + getPercentile(50) + mUnit);
+            writer.print(" p90<=" + getPercentile(90) + mUnit);
+            writer.print(" p99<=" + getPercentile(99) + mUnit);
+            writer.print(" max=" + getMax() + mUnit);
+        }
+        writer.println();
+    }
+}
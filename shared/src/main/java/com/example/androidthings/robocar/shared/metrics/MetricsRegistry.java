@@ -0,0 +1,148 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.metrics;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Named counters, histograms and gauges for the whole process. Metrics are usually created once
+ * and kept in a static field; asking for a name that already exists returns the same metric.
+ * Snapshots are written in the Prometheus text exposition format.
+ */
+public final class MetricsRegistry {
+
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    private static final int TYPE_HISTOGRAM = 2;
+    private static final String[] TYPE_NAMES = {"counter", "gauge", "histogram"};
+
+    private static final MetricsRegistry sDefault = new MetricsRegistry();
+
+    // Sorted so exports are stable. Guarded by this.
+    private final Map<String, Entry> mEntries = new TreeMap<>();
+
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    public synchronized Counter counter(String name, String help) {
+        Entry entry = get(name, TYPE_COUNTER);
+        if (entry == null) {
+            entry = put(name, help, TYPE_COUNTER, new Counter());
+        }
+        return (Counter) entry.mMetric;
+    }
+
+    /**
+     * @param name should end with the unit, e.g. {@code _ms}
+     */
+    public synchronized Histogram histogram(String name, String help, String unit,
+            long... bounds) {
+        Entry entry = get(name, TYPE_HISTOGRAM);
+        if (entry == null) {
+            entry = put(name, help, TYPE_HISTOGRAM, new Histogram(unit, bounds));
+        }
+        return (Histogram) entry.mMetric;
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge already registered under the same name. Remove it
+     * with {@link #remove(String)} if it references something with a shorter lifetime.
+     */
+    public synchronized void gauge(String name, String help, Gauge gauge) {
+        if (gauge == null) {
+            throw new IllegalArgumentException("Gauge cannot be null");
+        }
+        get(name, TYPE_GAUGE);
+        put(name, help, TYPE_GAUGE, gauge);
+    }
+
+    public synchronized void remove(String name) {
+        mEntries.remove(name);
+    }
+
+    private Entry get(String name, int type) {
+        Entry entry = mEntries.get(name);
+        if (entry != null && entry.mType != type) {
+            throw new IllegalArgumentException(name + " is already registered as a "
+                    + TYPE_NAMES[entry.mType]);
+        }
+        return entry;
+    }
+
+    private Entry put(String name, String help, int type, Object metric) {
+        Entry entry = new Entry(name, help, type, metric);
+        mEntries.put(name, entry);
+        return entry;
+    }
+
+    /**
+     * Writes a snapshot of every metric in the text exposition format.
+     */
+    public void writeTo(PrintWriter writer) {
+        List<Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(mEntries.values());
+        }
+        // Sample outside the lock; gauges may do real work.
+        for (Entry entry : entries) {
+            writer.print("# HELP " + entry.mName + " " + entry.mHelp + "\n");
+            writer.print("# TYPE " + entry.mName + " " + TYPE_NAMES[entry.mType] + "\n");
+            switch (entry.mType) {
+                case TYPE_COUNTER:
+                    writer.print(entry.mName + " " + ((Counter) entry.mMetric).get() + "\n");
+                    break;
+                case TYPE_GAUGE:
+                    writer.print(entry.mName + " " + ((Gauge) entry.mMetric).sample() + "\n");
+                    break;
+                case TYPE_HISTOGRAM:
+                    writeHistogram(writer, entry.mName, (Histogram) entry.mMetric);
+                    break;
+            }
+        }
+        writer.flush();
+    }
+
+    private static void writeHistogram(PrintWriter writer, String name, Histogram histogram) {
+        long cumulative = 0;
+        int buckets = histogram.getBucketCount();
+        for (int i = 0; i < buckets; i++) {
+            cumulative += histogram.getBucketValue(i);
+            String bound = i < buckets - 1 ? Long.toString(histogram.getBucketBound(i)) : "+Inf";
+            writer.print(name + "_bucket{le=\"" + bound + "\"} " + cumulative + "\n");
+        }
+        writer.print(name + "_sum " + histogram.getSum() + "\n");
+        writer.print(name + "_count " + cumulative + "\n");
+    }
+
+    private static class Entry {
+        final String mName;
+        final String mHelp;
+        final int mType;
+        final Object mMetric;
+
+        Entry(String name, String help, int type, Object metric) {
+            mName = name;
+            mHelp = help;
+            mType = type;
+            mMetric = metric;
+        }
+    }
+}
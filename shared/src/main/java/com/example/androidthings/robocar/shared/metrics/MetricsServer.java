@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.metrics;
+
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Serves {@link MetricsRegistry} snapshots on a local (abstract namespace) socket. Every
+ * connection gets one snapshot with a minimal HTTP header, so bench rigs can scrape it with
+ * anything from {@code nc} to Prometheus:
+ * <pre>
+ * adb forward tcp:9100 localabstract:robocar-metrics
+ * curl http://localhost:9100/
+ * </pre>
+ */
+public class MetricsServer {
+
+    private static final String TAG = "MetricsServer";
+
+    private final MetricsRegistry mRegistry;
+    private final String mSocketName;
+
+    private LocalServerSocket mServerSocket;
+    private Thread mThread;
+    private volatile boolean mStopped;
+
+    public MetricsServer(MetricsRegistry registry, String socketName) {
+        mRegistry = registry;
+        mSocketName = socketName;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        try {
+            mServerSocket = new LocalServerSocket(mSocketName);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open metrics socket " + mSocketName, e);
+            return;
+        }
+        mStopped = false;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "MetricsServer");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mStopped = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing metrics socket", e);
+        }
+        // Closing doesn't always unblock accept() on Android; connecting does.
+        LocalSocket wakeUp = new LocalSocket();
+        try {
+            wakeUp.connect(new LocalSocketAddress(mSocketName));
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                wakeUp.close();
+            } catch (IOException ignored) {
+            }
+        }
+        mThread = null;
+        mServerSocket = null;
+    }
+
+    private void serve() {
+        LocalServerSocket serverSocket = mServerSocket;
+        while (!mStopped) {
+            LocalSocket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!mStopped) {
+                    Log.e(TAG, "Error accepting metrics connection", e);
+                }
+                return;
+            }
+            try {
+                if (!mStopped) {
+                    PrintWriter writer = new PrintWriter(
+                            new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                    writer.print("HTTP/1.0 200 OK\r\n"
+                            + "Content-Type: text/plain; version=0.0.4\r\n\r\n");
+                    mRegistry.writeTo(writer);
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Error writing metrics", e);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.program;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+import com.example.androidthings.robocar.shared.messaging.Message;
+import com.example.androidthings.robocar.shared.messaging.MessageType;
+
+import java.util.Arrays;
+
+/**
+ * A motion program: bytecode the companion compiles with {@link Builder} and uploads in a single
+ * signed PROGRAM message (see {@link Message}), for the Robocar to run on its own with precise
+ * timing.
+ * <p>
+ * Each instruction is an opcode byte followed by its operands:
+ * <ul>
+ *     <li>{@link #OP_STOP}: release the motors.</li>
+ *     <li>{@link #OP_DRIVE} command: drive, where command is GO_FORWARD or GO_BACK.</li>
+ *     <li>{@link #OP_TURN} command: turn, where command is TURN_LEFT or TURN_RIGHT.</li>
+ *     <li>{@link #OP_WAIT} ms: keep doing what the motors are doing; 16 bit big endian.</li>
+ *     <li>{@link #OP_LED} color: set the LED, with red, green and blue in bits 0, 1 and 2.</li>
+ *     <li>{@link #OP_LOOP} count: repeat up to the matching {@link #OP_END_LOOP} count times,
+ *         or forever if count is 0.</li>
+ *     <li>{@link #OP_END_LOOP}</li>
+ * </ul>
+ * The motors stop when the program ends. Programs are validated when built and when received:
+ * loops must be balanced, nest at most {@link #MAX_LOOP_DEPTH} deep, and wait somewhere in their
+ * body, so an interpreter never spins through a loop without yielding.
+ */
+public final class MotionProgram {
+
+    /** Version 1 programs were unsigned, and are no longer run. */
+    public static final int VERSION = 2;
+
+    public static final byte OP_STOP = 0;
+    public static final byte OP_DRIVE = 1;
+    public static final byte OP_TURN = 2;
+    public static final byte OP_WAIT = 3;
+    public static final byte OP_LED = 4;
+    public static final byte OP_LOOP = 5;
+    public static final byte OP_END_LOOP = 6;
+
+    public static final int LED_OFF = 0;
+    public static final int LED_RED = 1;
+    public static final int LED_GREEN = 2;
+    public static final int LED_BLUE = 4;
+
+    public static final int MAX_CODE_SIZE = 1024;
+    public static final int MAX_LOOP_DEPTH = 4;
+    public static final int MAX_WAIT_MS = 0xFFFF;
+    public static final int LOOP_FOREVER = 0;
+
+    /** The bytecode. Don't modify. */
+    public final byte[] mCode;
+
+    private MotionProgram(byte[] code) {
+        mCode = code;
+    }
+
+    /**
+     * Decodes a PROGRAM message, or returns null if it isn't a valid program of a version we run.
+     * The MAC is left for the caller to check.
+     */
+    public static MotionProgram decode(Message message) {
+        if (message.mType != MessageType.PROGRAM || message.getBodyLength() < 1
+                || message.mData[message.mBodyOffset] != VERSION) {
+            return null;
+        }
+        byte[] code = message.getProgramCode();
+        return code != null && validate(code) == null ? new MotionProgram(code) : null;
+    }
+
+    /**
+     * Encodes this program as a PROGRAM frame with the given sequence number, to be signed with
+     * {@link com.example.androidthings.robocar.shared.messaging.CommandAuthenticator#sign(byte[])}.
+     */
+    public byte[] toFrame(int sequence) {
+        return Message.encodeProgram(VERSION, mCode, sequence);
+    }
+
+    /** Returns the length of the instruction with the given opcode, or -1 if it's unknown. */
+    public static int getInstructionLength(byte opcode) {
+        switch (opcode) {
+            case OP_STOP:
+            case OP_END_LOOP:
+                return 1;
+            case OP_DRIVE:
+            case OP_TURN:
+            case OP_LED:
+            case OP_LOOP:
+                return 2;
+            case OP_WAIT:
+                return 3;
+        }
+        return -1;
+    }
+
+    /** Reads the operand of a WAIT instruction at pc. */
+    public static int getWaitMs(byte[] code, int pc) {
+        return (code[pc + 1] & 0xFF) << 8 | (code[pc + 2] & 0xFF);
+    }
+
+    /**
+     * Checks that code is a well formed program.
+     *
+     * @return null if it is, otherwise what's wrong with it
+     */
+    private static String validate(byte[] code) {
+        if (code.length > MAX_CODE_SIZE) {
+            return "Program longer than " + MAX_CODE_SIZE + " bytes";
+        }
+        // For each open loop, whether its body waits.
+        boolean[] waits = new boolean[MAX_LOOP_DEPTH];
+        int depth = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            byte opcode = code[pc];
+            int length = getInstructionLength(opcode);
+            if (length < 0) {
+                return "Unknown opcode " + opcode + " at " + pc;
+            }
+            if (pc + length > code.length) {
+                return "Truncated instruction at " + pc;
+            }
+            byte operand = length > 1 ? code[pc + 1] : 0;
+            switch (opcode) {
+                case OP_DRIVE:
+                    if (operand != CarCommands.GO_FORWARD && operand != CarCommands.GO_BACK) {
+                        return "Bad drive command at " + pc;
+                    }
+                    break;
+                case OP_TURN:
+                    if (operand != CarCommands.TURN_LEFT && operand != CarCommands.TURN_RIGHT) {
+                        return "Bad turn command at " + pc;
+                    }
+                    break;
+                case OP_LED:
+                    if ((operand & ~(LED_RED | LED_GREEN | LED_BLUE)) != 0) {
+                        return "Bad LED color at " + pc;
+                    }
+                    break;
+                case OP_WAIT:
+                    if (depth > 0 && getWaitMs(code, pc) > 0) {
+                        waits[depth - 1] = true;
+                    }
+                    break;
+                case OP_LOOP:
+                    if (depth == MAX_LOOP_DEPTH) {
+                        return "Loops nested too deep at " + pc;
+                    }
+                    waits[depth++] = false;
+                    break;
+                case OP_END_LOOP:
+                    if (depth == 0) {
+                        return "Unmatched end of loop at " + pc;
+                    }
+                    if (!waits[--depth]) {
+                        return "Loop without a wait ending at " + pc;
+                    }
+                    if (depth > 0) {
+                        waits[depth - 1] = true;
+                    }
+                    break;
+            }
+            pc += length;
+        }
+        return depth == 0 ? null : "Unterminated loop";
+    }
+
+    /**
+     * Compiles a motion program, e.g.
+     * <pre>
+     * new MotionProgram.Builder()
+     *         .loop(3).drive(true).waitMs(2000).turn(true).waitMs(700).endLoop()
+     *         .build();
+     * </pre>
+     */
+    public static class Builder {
+
+        private byte[] mCode = new byte[64];
+        private int mSize;
+
+        public Builder drive(boolean forward) {
+            return append(OP_DRIVE, forward ? CarCommands.GO_FORWARD : CarCommands.GO_BACK);
+        }
+
+        public Builder turn(boolean left) {
+            return append(OP_TURN, left ? CarCommands.TURN_LEFT : CarCommands.TURN_RIGHT);
+        }
+
+        /** Waits for the given time; waits longer than {@link #MAX_WAIT_MS} are split. */
+        public Builder waitMs(long ms) {
+            if (ms < 0) {
+                throw new IllegalArgumentException("Wait cannot be negative");
+            }
+            do {
+                int chunk = (int) Math.min(ms, MAX_WAIT_MS);
+                append(OP_WAIT, (byte) (chunk >> 8));
+                append((byte) chunk);
+                ms -= chunk;
+            } while (ms > 0);
+            return this;
+        }
+
+        /** Sets the LED to a combination of {@link #LED_RED}, {@link #LED_GREEN} and so on. */
+        public Builder led(int color) {
+            return append(OP_LED, (byte) color);
+        }
+
+        /** Starts a loop that runs count times (at most 255), or {@link #LOOP_FOREVER}. */
+        public Builder loop(int count) {
+            if (count < 0 || count > 0xFF) {
+                throw new IllegalArgumentException("Loop count must be between 0 and 255");
+            }
+            return append(OP_LOOP, (byte) count);
+        }
+
+        public Builder endLoop() {
+            return append(OP_END_LOOP);
+        }
+
+        public Builder stop() {
+            return append(OP_STOP);
+        }
+
+        /**
+         * @throws IllegalStateException if the program is malformed, e.g. has unbalanced loops
+         */
+        public MotionProgram build() {
+            byte[] code = Arrays.copyOf(mCode, mSize);
+            String error = validate(code);
+            if (error != null) {
+                throw new IllegalStateException(error);
+            }
+            return new MotionProgram(code);
+        }
+
+        private Builder append(byte... bytes) {
+            if (mSize + bytes.length > mCode.length) {
+                mCode = Arrays.copyOf(mCode, Math.max(mCode.length * 2, mSize + bytes.length));
+            }
+            System.arraycopy(bytes, 0, mCode, mSize, bytes.length);
+            mSize += bytes.length;
+            return this;
+        }
+    }
+}
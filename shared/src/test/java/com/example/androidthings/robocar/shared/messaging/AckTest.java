@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.messaging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+
+import org.junit.Test;
+
+public class AckTest {
+
+    @Test
+    public void covers_sequencesUpToAcked() {
+        Ack ack = new Ack(10, 0, CarCommands.GO_FORWARD, 0L);
+        assertTrue(ack.covers(10));
+        assertTrue(ack.covers(1));
+        assertFalse(ack.covers(11));
+    }
+
+    @Test
+    public void covers_nothingForNoSequence() {
+        assertFalse(new Ack(Message.NO_SEQUENCE, 0, CarCommands.STOP, 0L).covers(1));
+        assertFalse(new Ack(10, 0, CarCommands.STOP, 0L).covers(Message.NO_SEQUENCE));
+    }
+
+    @Test
+    public void covers_acrossWrapAround() {
+        Ack ack = new Ack(2, 0, CarCommands.GO_FORWARD, 0L);
+        assertTrue(ack.covers(-1));
+        assertFalse(ack.covers(3));
+        assertTrue(new Ack(Integer.MIN_VALUE, 0, CarCommands.STOP, 0L)
+                .covers(Integer.MAX_VALUE));
+        assertFalse(new Ack(Integer.MAX_VALUE, 0, CarCommands.STOP, 0L)
+                .covers(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void isFailed_readsErrorBitmap() {
+        // Bit 0 is the acked command itself, bit 2 the one two before it.
+        Ack ack = new Ack(10, 0x5, CarCommands.ERROR, 0L);
+        assertTrue(ack.isFailed(10));
+        assertFalse(ack.isFailed(9));
+        assertTrue(ack.isFailed(8));
+        assertFalse(ack.isFailed(11));
+    }
+
+    @Test
+    public void isFailed_onlyWithinWindow() {
+        Ack ack = new Ack(100, 0xFFFFFFFF, CarCommands.ERROR, 0L);
+        assertTrue(ack.isFailed(100 - Ack.WINDOW + 1));
+        assertFalse(ack.isFailed(100 - Ack.WINDOW));
+    }
+
+    @Test
+    public void isFailed_acrossWrapAround() {
+        // Sequence 2 follows -1 and 1; NO_SEQUENCE is skipped but still counts as a step.
+        Ack ack = new Ack(2, 1 << 3, CarCommands.GO_FORWARD, 0L);
+        assertTrue(ack.isFailed(-1));
+        assertFalse(ack.isFailed(1));
+        assertFalse(ack.isFailed(2));
+    }
+
+    @Test
+    public void toFrame_roundTrips() {
+        Ack ack = new Ack(-7, 0x80000001, CarCommands.TURN_LEFT, 0x0123456789abcdefL);
+        Ack decoded = Ack.decode(Message.decode("endpoint", ack.toFrame(), 0L));
+        assertNotNull(decoded);
+        assertEquals(ack.mSequence, decoded.mSequence);
+        assertEquals(ack.mErrors, decoded.mErrors);
+        assertEquals(ack.mCommand, decoded.mCommand);
+        assertEquals(ack.mTraceId, decoded.mTraceId);
+    }
+
+    @Test
+    public void decode_rejectsTruncatedFrame() {
+        byte[] frame = new Ack(1, 0, CarCommands.STOP, 0L).toFrame();
+        byte[] truncated = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        assertNull(Ack.decode(Message.decode("endpoint", truncated, 0L)));
+    }
+}
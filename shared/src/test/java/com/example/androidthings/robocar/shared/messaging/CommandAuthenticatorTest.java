@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.messaging;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+import com.example.androidthings.robocar.shared.diagnostics.Tracer;
+
+import org.junit.Test;
+
+public class CommandAuthenticatorTest {
+
+    private static final byte[] KEY = {
+            0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15
+    };
+
+    private final CommandAuthenticator mAuthenticator = CommandAuthenticator.fromKey(KEY);
+
+    private static byte[] signedCommand(CommandAuthenticator authenticator, int sequence) {
+        byte[] frame = Message.encodeCommand(CarCommands.GO_FORWARD, 0x0123456789abcdefL,
+                Message.EXECUTE_NOW, sequence, true);
+        authenticator.sign(frame);
+        return frame;
+    }
+
+    private static Message decode(byte[] frame) {
+        return Message.decode("endpoint", frame, 0L);
+    }
+
+    @Test
+    public void fromKey_readsKeyAsSipHashDoes() {
+        byte[] data = {0, 1, 2};
+        CommandAuthenticator expected = new CommandAuthenticator(0x0706050403020100L,
+                0x0f0e0d0c0b0a0908L);
+        byte[] frame = new byte[data.length + CommandAuthenticator.MAC_SIZE];
+        System.arraycopy(data, 0, frame, 0, data.length);
+        byte[] other = frame.clone();
+        mAuthenticator.sign(frame);
+        expected.sign(other);
+        assertArrayEquals(other, frame);
+    }
+
+    @Test
+    public void sign_writesHashOfFrameBigEndian() {
+        byte[] frame = signedCommand(mAuthenticator, 1);
+        int offset = frame.length - CommandAuthenticator.MAC_SIZE;
+        long mac = 0;
+        for (int i = offset; i < frame.length; i++) {
+            mac = (mac << 8) | (frame[i] & 0xFF);
+        }
+        assertEquals(SipHash.hash(0x0706050403020100L, 0x0f0e0d0c0b0a0908L, frame, 0, offset),
+                mac);
+    }
+
+    @Test
+    public void verify_acceptsSignedCommand() {
+        assertTrue(mAuthenticator.verify(decode(signedCommand(mAuthenticator, 42))));
+    }
+
+    @Test
+    public void verify_rejectsAnyChangedByte() {
+        byte[] frame = signedCommand(mAuthenticator, 42);
+        for (int i = 1; i < frame.length; i++) {
+            byte[] tampered = frame.clone();
+            tampered[i] ^= 0x01;
+            assertFalse("byte " + i, mAuthenticator.verify(decode(tampered)));
+        }
+    }
+
+    @Test
+    public void verify_rejectsOtherKey() {
+        byte[] otherKey = KEY.clone();
+        otherKey[0] ^= 0x01;
+        CommandAuthenticator other = CommandAuthenticator.fromKey(otherKey);
+        assertFalse(mAuthenticator.verify(decode(signedCommand(other, 42))));
+    }
+
+    @Test
+    public void verify_rejectsUnsignedCommands() {
+        assertFalse(mAuthenticator.verify(decode(new byte[]{CarCommands.GO_FORWARD})));
+        assertFalse(mAuthenticator.verify(decode(Message.encodeCommand(CarCommands.GO_FORWARD,
+                Tracer.NO_TRACE_ID, Message.EXECUTE_NOW, 42))));
+    }
+
+    @Test
+    public void verify_rejectsTruncatedFrame() {
+        byte[] frame = signedCommand(mAuthenticator, 42);
+        byte[] truncated = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        assertFalse(mAuthenticator.verify(decode(truncated)));
+    }
+
+    @Test
+    public void verify_isIndependentOfReplays() {
+        // Freshness is the replay window's job; the same frame verifies every time.
+        byte[] frame = signedCommand(mAuthenticator, 42);
+        assertTrue(mAuthenticator.verify(decode(frame)));
+        assertTrue(mAuthenticator.verify(decode(frame)));
+    }
+
+    @Test
+    public void verify_acceptsRenumberedAndResignedCommand() {
+        byte[] frame = signedCommand(mAuthenticator, 42);
+        Message.setSequence(frame, 43);
+        assertFalse(mAuthenticator.verify(decode(frame)));
+        mAuthenticator.sign(frame);
+        Message message = decode(frame);
+        assertTrue(mAuthenticator.verify(message));
+        assertEquals(43, message.getSequence());
+    }
+
+    @Test
+    public void verify_checksProgramFrames() {
+        byte[] frame = Message.encodeProgram(2, new byte[]{0}, 7);
+        mAuthenticator.sign(frame);
+        Message message = decode(frame);
+        assertTrue(mAuthenticator.verify(message));
+        assertEquals(7, message.getSequence());
+        frame[frame.length - CommandAuthenticator.MAC_SIZE - 1] ^= 0x01;
+        assertFalse(mAuthenticator.verify(decode(frame)));
+    }
+
+    @Test
+    public void encodeKey_roundTrips() {
+        byte[] key = CommandAuthenticator.generateKey();
+        assertEquals(CommandAuthenticator.KEY_SIZE, key.length);
+        Message message = decode(CommandAuthenticator.encodeKey(key));
+        assertEquals(MessageType.PAIRING_KEY, message.mType);
+        assertArrayEquals(key, CommandAuthenticator.decodeKey(message));
+    }
+
+    @Test
+    public void decodeKey_rejectsWrongSize() {
+        byte[] frame = CommandAuthenticator.encodeKey(KEY);
+        byte[] truncated = new byte[frame.length - 1];
+        System.arraycopy(frame, 0, truncated, 0, truncated.length);
+        assertNull(CommandAuthenticator.decodeKey(decode(truncated)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromKey_rejectsWrongSize() {
+        CommandAuthenticator.fromKey(new byte[CommandAuthenticator.KEY_SIZE - 1]);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.messaging;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class SipHashTest {
+
+    // The key 00 01 02 ... 0f of the reference test vectors, as two little endian halves.
+    private static final long KEY0 = 0x0706050403020100L;
+    private static final long KEY1 = 0x0f0e0d0c0b0a0908L;
+
+    // SipHash-2-4 of the messages 00, 00 01, 00 01 02 and so on, from the reference
+    // implementation's vectors, read as little endian numbers.
+    private static final long[] EXPECTED = {
+            0x726fdb47dd0e0e31L, 0x74f839c593dc67fdL, 0x0d6c8009d9a94f5aL, 0x85676696d7fb7e2dL,
+            0xcf2794e0277187b7L, 0x18765564cd99a68dL, 0xcbc9466e58fee3ceL, 0xab0200f58b01d137L,
+            0x93f5f5799a932462L, 0x9e0082df0ba9e4b0L, 0x7a5dbbc594ddb9f3L, 0xf4b32f46226bada7L,
+            0x751e8fbc860ee5fbL, 0x14ea5627c0843d90L, 0xf723ca908e7af2eeL, 0xa129ca6149be45e5L,
+    };
+
+    @Test
+    public void hash_matchesReferenceVectors() {
+        byte[] message = new byte[EXPECTED.length];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        for (int length = 0; length < EXPECTED.length; length++) {
+            assertEquals("length " + length, EXPECTED[length],
+                    SipHash.hash(KEY0, KEY1, message, 0, length));
+        }
+    }
+
+    @Test
+    public void hash_onlyReadsTheGivenRange() {
+        // Surrounded by bytes that would change the hash if they were read.
+        int length = EXPECTED.length - 1;
+        byte[] message = new byte[3 + length + 3];
+        Arrays.fill(message, (byte) 0xAA);
+        for (int i = 0; i < length; i++) {
+            message[3 + i] = (byte) i;
+        }
+        assertEquals(EXPECTED[length], SipHash.hash(KEY0, KEY1, message, 3, length));
+    }
+}
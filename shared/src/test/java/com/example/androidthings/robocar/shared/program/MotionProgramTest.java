@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.robocar.shared.program;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.example.androidthings.robocar.shared.CarCommands;
+import com.example.androidthings.robocar.shared.messaging.Message;
+import com.example.androidthings.robocar.shared.messaging.MessageType;
+
+import org.junit.Test;
+
+public class MotionProgramTest {
+
+    private static MotionProgram decode(byte... code) {
+        byte[] frame = Message.encodeProgram(MotionProgram.VERSION, code, 1);
+        return MotionProgram.decode(Message.decode("endpoint", frame, 0L));
+    }
+
+    @Test
+    public void build_acceptsWellFormedProgram() {
+        MotionProgram program = new MotionProgram.Builder()
+                .led(MotionProgram.LED_GREEN)
+                .loop(3).drive(true).waitMs(2000).turn(false).waitMs(700).endLoop()
+                .stop()
+                .build();
+        assertEquals(2 + 2 + 2 + 3 + 2 + 3 + 1 + 1, program.mCode.length);
+    }
+
+    @Test
+    public void build_splitsLongWaits() {
+        MotionProgram program = new MotionProgram.Builder()
+                .waitMs(MotionProgram.MAX_WAIT_MS + 1)
+                .build();
+        assertEquals(6, program.mCode.length);
+        assertEquals(MotionProgram.MAX_WAIT_MS, MotionProgram.getWaitMs(program.mCode, 0));
+        assertEquals(1, MotionProgram.getWaitMs(program.mCode, 3));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void build_rejectsUnterminatedLoop() {
+        new MotionProgram.Builder().loop(2).drive(true).waitMs(100).build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void build_rejectsUnmatchedEndLoop() {
+        new MotionProgram.Builder().waitMs(100).endLoop().build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void build_rejectsLoopWithoutWait() {
+        new MotionProgram.Builder().loop(MotionProgram.LOOP_FOREVER).drive(true).endLoop().build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void build_rejectsLoopWaitingZero() {
+        new MotionProgram.Builder().loop(2).waitMs(0).endLoop().build();
+    }
+
+    @Test
+    public void build_acceptsOuterLoopWaitingInInnerLoop() {
+        new MotionProgram.Builder()
+                .loop(MotionProgram.LOOP_FOREVER).loop(2).waitMs(10).endLoop().endLoop()
+                .build();
+    }
+
+    @Test
+    public void build_acceptsMaxLoopDepth() {
+        MotionProgram.Builder builder = new MotionProgram.Builder();
+        for (int i = 0; i < MotionProgram.MAX_LOOP_DEPTH; i++) {
+            builder.loop(2);
+        }
+        builder.waitMs(10);
+        for (int i = 0; i < MotionProgram.MAX_LOOP_DEPTH; i++) {
+            builder.endLoop();
+        }
+        builder.build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void build_rejectsLoopsNestedTooDeep() {
+        MotionProgram.Builder builder = new MotionProgram.Builder();
+        for (int i = 0; i <= MotionProgram.MAX_LOOP_DEPTH; i++) {
+            builder.loop(2);
+        }
+        builder.waitMs(10);
+        for (int i = 0; i <= MotionProgram.MAX_LOOP_DEPTH; i++) {
+            builder.endLoop();
+        }
+        builder.build();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void build_rejectsTooLongProgram() {
+        new MotionProgram.Builder().waitMs(
+                (long) MotionProgram.MAX_WAIT_MS * (MotionProgram.MAX_CODE_SIZE / 3 + 1)).build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void loop_rejectsCountAbove255() {
+        new MotionProgram.Builder().loop(256);
+    }
+
+    @Test
+    public void decode_roundTripsBuiltProgram() {
+        MotionProgram program = new MotionProgram.Builder()
+                .loop(2).drive(false).waitMs(300).endLoop()
+                .build();
+        MotionProgram decoded = MotionProgram.decode(
+                Message.decode("endpoint", program.toFrame(7), 0L));
+        assertNotNull(decoded);
+        assertArrayEquals(program.mCode, decoded.mCode);
+    }
+
+    @Test
+    public void decode_acceptsEmptyProgram() {
+        assertNotNull(decode());
+    }
+
+    @Test
+    public void decode_rejectsBadOperands() {
+        assertNull(decode(MotionProgram.OP_DRIVE, CarCommands.TURN_LEFT));
+        assertNull(decode(MotionProgram.OP_TURN, CarCommands.GO_FORWARD));
+        assertNull(decode(MotionProgram.OP_LED, (byte) 8));
+    }
+
+    @Test
+    public void decode_rejectsUnknownOpcode() {
+        assertNull(decode((byte) 0x7F));
+    }
+
+    @Test
+    public void decode_rejectsTruncatedInstruction() {
+        assertNull(decode(MotionProgram.OP_WAIT, (byte) 0));
+    }
+
+    @Test
+    public void decode_rejectsOtherVersion() {
+        byte[] frame = Message.encodeProgram(MotionProgram.VERSION - 1,
+                new byte[]{MotionProgram.OP_STOP}, 1);
+        assertNull(MotionProgram.decode(Message.decode("endpoint", frame, 0L)));
+    }
+
+    @Test
+    public void decode_rejectsFrameTooShortForMac() {
+        byte[] frame = {Message.toWireType(MessageType.PROGRAM), MotionProgram.VERSION, 0, 0, 0, 1};
+        assertNull(MotionProgram.decode(Message.decode("endpoint", frame, 0L)));
+    }
+}